@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler.benchmarks;
+
+
+import com.ultramixer.jarbundler.JarBundler;
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * <p>A complete {@link JarBundler#execute()} on 10 to 5,000 synthetic jars
+ * of 4 entries of 2 KB each.</p>
+ *
+ * <p>Every invocation builds the bundle again. Without "incremental" this
+ * includes deleting the bundle of the previous invocation, as it does in a
+ * real build; with "incremental" it measures a build in which nothing has
+ * changed.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleBenchmark {
+
+    @Param({"10", "100", "1000", "5000"})
+    public int jars;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private File dir;
+    private File jarDir;
+    private File outDir;
+    private File stub;
+    private Project project;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Fixtures.createTempDir("bundle");
+        jarDir = new File(dir, "jars");
+        outDir = new File(dir, "out");
+        outDir.mkdir();
+
+        Fixtures.createJars(jarDir, jars, 4, 2048);
+
+        stub = new File(dir, "universalJavaApplicationStub");
+        Fixtures.write(stub, "#!/bin/sh\n".getBytes("US-ASCII"));
+
+        project = Fixtures.createProject(dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void execute() {
+        JarBundler bundler = Fixtures.createBundler(project, outDir, stub);
+        bundler.setIncremental(incremental);
+        bundler.addJarfileset(Fixtures.jarFileSet(project, jarDir));
+        bundler.execute();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler.benchmarks;
+
+
+import com.ultramixer.jarbundler.JarBundler;
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * <p>The fileset copy paths: a resource fileset of many small files in
+ * nested directories and an exec fileset, whose files are also made
+ * executable, copied with different numbers of threads and link modes.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSetCopyBenchmark {
+
+    @Param({"100", "2000"})
+    public int files;
+
+    @Param({"1", "8"})
+    public int threads;
+
+    @Param({"copy", "hardlink"})
+    public String linkMode;
+
+    private File dir;
+    private File jarDir;
+    private File resourceDir;
+    private File execDir;
+    private File outDir;
+    private File stub;
+    private Project project;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Fixtures.createTempDir("fileset");
+        jarDir = new File(dir, "jars");
+        resourceDir = new File(dir, "resources");
+        execDir = new File(dir, "execs");
+        outDir = new File(dir, "out");
+        outDir.mkdir();
+
+        Fixtures.createJars(jarDir, 1, 1, 1024);
+        Fixtures.createFiles(resourceDir, files, 20, 4096);
+        Fixtures.createFiles(execDir, files / 10, 100, 16384);
+
+        stub = new File(dir, "universalJavaApplicationStub");
+        Fixtures.write(stub, "#!/bin/sh\n".getBytes("US-ASCII"));
+
+        project = Fixtures.createProject(dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void copy() {
+        JarBundler bundler = Fixtures.createBundler(project, outDir, stub);
+        bundler.setThreads(threads);
+        bundler.setLinkMode(linkMode);
+        bundler.addJarfileset(Fixtures.jarFileSet(project, jarDir));
+        bundler.addResourcefileset(Fixtures.fileSet(project, resourceDir));
+        bundler.addExecfileset(Fixtures.fileSet(project, execDir));
+        bundler.execute();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler.benchmarks;
+
+
+import com.ultramixer.jarbundler.JarBundler;
+import com.ultramixer.jarbundler.JarFileSet;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+
+/**
+ * Synthetic inputs shared by the benchmarks. All content is derived from a
+ * fixed seed, so every run measures the same bytes.
+ */
+final class Fixtures {
+
+    private static final long SEED = 0x4a617242756e646cL;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return A new, empty temporary directory
+     */
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        return dir;
+    }
+
+    /**
+     * Delete a directory tree.
+     */
+    static void delete(File f) {
+        File[] children = f.listFiles();
+
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+
+        f.delete();
+    }
+
+    /**
+     * Create jar files with a few pseudo random class entries each.
+     *
+     * @param dir     The directory receiving the jars
+     * @param count   The number of jars
+     * @param entries The number of entries per jar
+     * @param size    The size of every entry in bytes
+     */
+    static void createJars(File dir, int count, int entries, int size) throws IOException {
+        Random random = new Random(SEED);
+        byte[] data = new byte[size];
+
+        dir.mkdirs();
+
+        for (int i = 0; i < count; i++) {
+            JarOutputStream out = null;
+
+            try {
+                out = new JarOutputStream(new FileOutputStream(new File(dir, name("lib", i) + ".jar")));
+
+                for (int j = 0; j < entries; j++) {
+                    random.nextBytes(data);
+                    out.putNextEntry(new JarEntry("com/example/p" + i + "/C" + j + ".class"));
+                    out.write(data);
+                    out.closeEntry();
+                }
+            } finally {
+                FileUtils.close(out);
+            }
+        }
+    }
+
+    /**
+     * Create files in a tree of directories.
+     *
+     * @param dir        The root directory
+     * @param count      The number of files
+     * @param perDir     The number of files per directory
+     * @param size       The size of every file in bytes
+     */
+    static void createFiles(File dir, int count, int perDir, int size) throws IOException {
+        Random random = new Random(SEED);
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < count; i++) {
+            File sub = new File(dir, name("d", i / perDir));
+            sub.mkdirs();
+            random.nextBytes(data);
+            write(new File(sub, name("f", i) + ".dat"), data);
+        }
+    }
+
+    static void write(File f, byte[] data) throws IOException {
+        OutputStream out = null;
+
+        try {
+            out = new FileOutputStream(f);
+            out.write(data);
+        } finally {
+            FileUtils.close(out);
+        }
+    }
+
+    /**
+     * @return A quiet Ant project based in the given directory
+     */
+    static Project createProject(File baseDir) {
+        Project project = new Project();
+        project.init();
+        project.setBaseDir(baseDir);
+        return project;
+    }
+
+    /**
+     * @return A fileset including every file below the directory
+     */
+    static FileSet fileSet(Project project, File dir) {
+        FileSet fs = new FileSet();
+        fs.setProject(project);
+        fs.setDir(dir);
+        return fs;
+    }
+
+    /**
+     * @return A jarfileset including every file below the directory
+     */
+    static JarFileSet jarFileSet(Project project, File dir) {
+        JarFileSet fs = new JarFileSet();
+        fs.setProject(project);
+        fs.setDir(dir);
+        return fs;
+    }
+
+    /**
+     * @return A task with the attributes every bundle needs
+     */
+    static JarBundler createBundler(Project project, File outDir, File stub) {
+        JarBundler bundler = new JarBundler();
+        bundler.setProject(project);
+        bundler.setTaskName("jarbundler");
+        bundler.setDir(outDir);
+        bundler.setName("Benchmark");
+        bundler.setMainClass("com.example.Main");
+        bundler.setStubFile(stub);
+        return bundler;
+    }
+
+    private static String name(String prefix, int i) {
+        String digits = Integer.toString(i);
+
+        while (digits.length() < 5) {
+            digits = "0" + digits;
+        }
+
+        return prefix + digits;
+    }
+}
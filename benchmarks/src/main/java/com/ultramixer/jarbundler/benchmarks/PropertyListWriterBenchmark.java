@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler.benchmarks;
+
+
+import com.ultramixer.jarbundler.AppBundleProperties;
+import com.ultramixer.jarbundler.DocumentType;
+import com.ultramixer.jarbundler.PropertyListWriter;
+import com.ultramixer.jarbundler.Service;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Writing Info.plist files with {@link PropertyListWriter#writeFile(File)}:
+ * a typical application ("small") and one with hundreds of document types,
+ * services and Java properties ("large"), through each of the writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertyListWriterBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({"stream", "dom", "binary"})
+    public String writer;
+
+    private AppBundleProperties properties;
+    private File dir;
+    private File plist;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        int count = "large".equals(size) ? 300 : 3;
+
+        properties = new AppBundleProperties();
+        properties.setApplicationName("Benchmark");
+        properties.setCFBundleIdentifier("com.example.benchmark");
+        properties.setCFBundleShortVersionString("1.0");
+        properties.setCFBundleVersion("1.0.0");
+        properties.setNSHumanReadableCopyright("© 2015 Example & Co. <benchmark>");
+        properties.setMainClass("com.example.Main");
+        properties.setCFBundleExecutable("universalJavaApplicationStub");
+        properties.setVMOptions("-Xmx1g -Dfile.encoding=UTF-8");
+        properties.setJVMArchs("x86_64 arm64");
+
+        for (int i = 0; i < count; i++) {
+            properties.addToClassPath("lib" + i + ".jar");
+            properties.addJavaProperty("com.example.property" + i, "value " + i);
+
+            DocumentType documentType = properties.createDocumentType();
+            documentType.setName("Document " + i);
+            documentType.setExtensions("ex" + i + " ey" + i);
+            documentType.setMimeTypes("application/x-example-" + i);
+            documentType.setUTIs("com.example.document" + i);
+            documentType.setRole("Editor");
+            properties.addDocumentType(documentType);
+
+            Service service = properties.createService();
+            service.setPortName("Port" + i);
+            service.setMessage("message" + i);
+            service.setMenuItem("Example/Service " + i);
+            service.setSendTypes("NSStringPboardType");
+            service.setReturnTypes("NSStringPboardType");
+            properties.addService(service);
+        }
+
+        dir = Fixtures.createTempDir("plist");
+        plist = new File(dir, "Info.plist");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public long writeFile() {
+        PropertyListWriter listWriter = new PropertyListWriter(properties);
+        listWriter.setUseDOM("dom".equals(writer));
+        listWriter.setBinary("binary".equals(writer));
+        listWriter.writeFile(plist);
+        return plist.length();
+    }
+}
@@ -99,6 +99,9 @@ public class AppBundleProperties {
     private List mLSArchitecturePriority = new ArrayList();
     private String mLSApplicationCategoryType = null;
 
+    // Name of the runtime embedded in Contents/PlugIns
+    private String mJVMRuntime = null;
+
 
     // Sparkle Properties
     private String mSUFeedURL = null;
@@ -551,4 +554,12 @@ public class AppBundleProperties {
     }
 
     //------------------------------------------------------------------------------------------
+
+    public String getJVMRuntime() {
+        return mJVMRuntime;
+    }
+
+    public void setJVMRuntime(String s) {
+        this.mJVMRuntime = s;
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import java.io.File;
+
+
+/**
+ * <p>Represents an AppCDS (application class data sharing) archive of the
+ * bundled application's classes, generated while the bundle is built.</p>
+ *
+ * <p>The application is launched once for training: its main class is run
+ * with the bundle's class path, Java properties and VM options, plus
+ * <code>-Djava.awt.headless=true</code> and
+ * <code>-Djarbundler.appcds.training=true</code>, which the application may
+ * check to exit once it has started up. The classes it loads are then
+ * dumped into the archive, which is placed in
+ * <code>Contents/Resources/Java</code> and passed to the VM through
+ * <code>-XX:SharedArchiveFile</code> in the VMOptions.</p>
+ *
+ * <dl>
+ * <dt>JDK</dt>
+ * <dd>The home directory of the JDK running the training and dumping the
+ * archive (default: the runtime embedded by &lt;runtime&gt;, otherwise the
+ * JDK running Ant). An archive can only be used by
+ * exactly the JDK which created it, so this has to be the runtime the
+ * application is launched with. JDK 11 or later is required.</dd>
+ *
+ * <dt>Archive</dt>
+ * <dd>The name of the archive (default "app.jsa").</dd>
+ *
+ * <dt>Arguments</dt>
+ * <dd>Arguments passed to the main class during training.</dd>
+ *
+ * <dt>Timeout</dt>
+ * <dd>Milliseconds after which a training run which has not exited is
+ * stopped (default 60000). The classes loaded until then are archived.</dd>
+ *
+ * <dt>Headless</dt>
+ * <dd>If true, train without a display (default true).</dd>
+ * </dl>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * &lt;appcds jdk="${java.home}" arguments="--exit-after-startup" timeout="30000"/&gt;
+ * </pre>
+ */
+public class AppCDS {
+
+    private File jdk = null;
+    private String archive = "app.jsa";
+    private String arguments = null;
+    private long timeout = 60000;
+    private boolean headless = true;
+
+
+    // JDK home directory
+    public void setJdk(File jdk) {
+        this.jdk = jdk;
+    }
+
+    public File getJdk() {
+        return jdk;
+    }
+
+
+    // Name of the archive in Contents/Resources/Java
+    public void setArchive(String archive) {
+        this.archive = archive;
+    }
+
+    public String getArchive() {
+        return archive;
+    }
+
+
+    // Arguments of the training run
+    public void setArguments(String arguments) {
+        this.arguments = arguments;
+    }
+
+    public String getArguments() {
+        return arguments;
+    }
+
+
+    // Watchdog timeout of the training run in milliseconds
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+
+    // Train without a display
+    public void setHeadless(boolean headless) {
+        this.headless = headless;
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+}
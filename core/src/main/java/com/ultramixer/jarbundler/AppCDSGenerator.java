@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.apache.tools.ant.types.Commandline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * <p>Generates the {@link AppCDS} archive of a bundle which has been
+ * written to disk.</p>
+ *
+ * <p>Two VMs are run: a training run of the application with
+ * <code>-XX:DumpLoadedClassList</code>, which records the classes it loads,
+ * and <code>-Xshare:dump</code>, which writes those classes into the
+ * archive. Both use the class path entries inside the bundle, since a VM
+ * only accepts an archive whose class path matches its own.</p>
+ *
+ * <p>The VM records the absolute path, size and modification time of every
+ * class path entry and of the JDK's modules in the archive, and ignores the
+ * archive unless all of them match. An archive therefore only works for the
+ * bundle at the location it was built at; once the bundle is moved the VM
+ * loads the classes as usual. Class path entries relative to the working
+ * directory do not help, the VM resolves them against the working directory
+ * of the application.</p>
+ *
+ * <p>A fingerprint of everything the archive depends on is kept in a file
+ * next to it, so an archive is generated again whenever the content, size or
+ * modification time of a class path entry, the JDK or the options change.</p>
+ */
+class AppCDSGenerator {
+
+    // Set during training, the application may exit once it has started
+    static final String TRAINING_PROPERTY = "jarbundler.appcds.training";
+
+    static final String ARCHIVE_OPTION = "-XX:SharedArchiveFile=";
+
+    // Suffix of the fingerprint file kept next to the archive
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    // The task we are generating for, used for logging
+    private final Task task;
+
+    private final AppCDS cds;
+
+    private List classPath = new ArrayList();
+    private String mainClass = null;
+    private Hashtable javaProperties = new Hashtable();
+    private String vmOptions = null;
+    private File workingDir = null;
+    private File jdk;
+
+
+    AppCDSGenerator(Task task, AppCDS cds) {
+        this.task = task;
+        this.cds = cds;
+        this.jdk = (cds.getJdk() != null) ? cds.getJdk() : new File(System.getProperty("java.home"));
+    }
+
+    /**
+     * @param jdk The home directory of the Java runtime to use, instead of
+     *            the JDK running Ant
+     */
+    void setJdk(File jdk) {
+        this.jdk = jdk;
+    }
+
+    /**
+     * @param classPath The class path as Files, in order
+     */
+    void setClassPath(List classPath) {
+        this.classPath = classPath;
+    }
+
+    void setMainClass(String mainClass) {
+        this.mainClass = mainClass;
+    }
+
+    /**
+     * @param javaProperties The Java properties of the application
+     */
+    void setJavaProperties(Hashtable javaProperties) {
+        this.javaProperties = javaProperties;
+    }
+
+    /**
+     * @param vmOptions The VM options of the application; a shared archive
+     *                  option among them is ignored
+     */
+    void setVMOptions(String vmOptions) {
+        this.vmOptions = vmOptions;
+    }
+
+    /**
+     * @param workingDir The working directory of the training run
+     */
+    void setWorkingDir(File workingDir) {
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * @param archive The archive
+     * @return The hidden file next to the archive which holds the fingerprint
+     *         it was generated from
+     */
+    static File fingerprintFile(File archive) {
+        return new File(archive.getParentFile(), "." + archive.getName() + FINGERPRINT_SUFFIX);
+    }
+
+    /**
+     * @param archive The archive
+     * @return true if the archive exists and was generated from the class
+     *         path, JDK and options as they are now
+     */
+    boolean isUpToDate(File archive) {
+        File file = fingerprintFile(archive);
+
+        if (!archive.isFile() || !file.isFile() || !java().isFile()) {
+            return false;
+        }
+
+        try {
+            String stamp = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+            return stamp.equals(fingerprint() + "\n");
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The SHA-256 of the path, size and modification time of the JDK
+     *         and of every class path entry, which the VM checks before it
+     *         uses the archive, the content of every class path entry and
+     *         the options of both runs
+     * @throws IOException if a class path entry cannot be read
+     */
+    private String fingerprint() throws IOException {
+        StringBuffer sb = new StringBuffer();
+
+        File[] jdkFiles = {java(), new File(jdk, "lib/modules")};
+
+        for (int i = 0; i < jdkFiles.length; i++) {
+            sb.append("jdk ").append(describe(jdkFiles[i])).append('\n');
+        }
+
+        for (Iterator itor = classPath.iterator(); itor.hasNext(); ) {
+            File f = (File) itor.next();
+            sb.append("classpath ").append(describe(f));
+
+            if (f.isFile()) {
+                sb.append(' ').append(ContentCache.digest(f));
+            }
+
+            sb.append('\n');
+        }
+
+        sb.append("command ").append(command(java())).append('\n');
+        sb.append("training ").append(mainClass).append(',').append(cds.getArguments())
+            .append(',').append(cds.getTimeout()).append(',').append(cds.isHeadless()).append('\n');
+
+        return BundleManifest.sha256(sb.toString().getBytes("UTF-8"));
+    }
+
+    private static String describe(File f) {
+        return f.getAbsolutePath() + " " + f.length() + " " + f.lastModified();
+    }
+
+    /**
+     * Train the application and dump the classes it loaded into the
+     * archive. The archive is only replaced once it has been dumped
+     * completely.
+     *
+     * @param archive The archive
+     * @throws BuildException if the training run loads no classes or the
+     *                        archive cannot be dumped
+     */
+    void generate(File archive) throws BuildException {
+        File java = java();
+
+        if (!java.isFile()) {
+            throw new BuildException("Unable to find \"" + java + "\", \"jdk\" of '<appcds>' must be a JDK");
+        }
+
+        File classList = null;
+        File dump = new File(archive.getParentFile(), archive.getName() + ".tmp");
+
+        try {
+            // Taken before the runs, which the application may use to change its jars
+            String fingerprint = fingerprint();
+
+            classList = File.createTempFile("jarbundler", ".classlist");
+
+            // Training run
+            List command = command(java);
+            command.add("-Xshare:off");
+            command.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+
+            if (cds.isHeadless()) {
+                command.add("-Djava.awt.headless=true");
+            }
+
+            command.add("-D" + TRAINING_PROPERTY + "=true");
+            command.add(mainClass);
+
+            if (cds.getArguments() != null) {
+                addAll(command, Commandline.translateCommandline(cds.getArguments()));
+            }
+
+            int status = run(command, cds.getTimeout(), "Training");
+
+            if (classList.length() == 0) {
+                throw new BuildException("The training run of \"" + mainClass
+                    + "\" loaded no classes (exit status " + status + ")");
+            }
+
+            // Dump the archive
+            command = command(java);
+            command.add("-Xshare:dump");
+            command.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+            command.add(ARCHIVE_OPTION + dump.getAbsolutePath());
+
+            if (run(command, 0, "Dumping") != 0 || !dump.isFile()) {
+                throw new BuildException("Unable to dump the AppCDS archive \"" + archive
+                    + "\", run Ant with -verbose for details");
+            }
+
+            Files.move(dump.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.write(fingerprintFile(archive).toPath(), (fingerprint + "\n").getBytes("UTF-8"));
+        } catch (IOException ex) {
+            throw new BuildException("Unable to generate the AppCDS archive \"" + archive
+                + "\": " + ex.getMessage(), ex);
+        } finally {
+            if (classList != null) {
+                classList.delete();
+            }
+            dump.delete();
+        }
+    }
+
+    /**
+     * @return A java command line with the options shared by both runs
+     */
+    private List command(File java) {
+        List command = new ArrayList();
+        command.add(java.getAbsolutePath());
+
+        if (vmOptions != null) {
+            String[] options = Commandline.translateCommandline(vmOptions);
+
+            for (int i = 0; i < options.length; i++) {
+                if (!options[i].startsWith(ARCHIVE_OPTION)) {
+                    command.add(options[i]);
+                }
+            }
+        }
+
+        // Sorted, so the fingerprint does not depend on the order of the table
+        Map properties = new TreeMap(javaProperties);
+
+        for (Iterator itor = properties.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry property = (Map.Entry) itor.next();
+            command.add("-D" + property.getKey() + "=" + property.getValue());
+        }
+
+        StringBuffer path = new StringBuffer();
+
+        for (Iterator itor = classPath.iterator(); itor.hasNext(); ) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparatorChar);
+            }
+            path.append(((File) itor.next()).getAbsolutePath());
+        }
+
+        command.add("-cp");
+        command.add(path.toString());
+
+        return command;
+    }
+
+    /**
+     * Run a command, logging its output at verbose level.
+     *
+     * @param command The command line
+     * @param timeout Milliseconds after which the command is stopped, or 0
+     * @param what    Describes the command in the log
+     * @return The exit status
+     */
+    private int run(List command, long timeout, String what) throws IOException {
+        ExecuteWatchdog watchdog = (timeout > 0) ? new ExecuteWatchdog(timeout) : null;
+        Execute exe = new Execute(new LogStreamHandler(task, Project.MSG_VERBOSE, Project.MSG_VERBOSE), watchdog);
+        exe.setAntRun(task.getProject());
+        exe.setCommandline((String[]) command.toArray(new String[command.size()]));
+
+        if (workingDir != null) {
+            exe.setWorkingDirectory(workingDir);
+        }
+
+        task.log(what + ": " + Commandline.toString(exe.getCommandline()), Project.MSG_VERBOSE);
+
+        int status = exe.execute();
+
+        if (watchdog != null && watchdog.killedProcess()) {
+            task.log(what + " stopped after " + timeout + " ms", Project.MSG_VERBOSE);
+        }
+
+        return status;
+    }
+
+    private File java() {
+        return new File(jdk, "bin/" + (Os.isFamily(Os.FAMILY_WINDOWS) ? "java.exe" : "java"));
+    }
+
+    private static void addAll(List list, String[] items) {
+        for (int i = 0; i < items.length; i++) {
+            list.add(items[i]);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * <p>Encodes a property list in the binary "bplist00" format.</p>
+ *
+ * <p>The property list is collected in memory, as the object table of a
+ * binary property list can only be written once every object is known.
+ * Equal strings and booleans are stored once and referenced from every
+ * place they occur. Strings are stored as ASCII if possible and as UTF-16
+ * otherwise.</p>
+ */
+class BinaryPropertyListOutput implements PropertyListOutput {
+
+    private static final byte[] MAGIC = {'b', 'p', 'l', 'i', 's', 't', '0', '0'};
+
+    // Object type markers
+    private static final int MARKER_FALSE = 0x08;
+    private static final int MARKER_TRUE = 0x09;
+    private static final int MARKER_INT = 0x10;
+    private static final int MARKER_ASCII = 0x50;
+    private static final int MARKER_UTF16 = 0x60;
+    private static final int MARKER_ARRAY = 0xA0;
+    private static final int MARKER_DICT = 0xD0;
+
+    private final OutputStream out;
+
+    // The open containers, innermost last
+    private final LinkedList containers = new LinkedList();
+
+    // Key waiting for its value in the innermost dictionary
+    private String pendingKey = null;
+
+    private Dict root = null;
+
+    // Object table
+    private final List objects = new ArrayList();
+    private final Map uniqueIds = new HashMap();
+    private final Map containerIds = new IdentityHashMap();
+
+
+    BinaryPropertyListOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    public void startDict() {
+        Dict dict = new Dict();
+
+        if (root == null) {
+            root = dict;
+        } else {
+            add(dict);
+        }
+
+        containers.add(dict);
+    }
+
+    public void endDict() {
+        containers.removeLast();
+    }
+
+    public void startArray() {
+        List array = new ArrayList();
+        add(array);
+        containers.add(array);
+    }
+
+    public void endArray() {
+        containers.removeLast();
+    }
+
+    public void key(String key) {
+        pendingKey = key;
+    }
+
+    public void string(String string) {
+        add(string);
+    }
+
+    public void bool(boolean b) {
+        add(Boolean.valueOf(b));
+    }
+
+    private void add(Object value) {
+        Object container = containers.getLast();
+
+        if (container instanceof Dict) {
+            ((Dict) container).keys.add(pendingKey);
+            ((Dict) container).values.add(value);
+            pendingKey = null;
+        } else {
+            ((List) container).add(value);
+        }
+    }
+
+    public void finish() throws IOException {
+
+        // Number all objects, the top level dictionary is object 0
+        number(root);
+
+        int refSize = sizeOf(objects.size());
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.write(MAGIC);
+
+        long[] offsets = new long[objects.size()];
+
+        for (int i = 0; i < objects.size(); i++) {
+            offsets[i] = buffer.size();
+            writeObject(buffer, objects.get(i), refSize);
+        }
+
+        long offsetTableOffset = buffer.size();
+        int offsetSize = sizeOf(offsetTableOffset);
+
+        for (int i = 0; i < offsets.length; i++) {
+            writeBigEndian(buffer, offsets[i], offsetSize);
+        }
+
+        // Trailer: 5 unused bytes, sort version, offset and reference
+        // sizes, object count, top object and offset table position
+        for (int i = 0; i < 6; i++) {
+            buffer.write(0);
+        }
+        buffer.write(offsetSize);
+        buffer.write(refSize);
+        writeBigEndian(buffer, objects.size(), 8);
+        writeBigEndian(buffer, 0, 8);
+        writeBigEndian(buffer, offsetTableOffset, 8);
+
+        buffer.writeTo(out);
+        out.flush();
+    }
+
+    private void number(Object object) {
+        if (object instanceof Dict) {
+            containerIds.put(object, Integer.valueOf(objects.size()));
+            objects.add(object);
+
+            Dict dict = (Dict) object;
+            for (Iterator itor = dict.keys.iterator(); itor.hasNext(); ) {
+                number(itor.next());
+            }
+            for (Iterator itor = dict.values.iterator(); itor.hasNext(); ) {
+                number(itor.next());
+            }
+        } else if (object instanceof List) {
+            containerIds.put(object, Integer.valueOf(objects.size()));
+            objects.add(object);
+
+            for (Iterator itor = ((List) object).iterator(); itor.hasNext(); ) {
+                number(itor.next());
+            }
+        } else if (!uniqueIds.containsKey(object)) {
+            uniqueIds.put(object, Integer.valueOf(objects.size()));
+            objects.add(object);
+        }
+    }
+
+    private int idOf(Object object) {
+        Integer id = (object instanceof Dict || object instanceof List)
+            ? (Integer) containerIds.get(object) : (Integer) uniqueIds.get(object);
+        return id.intValue();
+    }
+
+    private void writeObject(ByteArrayOutputStream buffer, Object object, int refSize) throws IOException {
+        if (object instanceof Boolean) {
+            buffer.write(((Boolean) object).booleanValue() ? MARKER_TRUE : MARKER_FALSE);
+        } else if (object instanceof String) {
+            writeString(buffer, (String) object);
+        } else if (object instanceof List) {
+            List array = (List) object;
+            writeMarker(buffer, MARKER_ARRAY, array.size());
+            writeRefs(buffer, array, refSize);
+        } else {
+            Dict dict = (Dict) object;
+            writeMarker(buffer, MARKER_DICT, dict.keys.size());
+            writeRefs(buffer, dict.keys, refSize);
+            writeRefs(buffer, dict.values, refSize);
+        }
+    }
+
+    private void writeRefs(ByteArrayOutputStream buffer, List refs, int refSize) {
+        for (Iterator itor = refs.iterator(); itor.hasNext(); ) {
+            writeBigEndian(buffer, idOf(itor.next()), refSize);
+        }
+    }
+
+    private void writeString(ByteArrayOutputStream buffer, String string) throws IOException {
+        boolean ascii = true;
+
+        for (int i = 0; i < string.length() && ascii; i++) {
+            ascii = string.charAt(i) < 0x80;
+        }
+
+        if (ascii) {
+            writeMarker(buffer, MARKER_ASCII, string.length());
+            buffer.write(string.getBytes("US-ASCII"));
+        } else {
+            writeMarker(buffer, MARKER_UTF16, string.length());
+            buffer.write(string.getBytes("UTF-16BE"));
+        }
+    }
+
+    /**
+     * Write an object marker. Counts of 15 and more follow the marker as
+     * an integer object.
+     */
+    private void writeMarker(ByteArrayOutputStream buffer, int marker, int count) {
+        if (count < 15) {
+            buffer.write(marker | count);
+        } else {
+            buffer.write(marker | 0x0F);
+
+            int size = sizeOf(count);
+            int log2 = (size == 1) ? 0 : (size == 2) ? 1 : 2;
+
+            buffer.write(MARKER_INT | log2);
+            writeBigEndian(buffer, count, 1 << log2);
+        }
+    }
+
+    private static void writeBigEndian(ByteArrayOutputStream buffer, long value, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            buffer.write((int) (value >>> (8 * i)) & 0xFF);
+        }
+    }
+
+    // Number of bytes needed for references or offsets up to the given value
+    private static int sizeOf(long value) {
+        if (value < 0x100) {
+            return 1;
+        } else if (value < 0x10000) {
+            return 2;
+        } else if (value < 0x100000000L) {
+            return 4;
+        }
+        return 8;
+    }
+
+
+    /**
+     * A dictionary, keeping its keys in insertion order
+     */
+    private static class Dict {
+        private final List keys = new ArrayList();
+        private final List values = new ArrayList();
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.zip.UnixStat;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * <p>Writes a planned application bundle straight into a zip or gzip
+ * compressed tar archive, without creating the bundle directory.</p>
+ *
+ * <p>Every entry is read from its source file, or taken from the plan for
+ * generated files, and written once. Jars rewritten by JarBundler are
+ * written to temporary files first, since their size has to be known. Entries are named
+ * <code>Name.app/Contents/...</code> and carry Unix modes: 0755 for
+ * directories and executables, 0644 for all other files.</p>
+ *
+ * <p>In reproducible mode every entry carries the same modification time,
+ * zip times are stored as UTC instead of local time and tar entries carry
+ * no user or group, so the same plan always gives the same bytes.</p>
+ */
+class BundleArchiver {
+
+    // Archive formats
+    static final String FORMAT_ZIP = "zip";
+    static final String FORMAT_TAR_GZ = "tar.gz";
+
+    private static final int DIR_MODE = 0755;
+    private static final int EXECUTABLE_MODE = 0755;
+    private static final int FILE_MODE = 0644;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BundlePlan plan;
+    private final File bundleDir;
+
+    // Modification time of the generated files and the directories
+    private long time = System.currentTimeMillis();
+
+    // Give every entry the same time and no owner
+    private boolean reproducible = false;
+
+    // Temporary files of the rewritten jars by entry
+    private final Map rewritten = new HashMap();
+
+
+    /**
+     * @param plan      The plan of the bundle
+     * @param bundleDir The bundle directory, whose name becomes the top
+     *                  level directory of the archive
+     */
+    BundleArchiver(BundlePlan plan, File bundleDir) {
+        this.plan = plan;
+        this.bundleDir = bundleDir;
+    }
+
+    /**
+     * @param time The modification time of generated files and directories
+     */
+    void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * @param reproducible If true, all entries get the time of
+     *                     {@link #setTime(long)} and no owner
+     */
+    void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * Zip entries store their time as local date and time. The returned time
+     * gives the date and time of the UTC time instead, independent of the
+     * time zone of the build.
+     *
+     * @param time A time in milliseconds since the epoch
+     * @return The time to pass to a zip entry
+     */
+    static long zipTime(long time) {
+        return time - TimeZone.getDefault().getOffset(time);
+    }
+
+    /**
+     * The format of an archive, as given by its file name.
+     *
+     * @param archive The archive file
+     * @return "zip", "tar.gz", or null if the name has neither extension
+     */
+    static String formatOf(File archive) {
+        String name = archive.getName().toLowerCase(Locale.ENGLISH);
+
+        if (name.endsWith(".zip")) {
+            return FORMAT_ZIP;
+        } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return FORMAT_TAR_GZ;
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the archive. A partially written archive is deleted.
+     *
+     * @param archive The archive file
+     * @param format  Either "zip" or "tar.gz"
+     * @param task    The task logging the rewriting of jars
+     * @throws BuildException if the archive cannot be written
+     */
+    void write(File archive, String format, Task task) throws BuildException {
+        boolean done = false;
+
+        try {
+            rewrite(task);
+
+            if (FORMAT_ZIP.equals(format)) {
+                writeZip(archive);
+            } else {
+                writeTar(archive);
+            }
+            done = true;
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write archive \"" + archive + "\": " + ex.getMessage(), ex);
+        } finally {
+            if (!done) {
+                archive.delete();
+            }
+
+            for (Iterator itor = rewritten.values().iterator(); itor.hasNext(); ) {
+                ((File) itor.next()).delete();
+            }
+            rewritten.clear();
+        }
+    }
+
+    /**
+     * Write the rewritten jars to temporary files
+     */
+    private void rewrite(Task task) throws IOException {
+        for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+            if (entry.getRewrite() != null) {
+                File tmp = File.createTempFile("jarbundler", ".jar");
+                rewritten.put(entry, tmp);
+                entry.getRewrite().write(tmp, task);
+            }
+        }
+    }
+
+    private void writeZip(File archive) throws IOException {
+        ZipOutputStream out = null;
+
+        try {
+            out = new ZipOutputStream(archive);
+            out.setEncoding("UTF-8");
+
+            for (Iterator itor = directories().iterator(); itor.hasNext(); ) {
+                ZipEntry entry = new ZipEntry((String) itor.next());
+                entry.setUnixMode(UnixStat.DIR_FLAG | DIR_MODE);
+                entry.setTime(zipEntryTime(time));
+                out.putNextEntry(entry);
+                out.closeEntry();
+            }
+
+            for (Iterator itor = files().entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+                BundlePlan.Entry file = (BundlePlan.Entry) e.getValue();
+
+                ZipEntry entry = new ZipEntry((String) e.getKey());
+                entry.setUnixMode(UnixStat.FILE_FLAG | mode(file));
+                entry.setTime(zipEntryTime(lastModified(file)));
+                out.putNextEntry(entry);
+                copy(file, out);
+                out.closeEntry();
+            }
+
+            out.finish();
+        } finally {
+            FileUtils.close(out);
+        }
+    }
+
+    private void writeTar(File archive) throws IOException {
+        TarOutputStream out = null;
+
+        try {
+            out = new TarOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+                new FileOutputStream(archive), BUFFER_SIZE)), "UTF-8");
+            out.setLongFileMode(TarOutputStream.LONGFILE_POSIX);
+            out.setBigNumberMode(TarOutputStream.BIGNUMBER_POSIX);
+
+            for (Iterator itor = directories().iterator(); itor.hasNext(); ) {
+                TarEntry entry = new TarEntry((String) itor.next());
+                entry.setMode(UnixStat.DIR_FLAG | DIR_MODE);
+                entry.setModTime(time);
+                setOwner(entry);
+                out.putNextEntry(entry);
+                out.closeEntry();
+            }
+
+            for (Iterator itor = files().entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+                BundlePlan.Entry file = (BundlePlan.Entry) e.getValue();
+
+                TarEntry entry = new TarEntry((String) e.getKey());
+                entry.setMode(UnixStat.FILE_FLAG | mode(file));
+                entry.setModTime(lastModified(file));
+                entry.setSize(size(file));
+                setOwner(entry);
+                out.putNextEntry(entry);
+                copy(file, out);
+                out.closeEntry();
+            }
+
+            out.finish();
+        } finally {
+            FileUtils.close(out);
+        }
+    }
+
+    /**
+     * @return The names of all directories, the planned ones and the
+     * parents of all files, sorted so parents come first
+     */
+    private List directories() {
+        TreeSet dirs = new TreeSet();
+
+        for (Iterator itor = plan.getDirectories().iterator(); itor.hasNext(); ) {
+            dirs.add(name((File) itor.next()) + "/");
+        }
+
+        for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+            String name = name(((BundlePlan.Entry) itor.next()).getDestination());
+
+            for (int i = name.lastIndexOf('/'); i > 0; i = name.lastIndexOf('/', i - 1)) {
+                dirs.add(name.substring(0, i + 1));
+            }
+        }
+
+        return new ArrayList(dirs);
+    }
+
+    /**
+     * @return The files by entry name, sorted
+     */
+    private Map files() {
+        Map files = new TreeMap();
+
+        for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+            files.put(name(entry.getDestination()), entry);
+        }
+
+        return files;
+    }
+
+    /**
+     * @return The entry name of a bundle file, starting with the name of
+     * the bundle directory
+     */
+    private String name(File f) {
+        String root = bundleDir.getAbsolutePath();
+        String path = f.getAbsolutePath();
+
+        if (path.startsWith(root)) {
+            path = path.substring(root.length());
+        }
+
+        return bundleDir.getName() + path.replace(File.separatorChar, '/');
+    }
+
+    private static int mode(BundlePlan.Entry entry) {
+        return entry.isExecutable() ? EXECUTABLE_MODE : FILE_MODE;
+    }
+
+    private long lastModified(BundlePlan.Entry entry) {
+        return (entry.getSource() != null && !reproducible) ? entry.getSource().lastModified() : time;
+    }
+
+    private long zipEntryTime(long t) {
+        return reproducible ? zipTime(t) : t;
+    }
+
+    private void setOwner(TarEntry entry) {
+        if (reproducible) {
+            entry.setUserName("");
+            entry.setGroupName("");
+            entry.setUserId(0);
+            entry.setGroupId(0);
+        }
+    }
+
+    /**
+     * @return The file an entry is read from, or null if generated
+     */
+    private File source(BundlePlan.Entry entry) {
+        return (entry.getRewrite() != null) ? (File) rewritten.get(entry) : entry.getSource();
+    }
+
+    private long size(BundlePlan.Entry entry) throws IOException {
+        File source = source(entry);
+
+        if (source == null) {
+            return entry.getContent().length;
+        }
+
+        if (!source.isFile()) {
+            throw new IOException("\"" + source + "\" is not a file");
+        }
+
+        return source.length();
+    }
+
+    private void copy(BundlePlan.Entry entry, OutputStream out) throws IOException {
+        File source = source(entry);
+
+        if (source == null) {
+            out.write(entry.getContent());
+            return;
+        }
+
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(source);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            FileUtils.close(in);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.Base64Converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * <p>Describes a {@link BundlePlan} as a text or JSON document: every
+ * directory, every file with its mode and source, the file it is linked to,
+ * if any, every file made executable, the files written once the plan is
+ * carried out, like the AppCDS archive, and the content of the generated
+ * files.</p>
+ *
+ * <p>Paths are relative to the bundle directory and sorted, so the manifest
+ * of an unchanged bundle is identical from build to build and may be
+ * compared or hashed to detect that nothing needs to be rebuilt. Copied
+ * files are identified by source path, size and modification time, jars
+ * rewritten by JarBundler by how they are rewritten and by their sources.</p>
+ */
+class BundleManifest {
+
+    // Manifest formats
+    static final String FORMAT_TEXT = "text";
+    static final String FORMAT_JSON = "json";
+
+    // Unix modes of the bundle files
+    static final String MODE_EXECUTABLE = "0755";
+    static final String MODE_FILE = "0644";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final BundlePlan plan;
+    private final File bundleDir;
+
+
+    /**
+     * @param plan      The plan of the bundle
+     * @param bundleDir The bundle directory, the root of all paths
+     */
+    BundleManifest(BundlePlan plan, File bundleDir) {
+        this.plan = plan;
+        this.bundleDir = bundleDir;
+    }
+
+    /**
+     * Write the manifest.
+     *
+     * @param out    Receives the manifest
+     * @param format Either "text" or "json"
+     * @throws IOException if the manifest cannot be written
+     */
+    void write(Writer out, String format) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+
+        if (FORMAT_JSON.equals(format)) {
+            writeJSON(writer);
+        } else {
+            writeText(writer);
+        }
+
+        writer.flush();
+
+        if (writer.checkError()) {
+            throw new IOException("Unable to write the manifest");
+        }
+    }
+
+    /**
+     * @param format Either "text" or "json"
+     * @return The manifest as a String
+     */
+    String toString(String format) {
+        StringWriter out = new StringWriter();
+
+        try {
+            write(out, format);
+        } catch (IOException ex) {
+            throw new BuildException(ex);
+        }
+
+        return out.toString();
+    }
+
+    private void writeText(PrintWriter out) {
+        out.print("bundle " + bundleDir.getName() + "\n");
+
+        for (Iterator itor = directories().iterator(); itor.hasNext(); ) {
+            out.print("dir " + itor.next() + "\n");
+        }
+
+        List entries = entries();
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+            File src = entry.getSource();
+
+            out.print("file " + mode(entry) + " " + path(entry.getDestination()));
+
+            if (entry.getLinkTarget() != null) {
+                out.print(" link " + path(entry.getLinkTarget()));
+            }
+
+            if (src != null) {
+                out.print(" <- " + src.getPath() + " " + src.length() + " " + src.lastModified() + "\n");
+            } else if (entry.getRewrite() != null) {
+                out.print(" rewritten " + entry.getRewrite().describe() + "\n");
+
+                for (Iterator sources = entry.getRewrite().getSources().iterator(); sources.hasNext(); ) {
+                    File f = (File) sources.next();
+                    out.print("  <- " + f.getPath() + " " + f.length() + " " + f.lastModified() + "\n");
+                }
+            } else {
+                byte[] content = entry.getContent();
+                out.print(" generated " + content.length + " sha256:" + sha256(content) + "\n");
+            }
+        }
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+            if (entry.isExecutable()) {
+                out.print("chmod ugo+rx " + path(entry.getDestination()) + "\n");
+            }
+        }
+
+        for (Iterator itor = outputs().iterator(); itor.hasNext(); ) {
+            out.print("output " + itor.next() + "\n");
+        }
+
+        // The generated files themselves, binary content in base64
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+            if (entry.getContent() == null) {
+                continue;
+            }
+
+            byte[] content = entry.getContent();
+            String text = decode(content);
+
+            out.print("--- " + path(entry.getDestination())
+                + ((text == null) ? " base64" : "") + "\n");
+            out.print((text == null) ? new Base64Converter().encode(content) + "\n" : text);
+
+            if (text != null && !text.endsWith("\n")) {
+                out.print("\n");
+            }
+        }
+    }
+
+    private void writeJSON(PrintWriter out) {
+        out.print("{\n");
+        out.print("  \"bundle\": " + quote(bundleDir.getName()) + ",\n");
+
+        out.print("  \"directories\": [");
+        String separator = "\n";
+
+        for (Iterator itor = directories().iterator(); itor.hasNext(); ) {
+            out.print(separator + "    " + quote((String) itor.next()));
+            separator = ",\n";
+        }
+
+        out.print("\n  ],\n");
+
+        out.print("  \"files\": [");
+        separator = "\n";
+        List entries = entries();
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+            File src = entry.getSource();
+
+            out.print(separator + "    {\"path\": " + quote(path(entry.getDestination()))
+                + ", \"mode\": " + quote(mode(entry)));
+
+            if (entry.getLinkTarget() != null) {
+                out.print(", \"link\": " + quote(path(entry.getLinkTarget())));
+            }
+
+            if (src != null) {
+                out.print(", \"source\": " + quote(src.getPath()) + ", \"size\": " + src.length()
+                    + ", \"lastModified\": " + src.lastModified() + "}");
+            } else if (entry.getRewrite() != null) {
+                out.print(", \"rewrite\": " + quote(entry.getRewrite().describe()) + ", \"sources\": [");
+                String sourceSeparator = "";
+
+                for (Iterator sources = entry.getRewrite().getSources().iterator(); sources.hasNext(); ) {
+                    File f = (File) sources.next();
+                    out.print(sourceSeparator + "{\"source\": " + quote(f.getPath()) + ", \"size\": " + f.length()
+                        + ", \"lastModified\": " + f.lastModified() + "}");
+                    sourceSeparator = ", ";
+                }
+
+                out.print("]}");
+            } else {
+                byte[] content = entry.getContent();
+                String text = decode(content);
+
+                out.print(", \"size\": " + content.length + ", \"sha256\": " + quote(sha256(content)));
+
+                if (text != null) {
+                    out.print(", \"content\": " + quote(text) + "}");
+                } else {
+                    out.print(", \"base64\": " + quote(new Base64Converter().encode(content)) + "}");
+                }
+            }
+
+            separator = ",\n";
+        }
+
+        out.print("\n  ],\n");
+
+        out.print("  \"chmod\": [");
+        separator = "\n";
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+            if (entry.isExecutable()) {
+                out.print(separator + "    " + quote(path(entry.getDestination())));
+                separator = ",\n";
+            }
+        }
+
+        out.print("\n  ],\n");
+
+        out.print("  \"outputs\": [");
+        separator = "\n";
+
+        for (Iterator itor = outputs().iterator(); itor.hasNext(); ) {
+            out.print(separator + "    " + quote((String) itor.next()));
+            separator = ",\n";
+        }
+
+        out.print("\n  ]\n");
+        out.print("}\n");
+    }
+
+    private List directories() {
+        List dirs = new ArrayList();
+
+        for (Iterator itor = plan.getDirectories().iterator(); itor.hasNext(); ) {
+            String path = path((File) itor.next());
+
+            // The bundle directory itself
+            if (path.length() > 0) {
+                dirs.add(path);
+            }
+        }
+
+        Collections.sort(dirs);
+        return dirs;
+    }
+
+    private List outputs() {
+        List outputs = new ArrayList();
+
+        for (Iterator itor = plan.getOutputs().iterator(); itor.hasNext(); ) {
+            outputs.add(path((File) itor.next()));
+        }
+
+        Collections.sort(outputs);
+        return outputs;
+    }
+
+    private List entries() {
+        List entries = new ArrayList(plan.getEntries());
+
+        Collections.sort(entries, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return path(((BundlePlan.Entry) o1).getDestination())
+                    .compareTo(path(((BundlePlan.Entry) o2).getDestination()));
+            }
+        });
+
+        return entries;
+    }
+
+    /**
+     * @return The path of a bundle file relative to the bundle directory,
+     * with forward slashes
+     */
+    private String path(File f) {
+        String root = bundleDir.getAbsolutePath();
+        String path = f.getAbsolutePath();
+
+        if (path.startsWith(root)) {
+            path = path.substring(root.length());
+        }
+
+        path = path.replace(File.separatorChar, '/');
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    static String mode(BundlePlan.Entry entry) {
+        return entry.isExecutable() ? MODE_EXECUTABLE : MODE_FILE;
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            return ContentCache.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+    /**
+     * @return The content as a String if it is UTF-8 encoded text, or null
+     */
+    private static String decode(byte[] content) {
+        String text;
+
+        try {
+            text = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(content)).toString();
+        } catch (CharacterCodingException ex) {
+            return null;
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 && c != '\n' && c != '\r' && c != '\t') {
+                return null;
+            }
+        }
+
+        return text;
+    }
+
+    static String quote(String s) {
+        StringBuffer sb = new StringBuffer(s.length() + 2);
+        sb.append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        String hex = Integer.toHexString(c);
+                        sb.append("\\u");
+                        for (int j = hex.length(); j < 4; j++) {
+                            sb.append('0');
+                        }
+                        sb.append(hex);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+
+        sb.append('"');
+        return sb.toString();
+    }
+}
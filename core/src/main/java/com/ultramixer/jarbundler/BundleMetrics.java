@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.Project;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * <p>Wall time, number of files and bytes written for every phase of a
+ * bundle build.</p>
+ *
+ * <p>The time of a phase includes planning it (scanning filesets, rendering
+ * the Info.plist) as well as writing its files. Files and bytes only count
+ * what was actually written: files which were up to date in an incremental
+ * build are not counted, and neither are the files removed by deleting a
+ * previous bundle. The "dirs" phase counts the directories created, the
+ * "archive" and "appcds" phases the archive written. The "analyze" phase
+ * only reads the jars, the "uptodate" phase only scans the inputs.</p>
+ */
+class BundleMetrics {
+
+    // Phases of a bundle build, in the order they are reported
+    static final String DELETE = "delete";
+    static final String DIRS = "dirs";
+    static final String ICON = "icon";
+    static final String JAR = "jar";
+    static final String EXEC = "exec";
+    static final String RESOURCE = "resource";
+    static final String HELPBOOKS = "helpbooks";
+    static final String STUB = "stub";
+    static final String RUNTIME = "runtime";
+    static final String INFO_PLIST = "infoplist";
+    static final String PKG_INFO = "pkginfo";
+    static final String ANALYZE = "analyze";
+    static final String ARCHIVE = "archive";
+    static final String APPCDS = "appcds";
+    static final String UP_TO_DATE = "uptodate";
+
+    // The phases which place files into the bundle, in build order
+    static final String[] FILE_PHASES = {
+        ICON, JAR, EXEC, RESOURCE, HELPBOOKS, STUB, RUNTIME, INFO_PLIST, PKG_INFO
+    };
+
+    private final Map phases = new LinkedHashMap();
+    private long total = 0;
+
+
+    BundleMetrics() {
+        phase(DELETE);
+        phase(DIRS);
+
+        for (int i = 0; i < FILE_PHASES.length; i++) {
+            phase(FILE_PHASES[i]);
+        }
+    }
+
+    /**
+     * Add to the time of a phase.
+     *
+     * @param phase The phase
+     * @param nanos Wall time in nanoseconds
+     */
+    void addTime(String phase, long nanos) {
+        phase(phase).nanos += nanos;
+    }
+
+    /**
+     * Add to the files and bytes written by a phase.
+     *
+     * @param phase The phase
+     * @param files The number of files
+     * @param bytes Their total size
+     */
+    void addFiles(String phase, int files, long bytes) {
+        Phase p = phase(phase);
+        p.files += files;
+        p.bytes += bytes;
+    }
+
+    /**
+     * @param nanos Wall time of the whole build in nanoseconds
+     */
+    void setTotalTime(long nanos) {
+        this.total = nanos;
+    }
+
+    /**
+     * @return One line per phase and a line with the totals, for the log
+     */
+    List lines() {
+        List lines = new ArrayList();
+        int files = 0;
+        long bytes = 0;
+
+        for (Iterator itor = phases.values().iterator(); itor.hasNext(); ) {
+            Phase p = (Phase) itor.next();
+            lines.add(line(p.name, p.nanos, p.files, p.bytes));
+            files += p.files;
+            bytes += p.bytes;
+        }
+
+        lines.add(line("total", total, files, bytes));
+        return lines;
+    }
+
+    /**
+     * @return The line with the totals, the last of {@link #lines()}
+     */
+    String totalLine() {
+        List lines = lines();
+        return (String) lines.get(lines.size() - 1);
+    }
+
+    private static String line(String name, long nanos, int files, long bytes) {
+        return String.format(Locale.ENGLISH, "%-10s %10s ms %7d files %12d bytes",
+            name, millis(nanos), files, bytes);
+    }
+
+    /**
+     * Write the metrics as a JSON document.
+     *
+     * @param out        The writer, flushed but not closed
+     * @param bundleName The name of the bundle the metrics are about
+     */
+    void write(Writer out, String bundleName) {
+        PrintWriter pw = new PrintWriter(out);
+
+        pw.print("{\n");
+        pw.print("  \"bundle\": " + BundleManifest.quote(bundleName) + ",\n");
+        pw.print("  \"timeMillis\": " + millis(total) + ",\n");
+        pw.print("  \"phases\": [");
+
+        String separator = "\n";
+
+        for (Iterator itor = phases.values().iterator(); itor.hasNext(); ) {
+            Phase p = (Phase) itor.next();
+            pw.print(separator + "    {\"name\": " + BundleManifest.quote(p.name)
+                + ", \"timeMillis\": " + millis(p.nanos)
+                + ", \"files\": " + p.files + ", \"bytes\": " + p.bytes + "}");
+            separator = ",\n";
+        }
+
+        pw.print("\n  ]\n");
+        pw.print("}\n");
+        pw.flush();
+    }
+
+    /**
+     * Set the Ant properties <i>prefix.phase</i>.time (milliseconds),
+     * <i>prefix.phase</i>.files and <i>prefix.phase</i>.bytes for every
+     * phase, and <i>prefix</i>.total.time. Like all Ant properties they
+     * are only set if not set already.
+     *
+     * @param project The project
+     * @param prefix  The prefix of the property names
+     */
+    void setProperties(Project project, String prefix) {
+        for (Iterator itor = phases.values().iterator(); itor.hasNext(); ) {
+            Phase p = (Phase) itor.next();
+            String name = prefix + "." + p.name;
+
+            project.setNewProperty(name + ".time", millis(p.nanos));
+            project.setNewProperty(name + ".files", Integer.toString(p.files));
+            project.setNewProperty(name + ".bytes", Long.toString(p.bytes));
+        }
+
+        project.setNewProperty(prefix + ".total.time", millis(total));
+    }
+
+    private Phase phase(String name) {
+        Phase p = (Phase) phases.get(name);
+
+        if (p == null) {
+            p = new Phase(name);
+            phases.put(name, p);
+        }
+
+        return p;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", Double.valueOf(nanos / 1000000.0));
+    }
+
+
+    /**
+     * The measurements of a single phase
+     */
+    private static class Phase {
+
+        private final String name;
+        private long nanos = 0;
+        private int files = 0;
+        private long bytes = 0;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+}
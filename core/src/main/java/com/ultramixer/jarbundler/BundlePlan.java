@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * <p>Everything an application bundle consists of: its directories, the
+ * files copied into it and the files generated for it.</p>
+ *
+ * <p>A plan is assembled by a {@link Builder} before anything is written to
+ * disk. Every destination occurs only once; adding the same file twice is
+ * harmless, but two different sources for the same destination are
+ * reported as a conflict instead of one silently overwriting the other.
+ * Once built, a plan cannot be changed.</p>
+ *
+ * <p>Every file is tagged with the {@link BundleMetrics} phase it was
+ * added in, so the files can be copied and measured phase by phase.</p>
+ */
+class BundlePlan {
+
+    private final List directories;
+    private final List entries;
+    private final List outputs;
+    private final Set paths;
+
+
+    private BundlePlan(List directories, List entries, List outputs) {
+        this.directories = Collections.unmodifiableList(directories);
+        this.entries = Collections.unmodifiableList(entries);
+        this.outputs = Collections.unmodifiableList(outputs);
+
+        Set p = new HashSet();
+
+        for (Iterator itor = outputs.iterator(); itor.hasNext(); ) {
+            p.add(((File) itor.next()).getPath());
+        }
+
+        for (Iterator itor = directories.iterator(); itor.hasNext(); ) {
+            p.add(((File) itor.next()).getPath());
+        }
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            p.add(((Entry) itor.next()).getDestination().getPath());
+        }
+
+        this.paths = Collections.unmodifiableSet(p);
+    }
+
+    /**
+     * @return The directories of the bundle as Files, parents first
+     */
+    List getDirectories() {
+        return directories;
+    }
+
+    /**
+     * @return The files of the bundle as Entries, in the order they were added
+     */
+    List getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The files written into the bundle after it has been copied,
+     * e.g. the AppCDS archive
+     */
+    List getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @param f A file or directory
+     * @return true if the file or directory is part of the bundle
+     */
+    boolean contains(File f) {
+        return paths.contains(normalize(f).getPath());
+    }
+
+    private static File normalize(File f) {
+        return FileUtils.getFileUtils().normalize(f.getAbsolutePath());
+    }
+
+
+    /**
+     * A single file of the bundle, either copied from a source file or
+     * generated
+     */
+    static class Entry {
+
+        private final File source;
+        private final byte[] content;
+        private final JarRewrite rewrite;
+        private final File destination;
+        private final boolean executable;
+        private final String phase;
+        private final File linkTarget;
+
+        private Entry(File source, byte[] content, JarRewrite rewrite, File destination,
+                      boolean executable, String phase, File linkTarget) {
+            this.source = source;
+            this.content = content;
+            this.rewrite = rewrite;
+            this.destination = destination;
+            this.executable = executable;
+            this.phase = phase;
+            this.linkTarget = linkTarget;
+        }
+
+        /**
+         * @return The file copied into the bundle, or null if generated
+         */
+        File getSource() {
+            return source;
+        }
+
+        /**
+         * @return The content of a generated file, or null if copied or
+         *         rewritten
+         */
+        byte[] getContent() {
+            return (content == null) ? null : content.clone();
+        }
+
+        /**
+         * @return How a jar written by JarBundler is made, or null
+         */
+        JarRewrite getRewrite() {
+            return rewrite;
+        }
+
+        File getDestination() {
+            return destination;
+        }
+
+        boolean isExecutable() {
+            return executable;
+        }
+
+        /**
+         * @return The phase the file was first added in, or null
+         */
+        String getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return Another file of the bundle with the same content, which
+         *         this file is hard linked to instead of being copied, or null
+         */
+        File getLinkTarget() {
+            return linkTarget;
+        }
+
+        private boolean sameContent(Entry other) {
+            if (source != null) {
+                return source.equals(other.source);
+            }
+            if (rewrite != null) {
+                return rewrite == other.rewrite;
+            }
+            return other.content != null && Arrays.equals(content, other.content);
+        }
+
+        private String describe() {
+            if (source != null) {
+                return "\"" + source + "\"";
+            }
+            return (rewrite != null) ? "a rewritten jar" : "generated content";
+        }
+    }
+
+
+    /**
+     * Collects the directories and files of a bundle
+     */
+    static class Builder {
+
+        private final Map directories = new LinkedHashMap();
+        private final Map entries = new LinkedHashMap();
+        private final Map outputs = new LinkedHashMap();
+        private String phase = null;
+
+        /**
+         * @param phase The phase of the files added from now on
+         */
+        void setPhase(String phase) {
+            this.phase = phase;
+        }
+
+        /**
+         * Add a directory of the bundle.
+         *
+         * @param dir The directory
+         */
+        void addDirectory(File dir) {
+            File d = normalize(dir);
+            directories.put(d.getPath(), d);
+        }
+
+        /**
+         * Add a file to be copied into the bundle.
+         *
+         * @param src        The source file
+         * @param dest       The destination inside the bundle
+         * @param executable If true, the file is made executable
+         * @throws BuildException if a different file has already been added
+         *                        for the same destination
+         */
+        void addFile(File src, File dest, boolean executable) throws BuildException {
+            add(new Entry(normalize(src), null, null, normalize(dest), executable, phase, null));
+        }
+
+        /**
+         * Add a generated file to the bundle.
+         *
+         * @param content The file content
+         * @param dest    The destination inside the bundle
+         * @throws BuildException if different content has already been added
+         *                        for the same destination
+         */
+        void addContent(byte[] content, File dest) throws BuildException {
+            add(new Entry(null, content.clone(), null, normalize(dest), false, phase, null));
+        }
+
+        /**
+         * Add a jar which is written by JarBundler, e.g. merged from others.
+         *
+         * @param rewrite How the jar is made
+         * @param dest    The destination inside the bundle
+         * @throws BuildException if a different file has already been added
+         *                        for the same destination
+         */
+        void addRewrite(JarRewrite rewrite, File dest) throws BuildException {
+            add(new Entry(null, null, rewrite, normalize(dest), false, phase, null));
+        }
+
+        /**
+         * Add a file which is written into the bundle only after the plan
+         * has been carried out, such as an AppCDS archive. It is part of
+         * the bundle, so incremental builds keep it, but it has neither a
+         * source nor content.
+         *
+         * @param dest The destination inside the bundle
+         * @throws BuildException if a file has already been added for the
+         *                        same destination
+         */
+        void addOutput(File dest) throws BuildException {
+            File d = normalize(dest);
+
+            if (entries.containsKey(d.getPath()) || directories.containsKey(d.getPath())) {
+                throw new BuildException("Conflicting files for \"" + d + "\"");
+            }
+
+            outputs.put(d.getPath(), d);
+        }
+
+        /**
+         * Hard link a copied file to another copied file of the bundle with
+         * the same content, instead of copying it as well.
+         *
+         * @param dest   The destination of the file to link
+         * @param target The destination of the file to link to, which must
+         *               not be linked itself
+         * @throws BuildException if either file has not been added as a copy
+         *                        or the target is linked itself
+         */
+        void link(File dest, File target) throws BuildException {
+            Entry entry = getEntry(dest);
+            Entry to = getEntry(target);
+
+            if (entry == null || to == null || entry.source == null || to.source == null
+                || to.linkTarget != null || entry.executable != to.executable) {
+                throw new BuildException("Cannot link \"" + dest + "\" to \"" + target + "\"");
+            }
+
+            entries.put(entry.destination.getPath(), new Entry(entry.source, null, null,
+                entry.destination, entry.executable, entry.phase, to.destination));
+        }
+
+        /**
+         * @param phase A phase
+         * @return The files first added in the phase so far, in the order
+         *         they were added
+         */
+        List getEntries(String phase) {
+            List list = new ArrayList();
+
+            for (Iterator itor = entries.values().iterator(); itor.hasNext(); ) {
+                Entry entry = (Entry) itor.next();
+
+                if (phase.equals(entry.phase)) {
+                    list.add(entry);
+                }
+            }
+
+            return list;
+        }
+
+        /**
+         * @param dest A destination inside the bundle
+         * @return The file added for the destination so far, or null
+         */
+        Entry getEntry(File dest) {
+            return (Entry) entries.get(normalize(dest).getPath());
+        }
+
+        private void add(Entry entry) throws BuildException {
+            String key = entry.destination.getPath();
+            Entry previous = (Entry) entries.get(key);
+
+            if (directories.containsKey(key)) {
+                throw new BuildException("Cannot place " + entry.describe() + " at \""
+                    + entry.destination + "\", it is a directory of the bundle");
+            }
+
+            if (outputs.containsKey(key)) {
+                throw new BuildException("Conflicting files for \"" + entry.destination
+                    + "\": " + entry.describe() + " and a file generated after the build");
+            }
+
+            if (previous == null) {
+                entries.put(key, entry);
+            } else if (previous.sameContent(entry)) {
+
+                // The same file twice, e.g. as exec and resource. A link
+                // would share the permissions, so executables are copied
+                if (entry.executable && !previous.executable) {
+                    entries.put(key, new Entry(previous.source, previous.content, previous.rewrite,
+                        previous.destination, true, previous.phase, null));
+                }
+            } else {
+                throw new BuildException("Conflicting files for \"" + entry.destination
+                    + "\": " + previous.describe() + " and " + entry.describe());
+            }
+        }
+
+        /**
+         * @return The plan, which is not affected by later changes to this builder
+         */
+        BundlePlan build() {
+            return new BundlePlan(new ArrayList(directories.values()),
+                new ArrayList(entries.values()), new ArrayList(outputs.values()));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * <p>State shared by all bundles of one {@link JarBundlers} batch, so work
+ * common to the bundles is done once.</p>
+ *
+ * <ul>
+ * <li>Every fileset is scanned once, however many bundles refer to it,
+ * directly or by <code>refid</code>.</li>
+ * <li>Files are copied by one pool of workers instead of one pool per
+ * bundle.</li>
+ * <li>Bundles using the same "cachedir" share one {@link ContentCache},
+ * which is loaded once and saved once the batch is done.</li>
+ * </ul>
+ *
+ * <p>All methods are safe to be called from several bundles at once.</p>
+ */
+class BundleSession {
+
+    private final int threads;
+
+    // Included files of every fileset
+    private final FileSetScans scans = new FileSetScans();
+
+    // Content caches by cache directory
+    private final Map caches = new LinkedHashMap();
+
+    private ExecutorService copyPool = null;
+
+
+    /**
+     * @param threads The number of files copied concurrently, over all bundles
+     */
+    BundleSession(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * The files included by a fileset. A fileset referenced by
+     * <code>refid</code> is scanned as the fileset it refers to. While one
+     * bundle scans a fileset, other bundles asking for it wait for the
+     * result.
+     *
+     * @param fs The fileset
+     * @return The included files, relative to the fileset's directory
+     */
+    String[] scan(FileSet fs) {
+        return scans.scan(fs);
+    }
+
+    /**
+     * @return The workers copying the files of all bundles
+     */
+    synchronized ExecutorService getCopyPool() {
+        if (copyPool == null) {
+            copyPool = Executors.newFixedThreadPool(threads, new SessionThreadFactory());
+        }
+
+        return copyPool;
+    }
+
+    /**
+     * @param dir     The cache directory
+     * @param maxSize The maximum size of the stored objects in bytes
+     * @return The loaded cache of the directory, created by the first
+     *         bundle asking for it
+     * @throws BuildException if the cache directory cannot be created
+     */
+    synchronized ContentCache getCache(File dir, long maxSize) throws BuildException {
+        File key = dir.getAbsoluteFile();
+        ContentCache cache = (ContentCache) caches.get(key);
+
+        if (cache == null) {
+            cache = new ContentCache(key, maxSize);
+            cache.load();
+            caches.put(key, cache);
+        }
+
+        return cache;
+    }
+
+    /**
+     * Save the caches and stop the copy workers.
+     *
+     * @return One line per cache with the files reused, stored and evicted
+     * @throws BuildException if a cache index cannot be written
+     */
+    synchronized List close() throws BuildException {
+        List lines = new ArrayList();
+
+        try {
+            for (Iterator itor = caches.values().iterator(); itor.hasNext(); ) {
+                ContentCache cache = (ContentCache) itor.next();
+                int evicted = cache.save();
+
+                lines.add("Cache \"" + cache.getDir() + "\": " + cache.getHits() + " files reused, "
+                    + cache.getStored() + " files stored, " + evicted + " files evicted");
+            }
+        } finally {
+            caches.clear();
+            scans.clear();
+
+            if (copyPool != null) {
+                copyPool.shutdownNow();
+                copyPool = null;
+            }
+        }
+
+        return lines;
+    }
+
+
+    /**
+     * Creates named daemon threads for the shared copy workers
+     */
+    private static class SessionThreadFactory implements ThreadFactory {
+
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jarbundler-session-copy-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
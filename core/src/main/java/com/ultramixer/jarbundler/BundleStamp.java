@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+
+/**
+ * <p>The fingerprint of everything a bundle was built from, kept in a stamp
+ * file inside the bundle, so a build whose inputs have not changed can be
+ * skipped.</p>
+ *
+ * <p>The fingerprint is normally taken from the inputs of the task before
+ * the bundle is planned, see {@link #ofInputs(File, File, String)}, so an
+ * up to date bundle costs no more than scanning the filesets: no jar is
+ * analyzed or hashed, no icon encoded and no runtime linked. Without the
+ * configuration of the task it is taken from the plan instead, see
+ * {@link #ofPlan(File, BundlePlan, File, String)}.</p>
+ *
+ * <p>The stamp file holds the fingerprint followed by the path of every
+ * file of the bundle, relative to the bundle directory, so a bundle whose
+ * files have been deleted is never up to date.</p>
+ */
+class BundleStamp {
+
+    // Name of the stamp file in Contents/Resources
+    static final String FILE_NAME = ".jarbundler-stamp";
+
+    private final File file;
+    private final File bundleDir;
+    private final String fingerprint;
+
+
+    private BundleStamp(File file, File bundleDir, String fingerprint) {
+        this.file = file;
+        this.bundleDir = bundleDir;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @param file      The stamp file
+     * @param bundleDir The bundle directory
+     * @param inputs    Describes the attributes and nested elements of the
+     *                  task and the path, size and modification time of
+     *                  every file the bundle is built from
+     * @return A stamp of the inputs
+     */
+    static BundleStamp ofInputs(File file, File bundleDir, String inputs) {
+        return new BundleStamp(file, bundleDir, sha256(inputs));
+    }
+
+    /**
+     * The fingerprint is the SHA-256 of the text {@link BundleManifest} of
+     * the plan, which names every copied file by path, size and modification
+     * time and holds the content of every generated file, and so the
+     * Info.plist with all attributes and nested elements of the task, plus
+     * the fingerprints of the rewritten jars and the options which change
+     * the bundle without showing in the plan.
+     *
+     * @param file      The stamp file
+     * @param plan      The plan of the bundle
+     * @param bundleDir The bundle directory
+     * @param options   Options which change the bundle but not its plan
+     * @return A stamp of the plan
+     */
+    static BundleStamp ofPlan(File file, BundlePlan plan, File bundleDir, String options) {
+        StringBuffer sb = new StringBuffer(new BundleManifest(plan, bundleDir).toString(BundleManifest.FORMAT_TEXT));
+
+        for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+            if (entry.getRewrite() != null) {
+                sb.append("rewrite ").append(entry.getRewrite().getFingerprint()).append('\n');
+            }
+        }
+
+        sb.append("options ").append(options).append('\n');
+
+        return new BundleStamp(file, bundleDir, sha256(sb.toString()));
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return true if the stamp file holds the fingerprint and every file
+     *         it lists exists
+     */
+    boolean isUpToDate() {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try {
+            String[] lines = new String(Files.readAllBytes(file.toPath()), "UTF-8").split("\n");
+
+            if (!lines[0].equals(fingerprint)) {
+                return false;
+            }
+
+            for (int i = 1; i < lines.length; i++) {
+                if (!new File(bundleDir, lines[i]).isFile()) {
+                    return false;
+                }
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the stamp file, so a build which fails halfway never leaves a
+     * stamp behind that matches.
+     *
+     * @throws BuildException if the stamp file cannot be deleted
+     */
+    void delete() throws BuildException {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException ex) {
+            throw new BuildException("Unable to delete \"" + file + "\": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Write the fingerprint and the files of the bundle to the stamp file.
+     *
+     * @param plan The plan the bundle was built from, whose outputs have
+     *             been written
+     * @throws BuildException if the stamp file cannot be written
+     */
+    void write(BundlePlan plan) throws BuildException {
+        StringBuffer sb = new StringBuffer(fingerprint).append('\n');
+
+        for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+            sb.append(relativePath(((BundlePlan.Entry) itor.next()).getDestination())).append('\n');
+        }
+
+        for (Iterator itor = plan.getOutputs().iterator(); itor.hasNext(); ) {
+            File f = (File) itor.next();
+
+            if (!f.equals(file)) {
+                sb.append(relativePath(f)).append('\n');
+            }
+        }
+
+        try {
+            Files.write(file.toPath(), sb.toString().getBytes("UTF-8"));
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write \"" + file + "\": " + ex.getMessage());
+        }
+    }
+
+    private String relativePath(File f) {
+        return bundleDir.toPath().relativize(f.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String sha256(String s) {
+        try {
+            return BundleManifest.sha256(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new BuildException(ex);
+        }
+    }
+}
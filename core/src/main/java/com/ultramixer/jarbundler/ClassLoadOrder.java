@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * <p>The order in which an application loads its classes, read from the
+ * log of a training run. Three formats are understood, line by line:</p>
+ *
+ * <ul>
+ * <li><code>-Xlog:class+load</code>:
+ * <code>[0.012s][info][class,load] com.example.Main source: file:/...</code></li>
+ * <li><code>-verbose:class</code> of Java 8:
+ * <code>[Loaded com.example.Main from file:/...]</code></li>
+ * <li>a plain list of class names, one per line, such as written by
+ * <code>-XX:DumpLoadedClassList</code></li>
+ * </ul>
+ *
+ * <p>Other lines are ignored, so the log may be mixed with the
+ * application's output. Only the first load of a class counts.</p>
+ */
+class ClassLoadOrder {
+
+    private final File file;
+
+    // Jar entry name -> position in the load order, as Integer
+    private final Map positions = new HashMap();
+
+    private String fingerprint = null;
+
+
+    private ClassLoadOrder(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param file The class load log
+     * @return The load order of the classes in the log
+     * @throws BuildException if the log cannot be read
+     */
+    static ClassLoadOrder load(File file) throws BuildException {
+        ClassLoadOrder order = new ClassLoadOrder(file);
+        BufferedReader in = null;
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String name = className(line);
+
+                if (name != null) {
+                    String entry = name.replace('.', '/') + ".class";
+
+                    if (!order.positions.containsKey(entry)) {
+                        order.positions.put(entry, Integer.valueOf(order.positions.size()));
+                        md.update(entry.getBytes("UTF-8"));
+                        md.update((byte) '\n');
+                    }
+                }
+            }
+
+            order.fingerprint = ContentCache.toHex(md.digest());
+        } catch (IOException ex) {
+            throw new BuildException("Unable to read class load order \"" + file + "\": " + ex.getMessage(), ex);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new BuildException(ex);
+        } finally {
+            FileUtils.close(in);
+        }
+
+        return order;
+    }
+
+    /**
+     * @return The name of the class loaded in a line of the log, or null
+     */
+    static String className(String line) {
+        String s = line.trim();
+
+        if (s.startsWith("[Loaded ")) {
+            s = s.substring("[Loaded ".length());
+        } else if (s.startsWith("[")) {
+            // Unified logging, the decorations are followed by the message
+            if (s.indexOf("class,load]") < 0) {
+                return null;
+            }
+            s = s.substring(s.lastIndexOf("] ") + 2);
+        } else if (s.length() == 0 || s.charAt(0) == '#' || s.charAt(0) == '@') {
+            return null;
+        } else if (!isQualified(s)) {
+            // A plain word is more likely output than a class without a package
+            return null;
+        }
+
+        int end = 0;
+        while (end < s.length() && !Character.isWhitespace(s.charAt(end))) {
+            end++;
+        }
+
+        String name = s.substring(0, end);
+
+        // Hidden classes, e.g. lambdas, have no class file
+        if (name.length() == 0 || name.indexOf("/0x") >= 0) {
+            return null;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+
+            if (c != '.' && c != '/' && !Character.isJavaIdentifierPart(c)) {
+                return null;
+            }
+        }
+
+        return name.endsWith(".") || name.endsWith("/") ? null : name;
+    }
+
+    private static boolean isQualified(String s) {
+        for (int i = 0; i < s.length() && !Character.isWhitespace(s.charAt(i)); i++) {
+            if (s.charAt(i) == '.' || s.charAt(i) == '/') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of classes in the load order
+     */
+    int size() {
+        return positions.size();
+    }
+
+    /**
+     * @param entryName The name of a jar entry
+     * @return The position of the class in the load order, or -1 if it is
+     *         not loaded during startup
+     */
+    int indexOf(String entryName) {
+        Integer position = (Integer) positions.get(entryName);
+        return (position != null) ? position.intValue() : -1;
+    }
+
+    /**
+     * @return A SHA-256 of the load order
+     */
+    String getFingerprint() {
+        return fingerprint;
+    }
+}
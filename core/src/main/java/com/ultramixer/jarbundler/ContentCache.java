@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * <p>A content addressed store of the files placed into application bundles,
+ * shared by all builds using the same cache directory.</p>
+ *
+ * <p>Every file is stored once, named by the SHA-256 digest of its content,
+ * in <code>objects/xx/digest</code>. The <code>index</code> file remembers
+ * the digest of every source file by path, size and modification time, so
+ * unchanged sources are not read again, and when every object was last
+ * used. Once a build is done {@link #save()} evicts the least recently used
+ * objects until the store fits into its size limit.</p>
+ *
+ * <p>The methods are safe to be called from several copy workers at once.
+ * Objects are written to a temporary file and renamed into place, so
+ * concurrent builds sharing a cache never see partial objects; the index
+ * is a hint only and the last build to save it wins.</p>
+ */
+class ContentCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final String INDEX_FILE = "index";
+
+    // Index line prefixes
+    private static final String SOURCE_ENTRY = "S";
+    private static final String OBJECT_ENTRY = "O";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final File objectsDir;
+    private final File tmpDir;
+    private final long maxSize;
+
+    // Source path to SourceEntry
+    private final Map sources = new HashMap();
+
+    // Digest to ObjectEntry
+    private final Map objects = new HashMap();
+
+    // Statistics of this build
+    private int hits = 0;
+    private int stored = 0;
+
+
+    /**
+     * @param dir     The cache directory
+     * @param maxSize The maximum size of the stored objects in bytes
+     */
+    ContentCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.objectsDir = new File(dir, "objects");
+        this.tmpDir = new File(dir, "tmp");
+        this.maxSize = maxSize;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * Create the cache directory and read the index, if any. An index which
+     * cannot be read is ignored.
+     *
+     * @throws BuildException if the cache directory cannot be created
+     */
+    void load() throws BuildException {
+        if (!objectsDir.isDirectory() && !objectsDir.mkdirs()) {
+            throw new BuildException("Unable to create cache directory " + objectsDir);
+        }
+
+        if (!tmpDir.isDirectory() && !tmpDir.mkdirs()) {
+            throw new BuildException("Unable to create cache directory " + tmpDir);
+        }
+
+        File index = new File(dir, INDEX_FILE);
+
+        if (!index.isFile()) {
+            return;
+        }
+
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+
+                if (fields.length == 5 && SOURCE_ENTRY.equals(fields[0])) {
+                    sources.put(fields[4], new SourceEntry(Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), fields[3]));
+                } else if (fields.length == 4 && OBJECT_ENTRY.equals(fields[0])) {
+                    objects.put(fields[1], new ObjectEntry(fields[1],
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                }
+            }
+        } catch (IOException ex) {
+            sources.clear();
+            objects.clear();
+        } catch (NumberFormatException ex) {
+            sources.clear();
+            objects.clear();
+        } finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * Look up a file in the store, adding it if necessary.
+     *
+     * @param src The source file
+     * @return The stored object with the same content as the source file
+     * @throws IOException if the file cannot be read or stored
+     */
+    File get(File src) throws IOException {
+        String digest = lookup(src);
+
+        if (digest != null) {
+            synchronized (this) {
+                hits++;
+            }
+            return objectFile(digest);
+        }
+
+        return store(src);
+    }
+
+    /**
+     * The stored object for a source file, if the source is known not to
+     * have changed since it was stored.
+     *
+     * @param src The source file
+     * @return The stored object or null
+     */
+    File peek(File src) {
+        String digest = lookup(src);
+        return (digest == null) ? null : objectFile(digest);
+    }
+
+    private String lookup(File src) {
+        SourceEntry entry;
+
+        synchronized (this) {
+            entry = (SourceEntry) sources.get(src.getAbsolutePath());
+        }
+
+        if (entry == null || entry.size != src.length() || entry.lastModified != src.lastModified()) {
+            return null;
+        }
+
+        // The object may have been evicted by another build
+        File object = objectFile(entry.digest);
+
+        if (!object.isFile() || object.length() != entry.size) {
+            return null;
+        }
+
+        touch(entry.digest, entry.size);
+        return entry.digest;
+    }
+
+    /**
+     * Hash a file while copying it into a temporary file, then move the
+     * copy into place, so the source is only read once.
+     */
+    private File store(File src) throws IOException {
+        long size = src.length();
+        long lastModified = src.lastModified();
+
+        File tmp = File.createTempFile("object", ".tmp", tmpDir);
+        String digest;
+
+        try {
+            digest = copyAndHash(src, tmp);
+
+            File object = objectFile(digest);
+            File parent = object.getParentFile();
+
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Unable to create directory " + parent);
+            }
+
+            if (object.isFile() && object.length() == size) {
+                synchronized (this) {
+                    hits++;
+                }
+            } else {
+                try {
+                    Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ex) {
+
+                    // Another build may have stored the same content first
+                    if (!object.isFile() || object.length() != size) {
+                        throw ex;
+                    }
+                }
+                synchronized (this) {
+                    stored++;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+
+        synchronized (this) {
+            sources.put(src.getAbsolutePath(), new SourceEntry(size, lastModified, digest));
+        }
+
+        touch(digest, size);
+        return objectFile(digest);
+    }
+
+    private String copyAndHash(File src, File dest) throws IOException {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage());
+        }
+
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            in = new FileInputStream(src);
+            out = new FileOutputStream(dest);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            FileUtils.close(in);
+            FileUtils.close(out);
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param f A file
+     * @return The SHA-256 digest of the file's content as hex digits
+     * @throws IOException if the file cannot be read
+     */
+    static String digest(File f) throws IOException {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage());
+        }
+
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(f);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            FileUtils.close(in);
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param bytes A digest
+     * @return The digest as lower case hex digits
+     */
+    static String toHex(byte[] bytes) {
+        StringBuffer hex = new StringBuffer(bytes.length * 2);
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0x0F, 16));
+            hex.append(Character.forDigit(bytes[i] & 0x0F, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private synchronized void touch(String digest, long size) {
+        objects.put(digest, new ObjectEntry(digest, size, System.currentTimeMillis()));
+    }
+
+    private File objectFile(String digest) {
+        return new File(new File(objectsDir, digest.substring(0, 2)), digest);
+    }
+
+    /**
+     * @return The number of files found in the store during this build
+     */
+    synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of files added to the store during this build
+     */
+    synchronized int getStored() {
+        return stored;
+    }
+
+    /**
+     * Evict the least recently used objects exceeding the size limit and
+     * write the index.
+     *
+     * @return The number of evicted objects
+     * @throws BuildException if the index cannot be written
+     */
+    synchronized int save() throws BuildException {
+
+        // Forget objects removed behind our back
+        for (Iterator itor = objects.values().iterator(); itor.hasNext(); ) {
+            if (!objectFile(((ObjectEntry) itor.next()).digest).isFile()) {
+                itor.remove();
+            }
+        }
+
+        List lru = new ArrayList(objects.values());
+
+        Collections.sort(lru, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long t1 = ((ObjectEntry) o1).lastUsed;
+                long t2 = ((ObjectEntry) o2).lastUsed;
+                return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+        });
+
+        long total = 0;
+
+        for (Iterator itor = lru.iterator(); itor.hasNext(); ) {
+            total += ((ObjectEntry) itor.next()).size;
+        }
+
+        int evicted = 0;
+
+        for (Iterator itor = lru.iterator(); itor.hasNext() && total > maxSize; ) {
+            ObjectEntry entry = (ObjectEntry) itor.next();
+
+            // Bundles linked to the object keep their own link to the data
+            if (objectFile(entry.digest).delete()) {
+                objects.remove(entry.digest);
+                total -= entry.size;
+                evicted++;
+            }
+        }
+
+        // Sources are only worth remembering while their object exists
+        for (Iterator itor = sources.values().iterator(); itor.hasNext(); ) {
+            if (!objects.containsKey(((SourceEntry) itor.next()).digest)) {
+                itor.remove();
+            }
+        }
+
+        writeIndex();
+        return evicted;
+    }
+
+    private void writeIndex() throws BuildException {
+        File index = new File(dir, INDEX_FILE);
+        File tmp = null;
+        PrintWriter out = null;
+
+        try {
+            tmp = File.createTempFile("index", ".tmp", tmpDir);
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+            for (Iterator itor = objects.values().iterator(); itor.hasNext(); ) {
+                ObjectEntry entry = (ObjectEntry) itor.next();
+                out.print(OBJECT_ENTRY + "\t" + entry.digest + "\t" + entry.size + "\t" + entry.lastUsed + "\n");
+            }
+
+            for (Iterator itor = sources.entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+                SourceEntry entry = (SourceEntry) e.getValue();
+                out.print(SOURCE_ENTRY + "\t" + entry.size + "\t" + entry.lastModified + "\t"
+                    + entry.digest + "\t" + e.getKey() + "\n");
+            }
+
+            out.close();
+
+            if (out.checkError()) {
+                throw new IOException("Write error");
+            }
+
+            Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write cache index \"" + index + "\": " + ex.getMessage());
+        } finally {
+            FileUtils.close(out);
+            if (tmp != null && tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+
+    /**
+     * The digest of a source file, valid while its size and modification
+     * time don't change
+     */
+    private static class SourceEntry {
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+
+        SourceEntry(long size, long lastModified, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+
+    /**
+     * A stored object and the time it was last used
+     */
+    private static class ObjectEntry {
+        private final String digest;
+        private final long size;
+        private final long lastUsed;
+
+        ObjectEntry(String digest, long size, long lastUsed) {
+            this.digest = digest;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * <p>Collects the files to be copied into an application bundle and copies
+ * them, optionally using a pool of worker threads.</p>
+ *
+ * <p>Copies are only queued by {@link #add(File, File, boolean)}; nothing
+ * touches the disk before {@link #execute()} is called.</p>
+ *
+ * <p>Instead of copying, files may be hard linked or cloned (reflink) into
+ * the bundle, see {@link #setLinkMode(String)}. Whenever a file cannot be
+ * linked or cloned it is copied. Executables are never hard linked, since
+ * making the link executable would change the permissions of the source
+ * file or cached object it shares.</p>
+ *
+ * <p>Files are copied by {@link FileCopier}, which transfers large files
+ * between channels without passing them through the heap. Copies keep the
+ * modification time of their source, like hard links and clones; a
+ * reproducible build sets the times of the bundle afterwards.</p>
+ *
+ * <p>Files with the same content as another file of the bundle may be
+ * hard linked to it, see {@link #addLink(File, File, File)}.</p>
+ *
+ * <p>Jars which are rewritten rather than copied, see
+ * {@link #addRewrite(JarRewrite, File)}, are written by the same workers.</p>
+ */
+class CopyEngine {
+
+    // Link modes
+    static final String LINK_COPY = "copy";
+    static final String LINK_HARDLINK = "hardlink";
+    static final String LINK_REFLINK = "reflink";
+    static final String LINK_AUTO = "auto";
+
+    // Maximum number of files cloned by a single "cp" invocation
+    private static final int REFLINK_BATCH_SIZE = 200;
+
+    // The task we are copying for, used for logging
+    private final Task task;
+
+    // Queued copy and rewrite jobs
+    private final List jobs = new ArrayList();
+
+    // Queued links to files written by the jobs, run after them
+    private final List links = new ArrayList();
+
+    // Destinations are logged relative to this directory
+    private File baseDir = null;
+
+    private int threads = 1;
+    private boolean incremental = false;
+    private boolean compareContents = false;
+    private boolean verbose = false;
+    private String linkMode = LINK_COPY;
+    private boolean reproducible = false;
+
+    // Optional store the files are taken from
+    private ContentCache cache = null;
+
+    // Workers shared with other bundles, or null for a pool of our own
+    private ExecutorService executor = null;
+
+    // Files and bytes placed into the bundle by the last execute()
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    // Cleared after the first failed attempt to clone files
+    private boolean reflinkSupported = true;
+
+    // Ant file utilities
+    private final FileUtils fileUtils = FileUtils.getFileUtils();
+
+
+    CopyEngine(Task task) {
+        this.task = task;
+    }
+
+    /**
+     * @param threads The number of files copied concurrently
+     */
+    void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param incremental If true, skip files which are already up to date
+     */
+    void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @param compareContents If true, incremental up to date checks also
+     *                        compare the file contents
+     */
+    void setCompareContents(boolean compareContents) {
+        this.compareContents = compareContents;
+    }
+
+    void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * <p>How files are placed into the bundle:</p>
+     *
+     * <ul>
+     * <li>copy - copy every file (default)</li>
+     * <li>hardlink - create hard links, copy if that is not possible</li>
+     * <li>reflink - clone files using copy-on-write, copy if that is not possible</li>
+     * <li>auto - clone, then hard link, then copy</li>
+     * </ul>
+     *
+     * @param linkMode One of copy, hardlink, reflink or auto
+     */
+    void setLinkMode(String linkMode) {
+        this.linkMode = linkMode;
+    }
+
+    /**
+     * @param reproducible If true, never hard link files, since a link shares
+     *                     its time and permissions with the source, and
+     *                     compare contents instead of modification times
+     *                     in incremental up to date checks, where a file
+     *                     hard linked by an earlier build is out of date
+     */
+    void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * Files cloned by the "reflink" and "auto" link modes are cloned from
+     * their sources and bypass the cache, a clone shares the blocks of its
+     * source already. Only files which are copied or hard linked are taken
+     * from the cache.
+     *
+     * @param cache Store every file in this cache and copy or link it into
+     *              the bundle from there, or null to copy from the sources
+     */
+    void setCache(ContentCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param executor Workers shared with other bundles, which are used
+     *                 instead of a pool of "threads" workers and are not
+     *                 shut down, or null
+     */
+    void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param baseDir Destinations are logged relative to this directory
+     */
+    void setBaseDir(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Queue a file to be copied.
+     *
+     * @param src        The source file
+     * @param dest       The destination file
+     * @param executable If true, the file is made executable once copied
+     *                   and therefore copied or cloned, but never hard linked
+     */
+    void add(File src, File dest, boolean executable) {
+        jobs.add(new CopyJob(src, dest, executable));
+    }
+
+    /**
+     * Queue a jar to be rewritten.
+     *
+     * @param rewrite The rewrite
+     * @param dest    The jar to write
+     */
+    void addRewrite(JarRewrite rewrite, File dest) {
+        jobs.add(new RewriteJob(rewrite, dest));
+    }
+
+    /**
+     * Queue a file to be hard linked to another file of the bundle with the
+     * same content. Links are made once all copies and rewrites are done;
+     * if a link cannot be made, the other file is copied instead.
+     *
+     * @param src    The source file, whose modification time the file gets
+     *               if it has to be copied in incremental mode
+     * @param target The file of the bundle to link to
+     * @param dest   The destination file
+     */
+    void addLink(File src, File target, File dest) {
+        links.add(new LinkJob(src, target, dest));
+    }
+
+    /**
+     * @return The number of files copied, linked, cloned or rewritten by the
+     *         last {@link #execute()}; files which were up to date are not counted
+     */
+    int getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return The total size of the files counted by {@link #getFiles()}
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Copy all queued files and write all queued jars.
+     *
+     * @throws BuildException naming the first file which could not be copied
+     *                        or written
+     */
+    void execute() throws BuildException {
+
+        files.set(0);
+        bytes.set(0);
+
+        List all = new ArrayList(jobs);
+        all.addAll(links);
+
+        // Create the target directories up front, so the workers
+        // don't race each other creating the same parents
+        for (Iterator itor = all.iterator(); itor.hasNext(); ) {
+            File parent = ((Job) itor.next()).dest.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new BuildException("Unable to create directory " + parent);
+            }
+        }
+
+        try {
+            if (LINK_REFLINK.equals(linkMode) || LINK_AUTO.equals(linkMode)) {
+                executeReflinks();
+            }
+
+            execute(jobs);
+            execute(links);
+        } finally {
+            jobs.clear();
+            links.clear();
+        }
+    }
+
+    /**
+     * Clone as many of the queued files as possible. Files are cloned with
+     * one "cp" invocation per target directory, since Java offers no
+     * access to the FICLONE ioctl or clonefile(2). Jobs whose file was
+     * cloned are marked as done.
+     */
+    private void executeReflinks() throws BuildException {
+        if (Os.isFamily(Os.FAMILY_WINDOWS)) {
+            reflinkSupported = false;
+            return;
+        }
+
+        // Group the clonable files by target directory
+        Map batches = new LinkedHashMap();
+
+        for (Iterator itor = jobs.iterator(); itor.hasNext(); ) {
+            Object next = itor.next();
+
+            if (!(next instanceof CopyJob)) {
+                continue;
+            }
+
+            CopyJob job = (CopyJob) next;
+
+            if (!job.dest.getName().equals(job.src.getName()) || !job.src.isFile()) {
+                continue;
+            }
+
+            try {
+                if (incremental && isUpToDate(job.src, job.dest)) {
+                    continue;
+                }
+                Files.deleteIfExists(job.dest.toPath());
+            } catch (IOException ex) {
+                throw failure(job, ex);
+            }
+
+            File dir = job.dest.getParentFile();
+            List batch = (List) batches.get(dir);
+
+            if (batch == null) {
+                batch = new ArrayList();
+                batches.put(dir, batch);
+            }
+
+            batch.add(job);
+        }
+
+        for (Iterator itor = batches.entrySet().iterator(); itor.hasNext() && reflinkSupported; ) {
+            Map.Entry entry = (Map.Entry) itor.next();
+            List batch = (List) entry.getValue();
+
+            for (int i = 0; i < batch.size() && reflinkSupported; i += REFLINK_BATCH_SIZE) {
+                reflink(batch.subList(i, Math.min(batch.size(), i + REFLINK_BATCH_SIZE)),
+                    (File) entry.getKey());
+            }
+        }
+    }
+
+    private void reflink(List batch, File dir) {
+        List command = new ArrayList();
+
+        command.add("cp");
+        command.add(Os.isFamily(Os.FAMILY_MAC) ? "-c" : "--reflink=always");
+        command.add("-p");
+
+        for (Iterator itor = batch.iterator(); itor.hasNext(); ) {
+            command.add(((CopyJob) itor.next()).src.getAbsolutePath());
+        }
+
+        command.add(dir.getAbsolutePath());
+
+        Execute exe = new Execute(new LogStreamHandler(task, Project.MSG_VERBOSE, Project.MSG_VERBOSE));
+        exe.setAntRun(task.getProject());
+        exe.setCommandline((String[]) command.toArray(new String[command.size()]));
+
+        try {
+            exe.execute();
+        } catch (IOException ex) {
+            task.log("Cannot clone files: " + ex.getMessage(), Project.MSG_VERBOSE);
+        }
+
+        // "cp" carries on after a failed file, so look at every file
+        int cloned = 0;
+
+        for (Iterator itor = batch.iterator(); itor.hasNext(); ) {
+            CopyJob job = (CopyJob) itor.next();
+
+            if (job.dest.isFile() && job.dest.length() == job.src.length()) {
+                job.done = true;
+                cloned++;
+                count(job.dest);
+
+                if (verbose) {
+                    task.log("Cloned \"" + displayPath(job.dest) + "\"");
+                }
+            }
+        }
+
+        if (cloned == 0) {
+            reflinkSupported = false;
+            task.log("Files cannot be cloned into \"" + displayPath(dir)
+                + "\", copying instead", Project.MSG_VERBOSE);
+        }
+    }
+
+    private void execute(List queue) throws BuildException {
+        if (threads <= 1 || queue.size() <= 1) {
+            executeSequential(queue);
+        } else {
+            executeParallel(queue);
+        }
+    }
+
+    private void executeSequential(List queue) throws BuildException {
+        for (Iterator itor = queue.iterator(); itor.hasNext(); ) {
+            Job job = (Job) itor.next();
+            try {
+                job.call();
+            } catch (IOException ex) {
+                throw failure(job, ex);
+            }
+        }
+    }
+
+    private void executeParallel(List queue) throws BuildException {
+        ExecutorService pool = (executor != null) ? executor
+            : Executors.newFixedThreadPool(Math.min(threads, queue.size()), new CopyThreadFactory());
+        List futures = new ArrayList();
+
+        try {
+            for (Iterator itor = queue.iterator(); itor.hasNext(); ) {
+                futures.add(pool.submit((Job) itor.next()));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    ((Future) futures.get(i)).get();
+                } catch (ExecutionException ex) {
+                    throw failure((Job) queue.get(i), ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while copying files");
+                }
+            }
+        } finally {
+            if (pool != executor) {
+                pool.shutdownNow();
+            } else {
+                // Don't leave jobs of a failed bundle to the shared workers
+                for (Iterator itor = futures.iterator(); itor.hasNext(); ) {
+                    ((Future) itor.next()).cancel(true);
+                }
+            }
+        }
+    }
+
+    private BuildException failure(Job job, Throwable cause) {
+        if (cause instanceof BuildException) {
+            return (BuildException) cause;
+        }
+
+        return new BuildException(job.describe() + ": " + cause.getMessage(), cause);
+    }
+
+    private void count(File dest) {
+        files.incrementAndGet();
+        bytes.addAndGet(dest.length());
+    }
+
+    private String displayPath(File f) {
+        String path = f.getAbsolutePath();
+
+        if (baseDir != null && path.startsWith(baseDir.getAbsolutePath())) {
+            return path.substring(baseDir.getAbsolutePath().length());
+        }
+
+        return path;
+    }
+
+    private boolean isUpToDate(File src, File dest) throws IOException {
+        if (!dest.isFile() || src.length() != dest.length()) {
+            return false;
+        }
+
+        // All files of a reproducible bundle carry the same time. A file
+        // linked by an earlier build is copied again, normalizing its time
+        // and permissions would change the file it shares
+        if (reproducible) {
+            return fileUtils.contentEquals(src, dest) && !isShared(src, dest);
+        }
+
+        // Linked from the cache, the modification time is the object's
+        if (cache != null) {
+            File object = cache.peek(src);
+            if (object != null && Files.isSameFile(object.toPath(), dest.toPath())) {
+                return true;
+            }
+        }
+
+        long delta = Math.abs(src.lastModified() - dest.lastModified());
+
+        if (delta > fileUtils.getFileTimestampGranularity()) {
+            return false;
+        }
+
+        return !compareContents || fileUtils.contentEquals(src, dest);
+    }
+
+    /**
+     * @return true if the destination is a hard link to the source or its
+     *         cached object
+     */
+    private boolean isShared(File src, File dest) throws IOException {
+        if (Files.isSameFile(src.toPath(), dest.toPath())) {
+            return true;
+        }
+
+        File object = (cache != null) ? cache.peek(src) : null;
+        return object != null && Files.isSameFile(object.toPath(), dest.toPath());
+    }
+
+
+    /**
+     * A single queued job writing one file of the bundle
+     */
+    private abstract class Job implements Callable {
+
+        protected final File dest;
+
+        Job(File dest) {
+            this.dest = dest;
+        }
+
+        /**
+         * @return What the job does, for error messages
+         */
+        abstract String describe();
+
+        public abstract Object call() throws IOException;
+    }
+
+
+    /**
+     * A single queued copy
+     */
+    private class CopyJob extends Job {
+
+        private final File src;
+        private final boolean executable;
+
+        // Set once the file has been cloned
+        private boolean done = false;
+
+        CopyJob(File src, File dest, boolean executable) {
+            super(dest);
+            this.src = src;
+            this.executable = executable;
+        }
+
+        String describe() {
+            return "Cannot copy file \"" + src + "\" to \"" + dest + "\"";
+        }
+
+        public Object call() throws IOException {
+            if (done) {
+                return null;
+            }
+
+            // An executable linked by an earlier build is copied again,
+            // changing its permissions would change the file it shares
+            if (incremental && isUpToDate(src, dest) && !(executable && isShared(src, dest))) {
+                if (verbose) {
+                    task.log("\"" + displayPath(dest) + "\" is up to date");
+                }
+                return null;
+            }
+
+            // Never write through an existing file, it may be a
+            // hard link to a source file from a previous build
+            Files.deleteIfExists(dest.toPath());
+
+            File from = (cache != null) ? cache.get(src) : src;
+
+            if (!reproducible && !executable
+                && (LINK_HARDLINK.equals(linkMode) || LINK_AUTO.equals(linkMode)) && link(from)) {
+                count(dest);
+                return null;
+            }
+
+            // Copied from the cache, the time is still the source's
+            FileCopier.copy(from, dest, src.lastModified());
+            count(dest);
+
+            return null;
+        }
+
+        private boolean link(File from) {
+            try {
+                Files.createLink(dest.toPath(), from.toPath());
+            } catch (IOException ex) {
+                return false;
+            } catch (UnsupportedOperationException ex) {
+                return false;
+            }
+
+            if (verbose) {
+                task.log("Linked \"" + displayPath(dest) + "\"");
+            }
+
+            return true;
+        }
+    }
+
+
+    /**
+     * A single queued hard link to another file of the bundle. In
+     * incremental mode an existing link to the file is left untouched.
+     */
+    private class LinkJob extends Job {
+
+        private final File src;
+        private final File target;
+
+        LinkJob(File src, File target, File dest) {
+            super(dest);
+            this.src = src;
+            this.target = target;
+        }
+
+        String describe() {
+            return "Cannot link \"" + dest + "\" to \"" + target + "\"";
+        }
+
+        public Object call() throws IOException {
+            if (incremental && dest.exists() && Files.isSameFile(target.toPath(), dest.toPath())) {
+                if (verbose) {
+                    task.log("\"" + displayPath(dest) + "\" is up to date");
+                }
+                return null;
+            }
+
+            Files.deleteIfExists(dest.toPath());
+
+            try {
+                Files.createLink(dest.toPath(), target.toPath());
+
+                if (verbose) {
+                    task.log("Linked \"" + displayPath(dest) + "\" to \"" + displayPath(target) + "\"");
+                }
+            } catch (IOException ex) {
+                FileCopier.copy(target, dest, src.lastModified());
+            } catch (UnsupportedOperationException ex) {
+                FileCopier.copy(target, dest, src.lastModified());
+            }
+
+            count(dest);
+            return null;
+        }
+    }
+
+
+    /**
+     * A single queued jar rewrite. In incremental mode a jar written from
+     * the same sources is left untouched.
+     */
+    private class RewriteJob extends Job {
+
+        private final JarRewrite rewrite;
+
+        RewriteJob(JarRewrite rewrite, File dest) {
+            super(dest);
+            this.rewrite = rewrite;
+        }
+
+        String describe() {
+            return "Unable to write \"" + dest + "\"";
+        }
+
+        public Object call() throws IOException {
+            if (incremental && rewrite.isUpToDate(dest)) {
+                if (verbose) {
+                    task.log("\"" + displayPath(dest) + "\" is up to date");
+                }
+                return null;
+            }
+
+            rewrite.write(dest, task);
+            count(dest);
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Creates named daemon threads for the copy workers
+     */
+    private static class CopyThreadFactory implements ThreadFactory {
+
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jarbundler-copy-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
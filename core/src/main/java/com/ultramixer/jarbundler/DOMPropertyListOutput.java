@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+
+
+/**
+ * <p>Builds the property list as a W3C DOM and serializes it through the
+ * JAXP identity transformer.</p>
+ *
+ * <p>This is the original Info.plist writer, kept as a fallback for the
+ * streaming {@link XMLPropertyListOutput}.</p>
+ *
+ * <p>Looking up the JAXP factories searches the class path, so they are
+ * created once and shared by all writers. The factories are not thread
+ * safe; builders and transformers are created while holding their lock.</p>
+ */
+class DOMPropertyListOutput implements PropertyListOutput {
+
+    private static DocumentBuilderFactory builderFactory = null;
+    private static TransformerFactory transformerFactory = null;
+
+    private final OutputStream out;
+
+    // DOM version of Info.plist file
+    private final Document document;
+
+    // The element receiving the next node, innermost last
+    private final LinkedList parents = new LinkedList();
+
+
+    DOMPropertyListOutput(OutputStream out) {
+        this.out = out;
+
+        try {
+            this.document = createDOM();
+        } catch (ParserConfigurationException pce) {
+            throw new BuildException(pce);
+        }
+
+        Element plist = this.document.getDocumentElement();
+        plist.setAttribute("version", "1.0");
+        parents.add(plist);
+    }
+
+    private Document createDOM() throws ParserConfigurationException {
+
+        DocumentBuilder documentBuilder = newDocumentBuilder();
+        DOMImplementation domImpl = documentBuilder.getDOMImplementation();
+
+        // We needed to reference using the full class name here because we already have
+        //  a class named "DocumentType"
+
+        org.w3c.dom.DocumentType doctype = domImpl.createDocumentType(
+            "plist",
+            "-//Apple Computer//DTD PLIST 1.0//EN",
+            "http://www.apple.com/DTDs/PropertyList-1.0.dtd");
+
+        return domImpl.createDocument(null, "plist", doctype);
+    }
+
+    public void startDict() {
+        parents.add(createNode("dict"));
+    }
+
+    public void endDict() {
+        parents.removeLast();
+    }
+
+    public void startArray() {
+        parents.add(createNode("array"));
+    }
+
+    public void endArray() {
+        parents.removeLast();
+    }
+
+    public void key(String key) {
+        createNode("key").appendChild(this.document.createTextNode(key));
+    }
+
+    public void string(String string) {
+        createNode("string").appendChild(this.document.createTextNode(string));
+    }
+
+    public void bool(boolean b) {
+        createNode(b ? "true" : "false");
+    }
+
+    public void finish() throws IOException {
+        try {
+            Transformer trans = newTransformer();
+            trans.setOutputProperty(OutputKeys.INDENT, "yes");
+            trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+            trans.transform(new DOMSource(document), new StreamResult(writer));
+            writer.flush();
+        } catch (TransformerException te) {
+            throw new BuildException(te);
+        }
+    }
+
+    private static synchronized DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        if (builderFactory == null) {
+            builderFactory = DocumentBuilderFactory.newInstance();
+        }
+        return builderFactory.newDocumentBuilder();
+    }
+
+    private static synchronized Transformer newTransformer() throws TransformerException {
+        if (transformerFactory == null) {
+            transformerFactory = TransformerFactory.newInstance();
+        }
+        return transformerFactory.newTransformer();
+    }
+
+    private Node createNode(String tag) {
+        Node node = this.document.createElement(tag);
+        ((Node) parents.getLast()).appendChild(node);
+        return node;
+    }
+}
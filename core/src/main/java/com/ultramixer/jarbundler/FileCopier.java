@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * <p>Copies a single file through NIO channels, without Ant's filter and
+ * resource machinery.</p>
+ *
+ * <p>Files of at least {@link #TRANSFER_THRESHOLD} bytes are copied with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which the JDK maps to <code>sendfile</code> or <code>copy_file_range</code>
+ * where available, so their content never passes through the Java heap.
+ * Smaller files, for which setting up a transfer costs more than it saves,
+ * are copied through a direct buffer kept per thread.</p>
+ */
+class FileCopier {
+
+    // Files at least this large are transferred between the channels
+    static final long TRANSFER_THRESHOLD = 1024 * 1024;
+
+    // Largest single transfer, some platforms refuse to transfer more at once
+    private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // One direct buffer per copy worker
+    private static final ThreadLocal BUFFERS = new ThreadLocal() {
+        protected Object initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+
+    private FileCopier() {
+    }
+
+    /**
+     * Copy a file, replacing the destination if it exists.
+     *
+     * @param src          The source file
+     * @param dest         The destination file, whose directory must exist
+     * @param lastModified The modification time of the copy, or -1 to
+     *                     leave it at the time of copying
+     * @return The number of bytes copied
+     * @throws IOException if the file cannot be copied or shrinks while
+     *                     being copied
+     */
+    static long copy(File src, File dest, long lastModified) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        long copied;
+
+        try {
+            in = new FileInputStream(src);
+            out = new FileOutputStream(dest);
+
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+
+            copied = (size >= TRANSFER_THRESHOLD) ? transfer(source, target, size) : buffered(source, target);
+        } finally {
+            FileUtils.close(in);
+            FileUtils.close(out);
+        }
+
+        if (lastModified >= 0 && !dest.setLastModified(lastModified)) {
+            throw new IOException("Unable to set the modification time of " + dest);
+        }
+
+        return copied;
+    }
+
+    private static long transfer(FileChannel source, FileChannel target, long size) throws IOException {
+        long position = 0;
+
+        while (position < size) {
+            long n = source.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), target);
+
+            // The file shrank while being copied, never leave a truncated copy
+            if (n <= 0) {
+                throw new IOException("Only " + position + " of " + size
+                    + " bytes could be copied, the file changed while being copied");
+            }
+
+            position += n;
+        }
+
+        return position;
+    }
+
+    private static long buffered(FileChannel source, FileChannel target) throws IOException {
+        ByteBuffer buffer = (ByteBuffer) BUFFERS.get();
+        long copied = 0;
+
+        buffer.clear();
+
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                copied += target.write(buffer);
+            }
+
+            buffer.clear();
+        }
+
+        return copied;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.FileScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * <p>The files included by filesets, so every fileset is scanned once. A
+ * fileset referenced by <code>refid</code> is scanned as the fileset it
+ * refers to.</p>
+ *
+ * <p>Safe to be used from several threads at once: while one thread scans
+ * a fileset, other threads asking for it wait for the result instead of
+ * scanning it as well, since a fileset cannot be scanned by two threads at
+ * once.</p>
+ */
+class FileSetScans {
+
+    // Included files of every fileset, by the fileset, as FutureTasks
+    private final ConcurrentMap scans = new ConcurrentHashMap();
+
+
+    /**
+     * @param fs The fileset
+     * @return The included files, relative to the fileset's directory
+     * @throws BuildException if the fileset cannot be scanned
+     */
+    String[] scan(final FileSet fs) throws BuildException {
+        final Project p = fs.getProject();
+        Object key = fs.isReference() ? fs.getRefid().getReferencedObject(p) : fs;
+
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() {
+                FileScanner ds = fs.getDirectoryScanner(p);
+                fs.setupDirectoryScanner(ds, p);
+                ds.scan();
+                return ds.getIncludedFiles();
+            }
+        });
+
+        FutureTask existing = (FutureTask) scans.putIfAbsent(new IdentityKey(key), task);
+
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+
+        try {
+            return (String[]) task.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof BuildException) {
+                throw (BuildException) ex.getCause();
+            }
+            throw new BuildException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while scanning " + fs);
+        }
+    }
+
+    /**
+     * Forget all scans, so filesets are scanned again.
+     */
+    void clear() {
+        scans.clear();
+    }
+
+
+    /**
+     * Compares the wrapped object by identity, filesets don't implement
+     * equals()
+     */
+    private static class IdentityKey {
+
+        private final Object o;
+
+        IdentityKey(Object o) {
+            this.o = o;
+        }
+
+        public boolean equals(Object other) {
+            return (other instanceof IdentityKey) && ((IdentityKey) other).o == o;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(o);
+        }
+    }
+}
@@ -31,6 +31,7 @@ public class HelpBook extends MatchingTask {
     private String folderName = null;
     private String name = null;
     private String locale = null;
+    private boolean searchIndex = false;
 
     private final List fileLists = new ArrayList();
     private final List fileSets = new ArrayList();
@@ -65,6 +66,15 @@ public class HelpBook extends MatchingTask {
         return locale;
     }
 
+    // Write a full text index of the HTML pages next to the Help Book folder
+    public void setSearchIndex(boolean searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public boolean isSearchIndex() {
+        return searchIndex;
+    }
+
     // Help Book files as a ANT FileList
     public void addFileList(FileList fileList) {
         fileLists.add(fileList);
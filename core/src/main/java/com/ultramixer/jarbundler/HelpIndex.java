@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * <p>A full text index of the HTML pages of a help book, written next to the
+ * book so an application can search it without reading the pages.</p>
+ *
+ * <p>Pages are reduced to their text, without tags, comments, scripts and
+ * style sheets, and split into words of letters and digits, which are
+ * lower cased. The pages are read and split by {@link #tasks()}, which may
+ * run concurrently.</p>
+ *
+ * <p>The index is a big-endian binary file made of fixed size records, so
+ * it can be mapped into memory and searched in place by binary search:</p>
+ *
+ * <pre>
+ * header   "JBHI", int version, int pages, int terms, int prefixes,
+ *          int offsets of the page, term, prefix and posting tables
+ * pages    int path, int title                  (string offsets)
+ * terms    int term, int postings, int count    sorted by the term's UTF-8 bytes
+ * prefixes int prefix, int first term, int count sorted by the prefix's UTF-8 bytes
+ * postings int page, int occurrences            per term, by page
+ * strings  unsigned short length, UTF-8 bytes
+ * </pre>
+ *
+ * <p>A prefix is the first {@link #PREFIX_LENGTH} characters of a term and
+ * names the range of the terms starting with it, so a search for a prefix
+ * only looks at the terms it may match.</p>
+ */
+class HelpIndex {
+
+    // Name of the index next to the help book folder
+    static final String EXTENSION = ".helpindex";
+
+    static final int VERSION = 1;
+
+    // Characters of a term in the prefix table
+    static final int PREFIX_LENGTH = 2;
+
+    // Words shorter or longer than this are not indexed
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private static final int HEADER_SIZE = 4 + 4 * 4 + 4 * 4;
+
+    private static final Pattern SKIPPED = Pattern.compile(
+        "<!--.*?-->|<script\\b.*?</script\\s*>|<style\\b.*?</style\\s*>",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern TITLE = Pattern.compile(
+        "<title\\b[^>]*>(.*?)</title\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern TAG = Pattern.compile("<[^>]*>");
+    private static final Pattern ENTITY = Pattern.compile("&(#[0-9]+|#[xX][0-9a-fA-F]+|[a-zA-Z]+);");
+    private static final Pattern CHARSET = Pattern.compile(
+        "charset\\s*=\\s*[\"']?([A-Za-z0-9._:-]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern XML_ENCODING = Pattern.compile(
+        "<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)");
+
+    private static final Comparator UTF8_ORDER = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            byte[] b1 = utf8((String) o1);
+            byte[] b2 = utf8((String) o2);
+
+            for (int i = 0; i < b1.length && i < b2.length; i++) {
+                int c = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+
+            return b1.length - b2.length;
+        }
+    };
+
+    private final List pages = new ArrayList();
+
+
+    /**
+     * Add a page to the index.
+     *
+     * @param path The path of the page relative to the help book folder,
+     *             with forward slashes
+     * @param file The HTML file
+     */
+    void add(String path, File file) {
+        pages.add(new Page(path, file));
+    }
+
+    /**
+     * @return One task per page, reading and splitting it into words. All
+     *         of them must have run before {@link #toByteArray()}.
+     */
+    List tasks() {
+        List tasks = new ArrayList();
+
+        for (Iterator itor = pages.iterator(); itor.hasNext(); ) {
+            final Page page = (Page) itor.next();
+
+            tasks.add(new Callable() {
+                public Object call() throws IOException {
+                    page.read();
+                    return null;
+                }
+            });
+        }
+
+        return tasks;
+    }
+
+    /**
+     * @return The index, pages ordered by path and terms by their UTF-8
+     *         bytes, so the same pages always give the same bytes
+     */
+    byte[] toByteArray() {
+        List sorted = new ArrayList(pages);
+
+        Collections.sort(sorted, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((Page) o1).path.compareTo(((Page) o2).path);
+            }
+        });
+
+        // Postings by term, each a list of page number and occurrences
+        Map postings = new TreeMap(UTF8_ORDER);
+
+        for (int i = 0; i < sorted.size(); i++) {
+            Page page = (Page) sorted.get(i);
+
+            if (page.terms == null) {
+                throw new BuildException("Help page \"" + page.file + "\" has not been read");
+            }
+
+            for (Iterator itor = page.terms.entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+                List list = (List) postings.get(e.getKey());
+
+                if (list == null) {
+                    list = new ArrayList();
+                    postings.put(e.getKey(), list);
+                }
+
+                list.add(new int[]{i, ((int[]) e.getValue())[0]});
+            }
+        }
+
+        // Ranges of terms by prefix, in the order of the terms
+        Map prefixes = new TreeMap(UTF8_ORDER);
+        int termNumber = 0;
+
+        for (Iterator itor = postings.keySet().iterator(); itor.hasNext(); termNumber++) {
+            String prefix = prefix((String) itor.next());
+            int[] range = (int[]) prefixes.get(prefix);
+
+            if (range == null) {
+                prefixes.put(prefix, new int[]{termNumber, 1});
+            } else {
+                range[1]++;
+            }
+        }
+
+        int postingCount = 0;
+
+        for (Iterator itor = postings.values().iterator(); itor.hasNext(); ) {
+            postingCount += ((List) itor.next()).size();
+        }
+
+        int pageTable = HEADER_SIZE;
+        int termTable = pageTable + sorted.size() * 8;
+        int prefixTable = termTable + postings.size() * 12;
+        int postingTable = prefixTable + prefixes.size() * 12;
+        int stringTable = postingTable + postingCount * 8;
+
+        Strings strings = new Strings(stringTable);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeBytes("JBHI");
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            out.writeInt(postings.size());
+            out.writeInt(prefixes.size());
+            out.writeInt(pageTable);
+            out.writeInt(termTable);
+            out.writeInt(prefixTable);
+            out.writeInt(postingTable);
+
+            for (Iterator itor = sorted.iterator(); itor.hasNext(); ) {
+                Page page = (Page) itor.next();
+                out.writeInt(strings.add(page.path));
+                out.writeInt(strings.add(page.title));
+            }
+
+            int posting = postingTable;
+
+            for (Iterator itor = postings.entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+                int count = ((List) e.getValue()).size();
+
+                out.writeInt(strings.add((String) e.getKey()));
+                out.writeInt(posting);
+                out.writeInt(count);
+                posting += count * 8;
+            }
+
+            for (Iterator itor = prefixes.entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+                int[] range = (int[]) e.getValue();
+
+                out.writeInt(strings.add((String) e.getKey()));
+                out.writeInt(range[0]);
+                out.writeInt(range[1]);
+            }
+
+            for (Iterator itor = postings.values().iterator(); itor.hasNext(); ) {
+                for (Iterator entries = ((List) itor.next()).iterator(); entries.hasNext(); ) {
+                    int[] entry = (int[]) entries.next();
+                    out.writeInt(entry[0]);
+                    out.writeInt(entry[1]);
+                }
+            }
+
+            strings.writeTo(out);
+            out.flush();
+
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+    /**
+     * @param term A term
+     * @return The term's entry in the prefix table
+     */
+    static String prefix(String term) {
+        if (term.codePointCount(0, term.length()) <= PREFIX_LENGTH) {
+            return term;
+        }
+        return term.substring(0, term.offsetByCodePoints(0, PREFIX_LENGTH));
+    }
+
+    /**
+     * @param html A HTML page
+     * @return The page's text, without tags, comments, scripts and styles
+     */
+    static String text(String html) {
+        String text = SKIPPED.matcher(html).replaceAll(" ");
+        text = TAG.matcher(text).replaceAll(" ");
+        return decodeEntities(text);
+    }
+
+    /**
+     * @param text Text
+     * @return The occurrences of every word in the text, by lower case word
+     */
+    static Map terms(String text) {
+        Map terms = new HashMap();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); ) {
+            int c = (i < text.length()) ? text.codePointAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+                int length = word.codePointCount(0, word.length());
+
+                if (length >= MIN_TERM_LENGTH && length <= MAX_TERM_LENGTH) {
+                    int[] count = (int[]) terms.get(word);
+
+                    if (count == null) {
+                        terms.put(word, new int[]{1});
+                    } else {
+                        count[0]++;
+                    }
+                }
+
+                start = -1;
+            }
+
+            i += Character.charCount(c);
+        }
+
+        return terms;
+    }
+
+    private static String decodeEntities(String text) {
+        Matcher m = ENTITY.matcher(text);
+        StringBuffer sb = new StringBuffer(text.length());
+
+        while (m.find()) {
+            String entity = m.group(1);
+            String replacement = " ";
+
+            try {
+                if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                    replacement = new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+                } else if (entity.startsWith("#")) {
+                    replacement = new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+                } else if ("amp".equals(entity)) {
+                    replacement = "&";
+                } else if ("quot".equals(entity)) {
+                    replacement = "\"";
+                } else if ("apos".equals(entity)) {
+                    replacement = "'";
+                } else if ("lt".equals(entity)) {
+                    replacement = "<";
+                } else if ("gt".equals(entity)) {
+                    replacement = ">";
+                }
+            } catch (IllegalArgumentException ex) {
+                // Not a valid code point, e.g. &#x110000;
+            }
+
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+
+    /**
+     * A single page of the help book
+     */
+    private static class Page {
+
+        private final String path;
+        private final File file;
+        private String title = "";
+        private Map terms = null;
+
+        Page(String path, File file) {
+            this.path = path;
+            this.file = file;
+        }
+
+        void read() throws IOException {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            String html = new String(bytes, charset(bytes));
+
+            Matcher m = TITLE.matcher(html);
+
+            if (m.find()) {
+                title = decodeEntities(TAG.matcher(m.group(1)).replaceAll(" ")).trim().replaceAll("\\s+", " ");
+            }
+
+            terms = terms(text(html));
+        }
+
+        /**
+         * @return The charset named by the page's meta tags or XML
+         *         declaration, UTF-8 if there is none
+         */
+        private static Charset charset(byte[] bytes) {
+            String head = new String(bytes, 0, Math.min(bytes.length, 2048), Charset.forName("ISO-8859-1"));
+            Matcher m = CHARSET.matcher(head);
+
+            if (!m.find()) {
+                m = XML_ENCODING.matcher(head);
+
+                if (!m.find()) {
+                    return Charset.forName("UTF-8");
+                }
+            }
+
+            try {
+                return Charset.forName(m.group(1));
+            } catch (IllegalArgumentException ex) {
+                return Charset.forName("UTF-8");
+            }
+        }
+    }
+
+
+    /**
+     * The string table, every string stored once
+     */
+    private static class Strings {
+
+        private final int base;
+        private final Map offsets = new HashMap();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Strings(int base) {
+            this.base = base;
+        }
+
+        /**
+         * @return The offset of the string in the index
+         */
+        int add(String s) throws IOException {
+            Integer offset = (Integer) offsets.get(s);
+
+            if (offset != null) {
+                return offset.intValue();
+            }
+
+            byte[] b = utf8(s);
+
+            // Titles are the only strings which may be this long
+            if (b.length > 0xFFFF) {
+                int length = 0xFFFF;
+                while ((b[length] & 0xC0) == 0x80) {
+                    length--;
+                }
+                byte[] truncated = new byte[length];
+                System.arraycopy(b, 0, truncated, 0, length);
+                b = truncated;
+            }
+
+            int result = base + bytes.size();
+            bytes.write(b.length >>> 8);
+            bytes.write(b.length & 0xFF);
+            bytes.write(b);
+            offsets.put(s, Integer.valueOf(result));
+            return result;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            bytes.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+
+/**
+ * <p>A macOS icon file, encoded from a PNG image or an
+ * <code>.iconset</code> directory, so icons can be built without
+ * <code>iconutil</code> or a Mac.</p>
+ *
+ * <p>The icon holds every standard size from 16 to 1024 pixels, including
+ * the @2x variants, each as a PNG. An <code>.iconset</code> directory holds
+ * the images named as <code>iconutil</code> expects them, from
+ * <code>icon_16x16.png</code> to <code>icon_512x512@2x.png</code>; an image
+ * of the right size is used as it is, every missing size is scaled from the
+ * largest image. A single PNG is scaled to every size, it should be 1024
+ * pixels square.</p>
+ *
+ * <p>Each size is scaled and encoded once by {@link #tasks()}, which may
+ * run concurrently. The icon is cached under the SHA-256 of its source
+ * images, so an unchanged source is not encoded again.</p>
+ */
+class IcnsIcon {
+
+    static final String EXTENSION = ".icns";
+
+    // Changes whenever the encoded icon changes for the same source
+    static final int VERSION = 1;
+
+    // Icon types, their size in pixels and the image of an iconset they are read from
+    private static final Object[][] TYPES = {
+        {"icp4", Integer.valueOf(16), "icon_16x16.png"},
+        {"icp5", Integer.valueOf(32), "icon_32x32.png"},
+        {"ic11", Integer.valueOf(32), "icon_16x16@2x.png"},
+        {"ic12", Integer.valueOf(64), "icon_32x32@2x.png"},
+        {"ic07", Integer.valueOf(128), "icon_128x128.png"},
+        {"ic13", Integer.valueOf(256), "icon_128x128@2x.png"},
+        {"ic08", Integer.valueOf(256), "icon_256x256.png"},
+        {"ic14", Integer.valueOf(512), "icon_256x256@2x.png"},
+        {"ic09", Integer.valueOf(512), "icon_512x512.png"},
+        {"ic10", Integer.valueOf(1024), "icon_512x512@2x.png"},
+    };
+
+    private final File source;
+    private final File cachedFile;
+
+    // Encoded PNG images by type, filled by the tasks
+    private final Map images = new TreeMap();
+
+    // Image all missing sizes are scaled from, read once
+    private BufferedImage master = null;
+
+    // The icon, once assembled
+    private byte[] icon = null;
+
+
+    /**
+     * @param source   A PNG image or an .iconset directory
+     * @param cacheDir The directory of the cached icons
+     * @throws BuildException if the source cannot be read
+     */
+    IcnsIcon(File source, File cacheDir) throws BuildException {
+        this.source = source;
+
+        if (!source.exists()) {
+            throw new BuildException("Icon \"" + source + "\" does not exist");
+        }
+
+        try {
+            this.cachedFile = new File(cacheDir, key() + EXTENSION);
+        } catch (IOException ex) {
+            throw new BuildException("Unable to read icon \"" + source + "\": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @param f An icon file
+     * @return true if the icon is encoded from a PNG image or an .iconset
+     *         directory, not copied as it is
+     */
+    static boolean isEncoded(File f) {
+        String name = f.getName().toLowerCase(Locale.ENGLISH);
+        return name.endsWith(".png") || name.endsWith(".iconset");
+    }
+
+    /**
+     * @param f An icon file
+     * @return The name of the icon in the bundle
+     */
+    static String bundleName(File f) {
+        if (!isEncoded(f)) {
+            return f.getName();
+        }
+
+        String name = f.getName();
+        return name.substring(0, name.lastIndexOf('.')) + EXTENSION;
+    }
+
+    /**
+     * @return The encoded icon in the cache, which exists once
+     *         {@link #write()} returned
+     */
+    File getCachedFile() {
+        return cachedFile;
+    }
+
+    /**
+     * @return true if the icon is in the cache already
+     */
+    boolean isCached() {
+        return cachedFile.isFile();
+    }
+
+    /**
+     * @return One Callable per size, scaling and encoding the image of that
+     *         size, none if the icon is cached
+     */
+    List tasks() {
+        List tasks = new ArrayList();
+
+        if (isCached()) {
+            return tasks;
+        }
+
+        // Types of the same size share one image, unless read from an iconset
+        Map bySize = new TreeMap();
+
+        for (int i = 0; i < TYPES.length; i++) {
+            final String type = (String) TYPES[i][0];
+            final int size = ((Integer) TYPES[i][1]).intValue();
+            final File image = source.isDirectory() ? new File(source, (String) TYPES[i][2]) : null;
+
+            if (image != null && image.isFile()) {
+                tasks.add(new Callable() {
+                    public Object call() throws IOException {
+                        put(new String[]{type}, read(image, size));
+                        return null;
+                    }
+                });
+                continue;
+            }
+
+            List types = (List) bySize.get(Integer.valueOf(size));
+
+            if (types == null) {
+                types = new ArrayList();
+                bySize.put(Integer.valueOf(size), types);
+            }
+
+            types.add(type);
+        }
+
+        for (Iterator itor = bySize.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            final int size = ((Integer) e.getKey()).intValue();
+            final List types = (List) e.getValue();
+
+            tasks.add(new Callable() {
+                public Object call() throws IOException {
+                    put((String[]) types.toArray(new String[types.size()]), encode(scale(master(), size)));
+                    return null;
+                }
+            });
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Store the icon, once all tasks ran, in the cache.
+     *
+     * @return The encoded icon in the cache
+     * @throws BuildException if the icon cannot be written
+     */
+    File write() throws BuildException {
+        if (isCached()) {
+            return cachedFile;
+        }
+
+        File dir = cachedFile.getParentFile();
+
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new BuildException("Unable to create directory " + dir);
+        }
+
+        File tmp = null;
+
+        try {
+            tmp = File.createTempFile(cachedFile.getName(), ".tmp", dir);
+            Files.write(tmp.toPath(), toByteArray());
+            Files.move(tmp.toPath(), cachedFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write icon \"" + cachedFile + "\": " + ex.getMessage(), ex);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+
+        return cachedFile;
+    }
+
+    /**
+     * @return The icon, once all tasks ran: "icns" and its length, followed
+     *         by every type and its length, including the 8 bytes of the
+     *         header, and PNG image
+     */
+    synchronized byte[] toByteArray() throws IOException {
+        if (icon != null) {
+            return icon;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int length = 8;
+
+        for (int i = 0; i < TYPES.length; i++) {
+            byte[] image = image((String) TYPES[i][0]);
+            length += 8 + image.length;
+        }
+
+        out.writeBytes("icns");
+        out.writeInt(length);
+
+        for (int i = 0; i < TYPES.length; i++) {
+            byte[] image = image((String) TYPES[i][0]);
+
+            out.writeBytes((String) TYPES[i][0]);
+            out.writeInt(8 + image.length);
+            out.write(image);
+        }
+
+        out.flush();
+        icon = bytes.toByteArray();
+
+        return icon;
+    }
+
+    private synchronized void put(String[] types, byte[] image) {
+        for (int i = 0; i < types.length; i++) {
+            images.put(types[i], image);
+        }
+    }
+
+    private synchronized byte[] image(String type) throws IOException {
+        byte[] image = (byte[]) images.get(type);
+
+        if (image == null) {
+            throw new IOException("Icon type " + type + " of \"" + source + "\" was not encoded");
+        }
+
+        return image;
+    }
+
+    /**
+     * @return The PNG image, or the largest image of the iconset
+     */
+    private synchronized BufferedImage master() throws IOException {
+        if (master != null) {
+            return master;
+        }
+
+        File[] files = sources();
+
+        for (int i = 0; i < files.length; i++) {
+            BufferedImage image = ImageIO.read(files[i]);
+
+            if (image == null) {
+                throw new IOException("\"" + files[i] + "\" is not a PNG image");
+            }
+
+            if (master == null || image.getWidth() > master.getWidth()) {
+                master = image;
+            }
+        }
+
+        if (master == null) {
+            throw new IOException("No PNG images in \"" + source + "\"");
+        }
+
+        return master;
+    }
+
+    /**
+     * @return The content of an image of the iconset if it has the size,
+     *         otherwise the image scaled to the size
+     */
+    private byte[] read(File image, int size) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(image);
+
+        try {
+            Iterator readers = (in == null) ? null : ImageIO.getImageReaders(in);
+
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = (ImageReader) readers.next();
+
+                try {
+                    reader.setInput(in);
+
+                    if ("png".equalsIgnoreCase(reader.getFormatName())
+                        && reader.getWidth(0) == size && reader.getHeight(0) == size) {
+                        return Files.readAllBytes(image.toPath());
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        BufferedImage decoded = ImageIO.read(image);
+
+        if (decoded == null) {
+            throw new IOException("\"" + image + "\" is not a PNG image");
+        }
+
+        return encode(scale(decoded, size));
+    }
+
+    /**
+     * Scale an image to a square, halving it with bilinear interpolation
+     * until the last step, so downscaling by large factors does not alias.
+     */
+    static BufferedImage scale(BufferedImage image, int size) {
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        do {
+            w = (w / 2 >= size) ? w / 2 : size;
+            h = (h / 2 >= size) ? h / 2 : size;
+
+            BufferedImage step = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = step.createGraphics();
+
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(scaled, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+
+            scaled = step;
+        } while (w != size || h != size);
+
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (!ImageIO.write(image, "png", out)) {
+            throw new IOException("No PNG encoder available");
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The PNG image, or the PNG images of the iconset sorted by name
+     */
+    private File[] sources() {
+        if (!source.isDirectory()) {
+            return new File[]{source};
+        }
+
+        File[] files = source.listFiles();
+        List pngs = new ArrayList();
+
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].isFile() && files[i].getName().toLowerCase(Locale.ENGLISH).endsWith(".png")) {
+                pngs.add(files[i]);
+            }
+        }
+
+        File[] sorted = (File[]) pngs.toArray(new File[pngs.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return The SHA-256 of the names and contents of the source images
+     *         and the version of the encoding
+     */
+    private String key() throws IOException {
+        StringBuffer sb = new StringBuffer("icns ").append(VERSION).append('\n');
+        File[] files = sources();
+
+        for (int i = 0; i < files.length; i++) {
+            sb.append(files[i].getName()).append(' ').append(ContentCache.digest(files[i])).append('\n');
+        }
+
+        try {
+            return BundleManifest.sha256(sb.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new BuildException(ex);
+        }
+    }
+}
@@ -0,0 +1,730 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * <p>Analyzes the jars on the class path of a bundle: which packages each
+ * jar contains, which classes are defined by more than one jar, and which
+ * jars are never referenced.</p>
+ *
+ * <p>Every jar is scanned by a worker of its own. A scan reads the zip
+ * directory and, of every class, only the constant pool, which lists the
+ * classes it refers to; nothing else is read and nothing but names is
+ * kept.</p>
+ *
+ * <p>A class defined by more than one jar is loaded from the first of
+ * them on the class path; the others are shadowed. A jar is referenced if
+ * it defines the main class, provides services, contains classes loaded
+ * during startup, or defines a class referred to by a referenced jar.
+ * Classes which are only loaded by reflection are not seen, so an
+ * unreferenced jar is a candidate for removal, not proof.</p>
+ *
+ * <p>The class path can be reordered to put the hottest jars first: those
+ * with the most startup classes given a {@link ClassLoadOrder}, otherwise
+ * those referred to most by other jars. Jars which define the same class
+ * keep their order, so the same classes are loaded.</p>
+ */
+class JarAnalyzer {
+
+    // Classes of the platform, which no application jar should define
+    private static final String[] PLATFORM_PREFIXES = {"java/", "javax/", "jdk/", "sun/"};
+
+    private static final String VERSIONS = "META-INF/versions/";
+
+    // The task we are analyzing for, used for logging
+    private final Task task;
+
+    // The jars in class path order
+    private final List jars = new ArrayList();
+
+    private int threads = 1;
+    private String mainClass = null;
+    private ClassLoadOrder order = null;
+
+    // Class name -> the first jar defining it, as Jar
+    private final Map owners = new HashMap();
+
+    // Jar -> the jars it shadows classes of, as Map of Jar -> Integer
+    private final Map shadowed = new LinkedHashMap();
+
+    private int duplicateClasses = 0;
+
+
+    JarAnalyzer(Task task) {
+        this.task = task;
+    }
+
+    /**
+     * @param threads The number of jars scanned concurrently
+     */
+    void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param mainClass The main class of the application, where the search
+     *                  for referenced jars starts
+     */
+    void setMainClass(String mainClass) {
+        this.mainClass = mainClass;
+    }
+
+    /**
+     * @param order The classes loaded during startup, or null
+     */
+    void setClassLoadOrder(ClassLoadOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Add a jar of the class path, after all jars added before.
+     *
+     * @param name    The class path entry
+     * @param sources The files the jar is made of, usually just one
+     */
+    void addJar(String name, List sources) {
+        jars.add(new Jar(name, jars.size(), sources));
+    }
+
+    /**
+     * Scan all jars.
+     *
+     * @throws BuildException if a jar cannot be read
+     */
+    void execute() throws BuildException {
+        if (threads <= 1 || jars.size() <= 1) {
+            for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+                Jar jar = (Jar) itor.next();
+
+                try {
+                    jar.call();
+                } catch (IOException ex) {
+                    throw failure(jar, ex);
+                }
+            }
+        } else {
+            executeParallel();
+        }
+
+        // In class path order, the first jar defining a class owns it
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            Jar jar = (Jar) itor.next();
+
+            for (Iterator classes = jar.classes.iterator(); classes.hasNext(); ) {
+                String className = (String) classes.next();
+                Jar owner = (Jar) owners.get(className);
+
+                if (owner == null) {
+                    owners.put(className, jar);
+
+                    if (jar.startup.contains(className)) {
+                        jar.startupClasses++;
+                    }
+                    continue;
+                }
+
+                duplicateClasses++;
+
+                Map counts = (Map) shadowed.get(owner);
+
+                if (counts == null) {
+                    counts = new LinkedHashMap();
+                    shadowed.put(owner, counts);
+                }
+
+                Integer count = (Integer) counts.get(jar);
+                counts.put(jar, Integer.valueOf((count == null) ? 1 : count.intValue() + 1));
+            }
+        }
+    }
+
+    private void executeParallel() throws BuildException {
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.min(threads, jars.size()), new AnalyzerThreadFactory());
+
+        try {
+            List futures = new ArrayList();
+
+            for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+                futures.add(pool.submit((Jar) itor.next()));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    ((Future) futures.get(i)).get();
+                } catch (ExecutionException ex) {
+                    throw failure((Jar) jars.get(i), ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while analyzing jars");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private BuildException failure(Jar jar, Throwable cause) {
+        return new BuildException("Unable to analyze \"" + jar.name + "\": " + cause.getMessage(), cause);
+    }
+
+    /**
+     * @return The number of classes shadowed by a class of the same name in
+     *         a jar earlier on the class path
+     */
+    int getDuplicateClasses() {
+        return duplicateClasses;
+    }
+
+    /**
+     * @return Package, as a directory such as "com/example" -> the names of
+     *         the jars containing it, in class path order
+     */
+    Map getIndex() {
+        Map index = new TreeMap();
+
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            Jar jar = (Jar) itor.next();
+
+            for (Iterator packages = jar.packages.iterator(); packages.hasNext(); ) {
+                String pkg = (String) packages.next();
+                List names = (List) index.get(pkg);
+
+                if (names == null) {
+                    names = new ArrayList();
+                    index.put(pkg, names);
+                }
+
+                names.add(jar.name);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @return The names of the jars which are never referenced, in class
+     *         path order, or null if the main class is in none of the jars
+     */
+    List getUnreferencedJars() {
+        Set referenced = new HashSet();
+        List pending = new ArrayList();
+        Jar main = (mainClass != null) ? (Jar) owners.get(mainClass.replace('.', '/')) : null;
+
+        if (main == null) {
+            return null;
+        }
+
+        pending.add(main);
+
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            Jar jar = (Jar) itor.next();
+
+            if (jar.services || jar.startupClasses > 0) {
+                pending.add(jar);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            Jar jar = (Jar) pending.remove(pending.size() - 1);
+
+            if (!referenced.add(jar)) {
+                continue;
+            }
+
+            for (Iterator itor = jar.references.iterator(); itor.hasNext(); ) {
+                Jar owner = (Jar) owners.get(itor.next());
+
+                if (owner != null && !referenced.contains(owner)) {
+                    pending.add(owner);
+                }
+            }
+        }
+
+        List unreferenced = new ArrayList();
+
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            Jar jar = (Jar) itor.next();
+
+            if (!referenced.contains(jar)) {
+                unreferenced.add(jar.name);
+            }
+        }
+
+        return unreferenced;
+    }
+
+    /**
+     * @return The names of the jars, hottest first; jars defining the same
+     *         classes keep their order
+     */
+    List getClassPathOrder() {
+        final int[] heat = new int[jars.size()];
+
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            Jar jar = (Jar) itor.next();
+
+            if (order != null) {
+                heat[jar.index] = jar.startupClasses;
+                continue;
+            }
+
+            for (Iterator references = jar.references.iterator(); references.hasNext(); ) {
+                Jar owner = (Jar) owners.get(references.next());
+
+                if (owner != null && owner != jar) {
+                    heat[owner.index]++;
+                }
+            }
+        }
+
+        // A jar which shadows classes of another has to stay in front of it
+        int[] predecessors = new int[jars.size()];
+        Map successors = new HashMap();
+
+        for (Iterator itor = shadowed.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            List list = new ArrayList(((Map) e.getValue()).keySet());
+            successors.put(e.getKey(), list);
+
+            for (Iterator jarItor = list.iterator(); jarItor.hasNext(); ) {
+                predecessors[((Jar) jarItor.next()).index]++;
+            }
+        }
+
+        PriorityQueue ready = new PriorityQueue(Math.max(1, jars.size()), new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Jar j1 = (Jar) o1;
+                Jar j2 = (Jar) o2;
+
+                if (heat[j1.index] != heat[j2.index]) {
+                    return (heat[j1.index] > heat[j2.index]) ? -1 : 1;
+                }
+
+                return j1.index - j2.index;
+            }
+        });
+
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            Jar jar = (Jar) itor.next();
+
+            if (predecessors[jar.index] == 0) {
+                ready.add(jar);
+            }
+        }
+
+        List names = new ArrayList();
+
+        while (!ready.isEmpty()) {
+            Jar jar = (Jar) ready.poll();
+            names.add(jar.name);
+
+            List next = (List) successors.get(jar);
+
+            if (next != null) {
+                for (Iterator itor = next.iterator(); itor.hasNext(); ) {
+                    Jar successor = (Jar) itor.next();
+
+                    if (--predecessors[successor.index] == 0) {
+                        ready.add(successor);
+                    }
+                }
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Log the packages, duplicate classes and unreferenced jars.
+     */
+    void report() {
+        Map index = getIndex();
+        int split = 0;
+
+        for (Iterator itor = index.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            List names = (List) e.getValue();
+
+            if (names.size() > 1) {
+                split++;
+                task.log("Package \"" + e.getKey() + "\" is split across " + names, Project.MSG_VERBOSE);
+            }
+        }
+
+        task.log("Analyzed " + jars.size() + " jars: " + index.size() + " packages, "
+            + split + " of them split across jars");
+
+        if (duplicateClasses > 0) {
+            task.log(duplicateClasses + " classes are defined in more than one jar, "
+                + "only the first on the class path is loaded:");
+
+            for (Iterator itor = shadowed.entrySet().iterator(); itor.hasNext(); ) {
+                Map.Entry e = (Map.Entry) itor.next();
+
+                for (Iterator counts = ((Map) e.getValue()).entrySet().iterator(); counts.hasNext(); ) {
+                    Map.Entry count = (Map.Entry) counts.next();
+                    task.log("  " + ((Jar) count.getKey()).name + ": " + count.getValue()
+                        + " classes shadowed by " + ((Jar) e.getKey()).name);
+                }
+            }
+        }
+
+        List unreferenced = getUnreferencedJars();
+
+        if (unreferenced == null) {
+            task.log("Main class \"" + mainClass + "\" is not in any jar of the bundle, "
+                + "unreferenced jars are not reported", Project.MSG_VERBOSE);
+        } else if (!unreferenced.isEmpty()) {
+            task.log(unreferenced.size() + " jars are never referenced, unless by reflection: "
+                + join(unreferenced));
+        }
+    }
+
+    /**
+     * Write the package index in the format of a jar's
+     * <code>META-INF/INDEX.LIST</code>: every jar followed by its packages,
+     * as directories, and the files at its root.
+     *
+     * @param file The file to write
+     * @throws BuildException if the file cannot be written
+     */
+    void writeIndex(File file) throws BuildException {
+        PrintWriter out = null;
+
+        try {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            out.print("JarIndex-Version: 1.0\n\n");
+
+            for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+                Jar jar = (Jar) itor.next();
+                out.print(jar.name + "\n");
+
+                for (Iterator packages = jar.packages.iterator(); packages.hasNext(); ) {
+                    out.print(packages.next() + "\n");
+                }
+
+                for (Iterator files = jar.rootFiles.iterator(); files.hasNext(); ) {
+                    out.print(files.next() + "\n");
+                }
+
+                out.print("\n");
+            }
+
+            out.flush();
+
+            if (out.checkError()) {
+                throw new IOException("write failed");
+            }
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write jar index \"" + file + "\": " + ex.getMessage(), ex);
+        } finally {
+            FileUtils.close(out);
+        }
+    }
+
+    private static String join(List names) {
+        StringBuffer sb = new StringBuffer();
+
+        for (Iterator itor = names.iterator(); itor.hasNext(); ) {
+            sb.append(itor.next());
+
+            if (itor.hasNext()) {
+                sb.append(", ");
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean isPlatformClass(String className) {
+        for (int i = 0; i < PLATFORM_PREFIXES.length; i++) {
+            if (className.startsWith(PLATFORM_PREFIXES[i])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Add the classes referred to by the constant pool of a class file.
+     * Reading stops at the end of the constant pool.
+     *
+     * @param in         The class file
+     * @param references Receives the class names
+     */
+    static void readReferences(DataInputStream in, Set references) throws IOException {
+        if (in.readInt() != 0xcafebabe) {
+            return;
+        }
+
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        List classes = new ArrayList();
+        List descriptors = new ArrayList();
+
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classes.add(Integer.valueOf(in.readUnsignedShort()));
+                    break;
+                case 16: // MethodType
+                    descriptors.add(Integer.valueOf(in.readUnsignedShort()));
+                    break;
+                case 12: // NameAndType
+                    in.readUnsignedShort();
+                    descriptors.add(Integer.valueOf(in.readUnsignedShort()));
+                    break;
+                case 8: // String
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag " + tag);
+            }
+        }
+
+        for (Iterator itor = classes.iterator(); itor.hasNext(); ) {
+            String name = utf8[((Integer) itor.next()).intValue()];
+
+            if (name != null && name.startsWith("[")) {
+                addDescriptorClasses(name, references);
+            } else if (name != null) {
+                references.add(name);
+            }
+        }
+
+        for (Iterator itor = descriptors.iterator(); itor.hasNext(); ) {
+            String descriptor = utf8[((Integer) itor.next()).intValue()];
+
+            if (descriptor != null) {
+                addDescriptorClasses(descriptor, references);
+            }
+        }
+    }
+
+    private static void addDescriptorClasses(String descriptor, Set references) {
+        int start = descriptor.indexOf('L');
+
+        while (start >= 0) {
+            int end = descriptor.indexOf(';', start);
+
+            if (end < 0) {
+                break;
+            }
+
+            references.add(descriptor.substring(start + 1, end));
+            start = descriptor.indexOf('L', end);
+        }
+    }
+
+
+    /**
+     * A jar of the class path and what its scan found
+     */
+    private class Jar implements Callable {
+
+        private final String name;
+        private final int index;
+        private final List sources;
+
+        // Class names, e.g. "com/example/Main"
+        private final Set classes = new HashSet();
+
+        // Directories of the jar's files, sorted
+        private final Set packages = new TreeSet();
+
+        // Files at the root of the jar, sorted
+        private final Set rootFiles = new TreeSet();
+
+        // Classes of other jars referred to by the jar's classes
+        private final Set references = new HashSet();
+
+        // Classes of the jar loaded during startup
+        private final Set startup = new HashSet();
+
+        private boolean services = false;
+
+        // Startup classes which are not shadowed by another jar
+        private int startupClasses = 0;
+
+        Jar(String name, int index, List sources) {
+            this.name = name;
+            this.index = index;
+            this.sources = sources;
+        }
+
+        public Object call() throws IOException {
+            for (Iterator itor = sources.iterator(); itor.hasNext(); ) {
+                scan((File) itor.next());
+            }
+
+            // Only references into other jars matter
+            references.removeAll(classes);
+
+            for (Iterator itor = references.iterator(); itor.hasNext(); ) {
+                if (isPlatformClass((String) itor.next())) {
+                    itor.remove();
+                }
+            }
+
+            return null;
+        }
+
+        private void scan(File file) throws IOException {
+            ZipFile zip = new ZipFile(file);
+
+            try {
+                for (Enumeration e = zip.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = (ZipEntry) e.nextElement();
+                    String entryName = entry.getName();
+
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+
+                    if (entryName.startsWith("META-INF/services/")) {
+                        services = true;
+                    }
+
+                    // Classes of a multi-release jar are indexed under their own name
+                    if (entryName.startsWith(VERSIONS)) {
+                        int slash = entryName.indexOf('/', VERSIONS.length());
+
+                        if (slash < 0) {
+                            continue;
+                        }
+
+                        entryName = entryName.substring(slash + 1);
+                    } else if (entryName.startsWith("META-INF/")) {
+                        continue;
+                    }
+
+                    int slash = entryName.lastIndexOf('/');
+
+                    if (slash < 0) {
+                        rootFiles.add(entryName);
+                    } else {
+                        packages.add(entryName.substring(0, slash));
+                    }
+
+                    if (!entryName.endsWith(".class") || entryName.endsWith("module-info.class")) {
+                        continue;
+                    }
+
+                    String className = entryName.substring(0, entryName.length() - ".class".length());
+                    classes.add(className);
+
+                    if (order != null && order.indexOf(entryName) >= 0) {
+                        startup.add(className);
+                    }
+
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(zip.getInputStream(entry)));
+
+                    try {
+                        readReferences(in, references);
+                    } catch (IOException ex) {
+                        task.log("Cannot read the references of \"" + entry.getName() + "\" in \""
+                            + file + "\": " + ex.getMessage(), Project.MSG_VERBOSE);
+                    } finally {
+                        FileUtils.close(in);
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+        }
+    }
+
+
+    /**
+     * Creates named daemon threads for the analyzer workers
+     */
+    private static class AnalyzerThreadFactory implements ThreadFactory {
+
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jarbundler-analyze-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
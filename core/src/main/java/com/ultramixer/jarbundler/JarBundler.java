@@ -18,8 +18,8 @@ package com.ultramixer.jarbundler;
 
 
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.FileScanner;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.RuntimeConfigurable;
 import org.apache.tools.ant.taskdefs.Chmod;
 import org.apache.tools.ant.taskdefs.Delete;
 import org.apache.tools.ant.taskdefs.MatchingTask;
@@ -29,7 +29,15 @@ import org.apache.tools.ant.types.PatternSet;
 import org.apache.tools.ant.util.FileUtils;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -54,7 +62,9 @@ import java.util.*;
  *
  * <ol>
  * <li>jars Space or comma-separated list of JAR files to include.; OR</li>
- * <li>One or more nested &lt;jarfileset&gt;s. These are normal ANT FileSets;
+ * <li>One or more nested &lt;jarfileset&gt;s. These are normal ANT FileSets,
+ * whose jars may also be repacked or merged into a single jar, see
+ * {@link JarFileSet};
  * OR </li>
  * <li>One or more nested &lt;jarfilelist&gt;s. These are standard ANT
  * FileLists. </li>
@@ -123,6 +133,96 @@ import java.util.*;
  * <dt>chmod
  * <dd>Full path to the chmod command. This almost certainly does NOT need to
  * be set.
+ *
+ * <dt>incremental
+ * <dd>If true, update an existing bundle in place instead of deleting and
+ * recreating it (default "false")
+ *
+ * <dt>comparecontents
+ * <dd>If true, incremental updates also compare file contents, not only
+ * size and modification time (default "false")
+ *
+ * <dt>threads
+ * <dd>Number of files copied concurrently (default: number of processors)
+ *
+ * <dt>linkmode
+ * <dd>How files are placed into the bundle: "copy", "hardlink", "reflink"
+ * or "auto" (default "copy")
+ *
+ * <dt>cachedir
+ * <dd>Directory of a content addressed store the bundle files are copied
+ * or linked from, shared between builds
+ *
+ * <dt>cachesize
+ * <dd>Maximum size of the cache in megabytes (default "1024")
+ *
+ * <dt>dryrun
+ * <dd>If true, determine the content of the bundle without writing it
+ * (default "false")
+ *
+ * <dt>manifest
+ * <dd>File receiving a manifest of the bundle's directories, files,
+ * permissions and generated files
+ *
+ * <dt>manifestformat
+ * <dd>"text" or "json", the format of the manifest (default "text")
+ *
+ * <dt>archive
+ * <dd>Zip or tar.gz archive the bundle is written into instead of a
+ * directory; "dir" is optional then
+ *
+ * <dt>archiveformat
+ * <dd>"zip" or "tar.gz" (default: given by the archive's name)
+ *
+ * <dt>classloadorder
+ * <dd>Log of the classes loaded during startup; every jar is repacked with
+ * those classes first, in load order
+ *
+ * <dt>analyzejars
+ * <dd>If true, report the packages of the jars, classes defined by more
+ * than one jar and jars which are never referenced (default "false")
+ *
+ * <dt>jarindex
+ * <dd>File receiving the packages of every jar, in the format of a
+ * META-INF/INDEX.LIST
+ *
+ * <dt>reorderclasspath
+ * <dd>If true, put the hottest jars first on the class path (default
+ * "false")
+ *
+ * <dt>reproducible
+ * <dd>If true, the same inputs give a byte for byte identical bundle or
+ * archive: sorted Info.plist dictionaries, one modification time for all
+ * files and fixed permissions (default "false")
+ *
+ * <dt>sourcedateepoch
+ * <dd>Modification time of all files in reproducible mode, in seconds since
+ * 1970 (default: the SOURCE_DATE_EPOCH environment variable, otherwise
+ * 1980-01-01T00:00:00Z)
+ *
+ * <dt>sharehelpbookfiles
+ * <dd>If true, files with the same path and content in the help books of
+ * several locales, e.g. common images, are hard linked to one copy
+ * (default "false")
+ *
+ * <dt>uptodatecheck
+ * <dd>If true, skip the build when a stamp file in the bundle shows that
+ * nothing it is built from has changed (default "false")
+ *
+ * <dt>metrics
+ * <dd>JSON file receiving the time, number of files and bytes written of
+ * every phase of the build
+ *
+ * <dt>metricsproperty
+ * <dd>Prefix of Ant properties receiving the time, number of files and
+ * bytes written of every phase of the build
+ *
+ * <dt>plistformat
+ * <dd>"xml" or "binary", the format of the Info.plist file (default "xml")
+ *
+ * <dt>plistwriter
+ * <dd>"stream" or "dom", the implementation writing the Info.plist file
+ * (default "stream")
  * </dl>
  *
  * <p>
@@ -149,6 +249,12 @@ import java.util.*;
  * </p>
  *
  * <p>
+ * All filesets and filelists are resolved before the bundle is written. A
+ * file included more than once is copied once; two different files for the
+ * same location in the bundle fail the build.
+ * </p>
+ *
+ * <p>
  * The task supports a nested &lt;javaproperty&gt; element, which allows you to
  * specify further properties which are set for the JVM when the application is
  * launched. This takes a required <code>key</code> attribute, giving the
@@ -213,7 +319,33 @@ public class JarBundler extends MatchingTask {
 
     private static final String DEFAULT_STUB = "/System/Library/Frameworks/JavaVM.framework/Versions/Current/Resources/MacOS/JavaApplicationStub";
 
-    private static final Set menuItems = new HashSet();
+
+    // Permissions added to executables, i.e. "ugo+rx"
+    private static final Set EXECUTABLE_PERMISSIONS = EnumSet.of(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_EXECUTE,
+        PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
+        PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE);
+
+    // Permissions of all files of a reproducible bundle, 0644 and 0755
+    private static final Set FILE_MODE = EnumSet.of(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+        PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_READ);
+    private static final Set EXECUTABLE_MODE = EnumSet.of(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+        PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
+        PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE);
+
+    // Modification time of a reproducible bundle without SOURCE_DATE_EPOCH,
+    // 1980-01-01T00:00:00Z, the earliest time a zip entry can hold
+    private static final long DEFAULT_SOURCE_DATE_EPOCH = 315532800L;
+
+    // Attributes which change neither the bundle nor the files written next
+    // to it, and so are left out of the fingerprint of the up to date check
+    private static final Set UNSTAMPED_ATTRIBUTES = new HashSet(Arrays.asList(new String[]{
+        "verbose", "showplist", "threads", "metrics", "metricsproperty"}));
+
+    // Maximum number of files passed to a single forked chmod
+    private static final int CHMOD_MAX_PARALLEL = 500;
     private File mAppIcon;
 
     private File mRootDir;
@@ -241,9 +373,98 @@ public class JarBundler extends MatchingTask {
 
     private final List mHelpBooks = new ArrayList();
 
+    // Menu items of the services, which must be unique
+    private final Set menuItems = new HashSet();
+
+    // Class data sharing archive generated for the application
+    private AppCDS mAppCDS = null;
+
+    // Java runtime embedded into Contents/PlugIns
+    private JavaRuntime mRuntime = null;
+    private File mRuntimeHome = null;
+
     private boolean mVerbose = false;
     private boolean mShowPlist = false;
 
+    // Write the Info.plist through a DOM instead of streaming it
+    private boolean mDOMPlistWriter = false;
+
+    // Write the Info.plist in the binary property list format
+    private boolean mBinaryPlist = false;
+
+    // Incremental bundle updates
+    private boolean mIncremental = false;
+    private boolean mCompareContents = false;
+
+    // Collects the directories and files of the bundle while planning
+    private BundlePlan.Builder mPlanBuilder;
+
+    // Merged jars by name, while planning
+    private final Map mMergedJars = new LinkedHashMap();
+
+    // Files included by each fileset, so every fileset is only scanned
+    // once, also by the help book scans running concurrently
+    private final FileSetScans mScannedFileSets = new FileSetScans();
+
+    // Scans, copy workers and caches shared with the other bundles of a
+    // <jarbundlers> batch, or null
+    private BundleSession mSession = null;
+
+    // Number of files copied concurrently
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+
+    // Copy, hard link or clone files into the bundle
+    private String mLinkMode = CopyEngine.LINK_COPY;
+
+    // Content addressed store shared between builds
+    private File mCacheDir = null;
+    private int mCacheSize = 1024;
+
+    // Plan the bundle without writing it
+    private boolean mDryRun = false;
+
+    // Description of the planned bundle
+    private File mManifest = null;
+    private String mManifestFormat = BundleManifest.FORMAT_TEXT;
+
+    // Write the bundle into this archive instead of a directory
+    private File mArchive = null;
+    private String mArchiveFormat = null;
+
+    // Time, files and bytes of every phase of the build
+    private BundleMetrics mMetrics;
+    private File mMetricsFile = null;
+    private String mMetricsProperty = null;
+
+    // Place the classes loaded during startup first in every jar
+    private File mClassLoadOrderFile = null;
+    private ClassLoadOrder mClassLoadOrder = null;
+
+    // Analysis of the jars on the class path
+    private boolean mAnalyzeJars = false;
+    private File mJarIndex = null;
+    private boolean mReorderClassPath = false;
+
+    // Files outside the bundle produced while planning, written once the
+    // plan is carried out and never in a dry run
+    private JarAnalyzer mIndexedJars = null;
+    private List mEncodedIcons = new ArrayList();
+
+    // Identical bundles from identical inputs, all files with this time
+    private boolean mReproducible = false;
+    private long mSourceDateEpoch = -1;
+    private long mReproducibleTime = -1;
+
+    // Skip the build if the stamp in the bundle matches the inputs
+    private boolean mUpToDateCheck = false;
+
+    // The attributes and nested elements of a <jarbundler> nested in a
+    // <jarbundlers> batch, whose own wrapper holds none
+    private RuntimeConfigurable mConfiguration = null;
+
+    // Hard link identical files of the help books instead of copying them
+    private boolean mShareHelpBookFiles = false;
+
     // Java properties used by macOS Java applications
 
     private File mStubFile = new File(DEFAULT_STUB);
@@ -363,7 +584,7 @@ public class JarBundler extends MatchingTask {
      */
     public void setIcon(File f) {
         mAppIcon = f;
-        bundleProperties.setCFBundleIconFile(f.getName());
+        bundleProperties.setCFBundleIconFile(IcnsIcon.bundleName(f));
     }
 
     /**
@@ -666,6 +887,445 @@ public class JarBundler extends MatchingTask {
     }
 
 
+    /**
+     * Setter for the "incremental" attribute (optional)
+     *
+     * <p>If set, an existing application bundle is updated in place: only
+     * files whose size or modification time differ from their source are
+     * copied, files no longer part of the bundle are removed and the
+     * Info.plist and PkgInfo files are only rewritten if their content
+     * changed.</p>
+     *
+     * @param b If true, update an existing bundle instead of recreating it.
+     * @since 3.4.0
+     */
+    public void setIncremental(boolean b) {
+        this.mIncremental = b;
+    }
+
+
+    /**
+     * Setter for the "comparecontents" attribute (optional)
+     *
+     * <p>Only used together with "incremental". Files whose size and
+     * modification time match are additionally compared byte by byte.</p>
+     *
+     * @param b If true, compare file contents during incremental updates.
+     * @since 3.4.0
+     */
+    public void setCompareContents(boolean b) {
+        this.mCompareContents = b;
+    }
+
+
+    /**
+     * Setter for the "threads" attribute (optional)
+     *
+     * <p>The files of the bundle are collected first and then copied by a
+     * pool of worker threads. Defaults to the number of available
+     * processors; "1" copies all files on the Ant thread.</p>
+     *
+     * @param threads Number of files copied concurrently
+     * @since 3.4.0
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("\"threads\" must be at least 1");
+        }
+        this.mThreads = threads;
+    }
+
+
+    /**
+     * Setter for the "linkmode" attribute (optional)
+     *
+     * <p>Defines how the jars, executables, resources and help books are
+     * placed into the bundle:</p>
+     *
+     * <ul>
+     *     <li>copy - copy every file (default)</li>
+     *     <li>hardlink - create hard links to the source files</li>
+     *     <li>reflink - clone the source files using copy-on-write
+     *     (btrfs, XFS, APFS)</li>
+     *     <li>auto - clone, otherwise hard link, otherwise copy</li>
+     * </ul>
+     *
+     * <p>Every file which cannot be linked or cloned, e.g. because it lives
+     * on a different file system, is copied. Executables are never hard
+     * linked, since a hard link shares its permissions with the source
+     * file. Cloned files are cloned from their sources, not from the
+     * "cachedir" cache.</p>
+     *
+     * @param s One of "copy", "hardlink", "reflink" or "auto"
+     * @since 3.4.0
+     */
+    public void setLinkMode(String s) {
+        String mode = s.toLowerCase(Locale.ENGLISH);
+
+        if (!CopyEngine.LINK_COPY.equals(mode) && !CopyEngine.LINK_HARDLINK.equals(mode)
+            && !CopyEngine.LINK_REFLINK.equals(mode) && !CopyEngine.LINK_AUTO.equals(mode)) {
+            throw new BuildException("Invalid link mode \"" + s
+                + "\" (expected 'copy', 'hardlink', 'reflink' or 'auto')");
+        }
+
+        this.mLinkMode = mode;
+    }
+
+
+    /**
+     * Setter for the "cachedir" attribute (optional)
+     *
+     * <p>Every file placed into the bundle is stored in this directory,
+     * named by the digest of its content, and copied or linked (see
+     * "linkmode") into the bundle from there. The digests of unchanged
+     * source files are remembered, so bundles built again from the same
+     * jars don't read them again. The cache may be shared by any number of
+     * builds.</p>
+     *
+     * <p>With "linkmode" set to "hardlink" or "auto" the bundle files are
+     * hard links to the cached files, which therefore must not be modified
+     * in place.</p>
+     *
+     * @param dir The cache directory
+     * @since 3.4.0
+     */
+    public void setCacheDir(File dir) {
+        this.mCacheDir = dir;
+    }
+
+
+    /**
+     * Setter for the "cachesize" attribute (optional)
+     *
+     * <p>Once a build is done, the least recently used files are evicted
+     * from the cache until it is no larger than this size.</p>
+     *
+     * @param megabytes The maximum size of the cache in megabytes (default 1024)
+     * @since 3.4.0
+     */
+    public void setCacheSize(int megabytes) {
+        if (megabytes < 0) {
+            throw new BuildException("\"cachesize\" must not be negative");
+        }
+        this.mCacheSize = megabytes;
+    }
+
+
+    /**
+     * Setter for the "dryrun" attribute (optional)
+     *
+     * <p>If true, everything the bundle consists of is determined, but
+     * nothing is deleted, created or copied. Combine with "manifest" to find
+     * out what would be written.</p>
+     *
+     * @param b If true, don't write the bundle
+     * @since 3.4.0
+     */
+    public void setDryRun(boolean b) {
+        this.mDryRun = b;
+    }
+
+
+    /**
+     * Setter for the "manifest" attribute (optional)
+     *
+     * <p>Write a manifest of the bundle to this file: every directory and
+     * file of the bundle with its mode and source, the files made
+     * executable, and the content of the generated Info.plist, PkgInfo and
+     * InfoPlist.strings files. The manifest of an unchanged bundle does not
+     * change, so it can be compared with the one of the previous build.</p>
+     *
+     * @param f The manifest file
+     * @since 3.4.0
+     */
+    public void setManifest(File f) {
+        this.mManifest = f;
+    }
+
+
+    /**
+     * Setter for the "manifestformat" attribute (optional)
+     *
+     * @param s Either "text" (default) or "json"
+     * @since 3.4.0
+     */
+    public void setManifestFormat(String s) {
+        String format = s.toLowerCase(Locale.ENGLISH);
+
+        if (!BundleManifest.FORMAT_TEXT.equals(format) && !BundleManifest.FORMAT_JSON.equals(format)) {
+            throw new BuildException("Invalid manifest format \"" + s + "\" (expected 'text' or 'json')");
+        }
+
+        this.mManifestFormat = format;
+    }
+
+
+    /**
+     * Setter for the "archive" attribute (optional)
+     *
+     * <p>Write the bundle straight into a zip or gzip compressed tar archive
+     * instead of a directory. Every file is read from its source and written
+     * into the archive once; no bundle directory is created. Directories and
+     * executables get the Unix mode 0755, all other files 0644. The
+     * attributes "incremental", "linkmode", "cachedir" and "threads" don't
+     * apply to archives.</p>
+     *
+     * @param f The archive, named *.zip, *.tar.gz or *.tgz unless
+     *          "archiveformat" is set
+     * @since 3.4.0
+     */
+    public void setArchive(File f) {
+        this.mArchive = f;
+    }
+
+
+    /**
+     * Setter for the "archiveformat" attribute (optional)
+     *
+     * @param s Either "zip" or "tar.gz"; by default the format is given by
+     *          the name of the archive
+     * @since 3.4.0
+     */
+    public void setArchiveFormat(String s) {
+        String format = s.toLowerCase(Locale.ENGLISH);
+
+        if ("tgz".equals(format)) {
+            format = BundleArchiver.FORMAT_TAR_GZ;
+        }
+
+        if (!BundleArchiver.FORMAT_ZIP.equals(format) && !BundleArchiver.FORMAT_TAR_GZ.equals(format)) {
+            throw new BuildException("Invalid archive format \"" + s + "\" (expected 'zip' or 'tar.gz')");
+        }
+
+        this.mArchiveFormat = format;
+    }
+
+
+    /**
+     * Setter for the "metrics" attribute (optional)
+     *
+     * <p>The wall time, number of files and bytes written of every phase of
+     * the build: delete, dirs, icon, jar, exec, resource, helpbooks, stub,
+     * runtime, infoplist and pkginfo, plus analyze, archive, appcds and
+     * uptodate when the jars are analyzed, an archive is written, an AppCDS
+     * archive is generated or the inputs are compared with the stamp. The
+     * same figures are logged at the end of the task, at verbose level
+     * unless "verbose" is set.</p>
+     *
+     * @param f The JSON file receiving the metrics
+     * @since 3.4.0
+     */
+    public void setMetrics(File f) {
+        this.mMetricsFile = f;
+    }
+
+
+    /**
+     * Setter for the "metricsproperty" attribute (optional)
+     *
+     * <p>Set the properties <i>prefix.phase</i>.time (in milliseconds),
+     * <i>prefix.phase</i>.files and <i>prefix.phase</i>.bytes for every
+     * phase of the build, and <i>prefix</i>.total.time.</p>
+     *
+     * @param s The prefix of the property names
+     * @since 3.4.0
+     */
+    public void setMetricsProperty(String s) {
+        this.mMetricsProperty = s;
+    }
+
+
+    /**
+     * Setter for the "classloadorder" attribute (optional)
+     *
+     * <p>A log of the classes the application loads during startup,
+     * written by a training run with <code>-Xlog:class+load</code>,
+     * <code>-verbose:class</code> or <code>-XX:DumpLoadedClassList</code>.
+     * Every application jar is then repacked with its startup classes
+     * right after the manifest, in load order, and the number of startup
+     * classes in each jar is logged.</p>
+     *
+     * @param f The class load log
+     * @since 3.4.0
+     */
+    public void setClassLoadOrder(File f) {
+        this.mClassLoadOrderFile = f;
+    }
+
+
+    /**
+     * Setter for the "analyzejars" attribute (optional)
+     *
+     * <p>Report the packages of the application jars, the classes defined
+     * by more than one jar and the jars which are never referenced.</p>
+     *
+     * @param b If true, analyze the jars
+     * @since 3.4.0
+     */
+    public void setAnalyzeJars(boolean b) {
+        this.mAnalyzeJars = b;
+    }
+
+
+    /**
+     * Setter for the "jarindex" attribute (optional)
+     *
+     * <p>The jars are analyzed and their packages written to the file, in
+     * the format of a <code>META-INF/INDEX.LIST</code>.</p>
+     *
+     * @param f The index file
+     * @since 3.4.0
+     */
+    public void setJarIndex(File f) {
+        this.mJarIndex = f;
+    }
+
+
+    /**
+     * Setter for the "reorderclasspath" attribute (optional)
+     *
+     * <p>The jars are analyzed and the class path is reordered to put the
+     * hottest jars first: those with the most startup classes if
+     * "classloadorder" is set, otherwise those referred to most by other
+     * jars. Jars which define the same classes keep their order.</p>
+     *
+     * @param b If true, reorder the class path
+     * @since 3.4.0
+     */
+    public void setReorderClassPath(boolean b) {
+        this.mReorderClassPath = b;
+    }
+
+
+    /**
+     * Setter for the "reproducible" attribute (optional)
+     *
+     * <p>Build the same bundle, byte for byte, from the same inputs: the
+     * keys of the Java properties and LSEnvironment dictionaries are
+     * sorted, every file, directory, archive entry and entry of a
+     * rewritten jar gets the time of "sourcedateepoch", files get the
+     * permissions 0644, executables and directories 0755, and archives
+     * record no owner.</p>
+     *
+     * <p>Since every file has the same modification time, incremental
+     * builds compare the contents of files instead, and files are never
+     * hard linked, as a hard link shares its time and permissions with
+     * its source. An AppCDS archive is always generated again.</p>
+     *
+     * @param b If true, build a reproducible bundle
+     * @since 3.4.0
+     */
+    public void setReproducible(boolean b) {
+        this.mReproducible = b;
+    }
+
+
+    /**
+     * Setter for the "sourcedateepoch" attribute (optional)
+     *
+     * <p>The modification time of all files in reproducible mode. Defaults
+     * to the <code>SOURCE_DATE_EPOCH</code> environment variable, or
+     * 1980-01-01T00:00:00Z, the earliest time a zip file can hold.</p>
+     *
+     * @param seconds Seconds since 1970-01-01T00:00:00Z
+     * @since 3.4.0
+     */
+    public void setSourceDateEpoch(long seconds) {
+        if (seconds < 0) {
+            throw new BuildException("\"sourcedateepoch\" must not be negative");
+        }
+        this.mSourceDateEpoch = seconds;
+    }
+
+
+    /**
+     * Setter for the "sharehelpbookfiles" attribute (optional)
+     *
+     * <p>Localized help books often contain the same images and style
+     * sheets for every locale. A file of a localized help book with the
+     * same path and content as the file of an earlier locale is hard linked
+     * to it instead of being copied, which makes the bundle smaller on
+     * disk. Where a link cannot be made the file is copied. Archives hold
+     * every file in full, and reproducible bundles are never linked.</p>
+     *
+     * @param b If true, link identical help book files
+     * @since 3.4.0
+     */
+    public void setShareHelpBookFiles(boolean b) {
+        this.mShareHelpBookFiles = b;
+    }
+
+
+    /**
+     * Setter for the "uptodatecheck" attribute (optional)
+     *
+     * <p>Before the bundle is planned, the filesets are scanned and a
+     * fingerprint is taken of the attributes and nested elements of the
+     * task, with their properties expanded, and of the path, size and
+     * modification time of every input file, including the icons, the stub
+     * and the JDKs a runtime is linked from or an AppCDS archive trained
+     * with. If it matches the stamp file written into
+     * <code>Contents/Resources</code> by the last build and every file of
+     * the bundle still exists, nothing else is done: no jar is analyzed or
+     * hashed, no icon encoded, no help book indexed and no runtime linked.
+     * The manifest and jar index of the last build are kept. A task created
+     * without a build file, whose attributes are unknown, is planned first
+     * and the fingerprint taken from the plan, see {@link BundleStamp}.</p>
+     *
+     * <p>Only applies to bundles written to a directory, not to archives.
+     * Changes made to the bundle after it was built, e.g. by signing it,
+     * are not noticed.</p>
+     *
+     * @param b If true, skip unchanged bundles
+     * @since 3.4.0
+     */
+    public void setUpToDateCheck(boolean b) {
+        this.mUpToDateCheck = b;
+    }
+
+
+    /**
+     * Setter for the "plistwriter" attribute (optional)
+     *
+     * <p>The Info.plist file is streamed in a single pass by default. Set to
+     * "dom" to build a DOM and serialize it through the JAXP identity
+     * transformer instead. Both writers produce the same output.</p>
+     *
+     * @param s Either "stream" (default) or "dom"
+     * @since 3.4.0
+     */
+    public void setPlistWriter(String s) {
+        if ("dom".equalsIgnoreCase(s)) {
+            mDOMPlistWriter = true;
+        } else if ("stream".equalsIgnoreCase(s)) {
+            mDOMPlistWriter = false;
+        } else {
+            throw new BuildException("Invalid plist writer \"" + s + "\" (expected 'stream' or 'dom')");
+        }
+    }
+
+
+    /**
+     * Setter for the "plistformat" attribute (optional)
+     *
+     * <p>Set to "binary" to write the Info.plist file in the binary
+     * "bplist00" format, which is smaller and faster to parse at launch
+     * than the XML format.</p>
+     *
+     * @param s Either "xml" (default) or "binary"
+     * @since 3.4.0
+     */
+    public void setPlistFormat(String s) {
+        if ("binary".equalsIgnoreCase(s)) {
+            mBinaryPlist = true;
+        } else if ("xml".equalsIgnoreCase(s)) {
+            mBinaryPlist = false;
+        } else {
+            throw new BuildException("Invalid plist format \"" + s + "\" (expected 'xml' or 'binary')");
+        }
+    }
+
+
     /**
      * <p>Setter for the "build" attribute (optional) This key specifies the
      * exact build version of the bundle. This string is usually of the form
@@ -841,9 +1501,9 @@ public class JarBundler extends MatchingTask {
      **************************************************************************/
 
     /**
-     * @param fs A FileSet
+     * @param fs A FileSet of jars, optionally merged into a single jar
      */
-    public void addJarfileset(FileSet fs) {
+    public void addJarfileset(JarFileSet fs) {
         mJarFileSets.add(fs);
     }
 
@@ -1015,39 +1675,87 @@ public class JarBundler extends MatchingTask {
         mHelpBooks.add(helpBook);
     }
 
-
-    /***************************************************************************
-     * Execute the task
-     **************************************************************************/
-
     /**
-     * The method executing the task
+     * Generate an AppCDS archive of the classes the application loads
+     * during a training run, see {@link AppCDS}.
+     *
+     * @param appCDS The archive settings
+     * @since 3.4.0
      */
-    public void execute() throws BuildException {
+    public void addConfiguredAppCDS(AppCDS appCDS) {
+        if (mAppCDS != null) {
+            throw new BuildException("Only one '<appcds>' element is allowed");
+        }
 
-        // Delete any existing Application bundle directory structure
+        String archive = appCDS.getArchive();
 
-        bundleDir = new File(mRootDir, bundleProperties.getApplicationName() + ".app");
+        if (archive == null || archive.length() == 0 || archive.indexOf('/') >= 0
+            || archive.indexOf('\\') >= 0) {
+            throw new BuildException("The '<appcds>' attribute 'archive' must be a file name");
+        }
 
-        if (bundleDir.exists()) {
-            Delete deleteTask = new Delete();
-            deleteTask.setProject(getProject());
-            deleteTask.setDir(bundleDir);
-            deleteTask.execute();
+        if (appCDS.getTimeout() <= 0) {
+            throw new BuildException("The '<appcds>' attribute 'timeout' must be positive");
         }
 
-        // Validate - look for required attributes
-        // ///////////////////////////////////////////
+        mAppCDS = appCDS;
+    }
 
-        if (mRootDir == null) {
-            throw new BuildException("Required attribute \"dir\" is not set.");
+    /**
+     * Embed a Java runtime linked by jlink, see {@link JavaRuntime}.
+     *
+     * @param runtime The runtime settings
+     * @since 3.4.0
+     */
+    public void addConfiguredRuntime(JavaRuntime runtime) {
+        if (mRuntime != null) {
+            throw new BuildException("Only one '<runtime>' element is allowed");
         }
 
-        if (mJarAttrs.isEmpty() && mJarFileSets.isEmpty()
-            && mJarFileLists.isEmpty()) {
-            throw new BuildException("Either the attribute \"jar\" must "
-                + "be set, or one or more jarfilelists or "
-                + "jarfilesets must be added.");
+        String name = runtime.getName();
+
+        if (name == null || name.length() == 0 || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            throw new BuildException("The '<runtime>' attribute 'name' must be a file name");
+        }
+
+        mRuntime = runtime;
+    }
+
+
+    /***************************************************************************
+     * Execute the task
+     **************************************************************************/
+
+    /**
+     * The method executing the task
+     */
+    public void execute() throws BuildException {
+
+        long start = System.nanoTime();
+
+        // Validate - look for required attributes
+        // ///////////////////////////////////////////
+
+        if (mRootDir == null && mArchive == null) {
+            throw new BuildException("Required attribute \"dir\" is not set.");
+        }
+
+        String archiveFormat = null;
+
+        if (mArchive != null) {
+            archiveFormat = (mArchiveFormat != null) ? mArchiveFormat : BundleArchiver.formatOf(mArchive);
+
+            if (archiveFormat == null) {
+                throw new BuildException("Cannot tell the format of archive \"" + mArchive
+                    + "\", set \"archiveformat\" to 'zip' or 'tar.gz'");
+            }
+        }
+
+        if (mJarAttrs.isEmpty() && mJarFileSets.isEmpty()
+            && mJarFileLists.isEmpty()) {
+            throw new BuildException("Either the attribute \"jar\" must "
+                + "be set, or one or more jarfilelists or "
+                + "jarfilesets must be added.");
         }
 
         if (!mJarAttrs.isEmpty()
@@ -1066,6 +1774,11 @@ public class JarBundler extends MatchingTask {
                 "Required attribute \"mainclass\" is not set.");
         }
 
+        if (mAppCDS != null && mArchive != null) {
+            throw new BuildException("'<appcds>' cannot be used with \"archive\", "
+                + "the application has to be run from the bundle directory");
+        }
+
         // /////////////////////////////////////////////////////////////////////////////////////
 
         // Set up some Java properties
@@ -1097,223 +1810,1419 @@ public class JarBundler extends MatchingTask {
                 mGrowbox.toString());
         }
 
-        if (!mRootDir.exists()
-            || (mRootDir.exists() && !mRootDir.isDirectory())) {
-            throw new BuildException(
-                "Destination directory specified by \"dir\" "
-                    + "attribute must already exist.");
-        }
+        if (mArchive != null) {
+
+            // The bundle is never written to disk, "dir" only names it
+            File rootDir = (mRootDir != null) ? mRootDir : mArchive.getAbsoluteFile().getParentFile();
+            bundleDir = new File(rootDir, bundleProperties.getApplicationName() + ".app");
+        } else {
+            if (!mRootDir.exists()
+                || (mRootDir.exists() && !mRootDir.isDirectory())) {
+                throw new BuildException(
+                    "Destination directory specified by \"dir\" "
+                        + "attribute must already exist.");
+            }
 
-        if (bundleDir.exists()) {
-            throw new BuildException("The directory/bundle \""
-                + bundleDir.getName()
-                + "\" already exists, cannot continue.");
+            bundleDir = new File(mRootDir, bundleProperties.getApplicationName() + ".app");
         }
 
+        boolean update = mIncremental && bundleDir.isDirectory();
+
         // Status message
-        log("Creating application bundle: " + bundleDir);
+        if (mDryRun) {
+            log("Planning application bundle: " + bundleDir);
+        } else if (mArchive != null) {
+            log("Archiving application bundle " + bundleDir.getName() + " to " + mArchive);
+        } else if (update) {
+            log("Updating application bundle: " + bundleDir);
+        } else {
+            log("Creating application bundle: " + bundleDir);
+        }
 
-        if (!bundleDir.mkdir()) {
-            throw new BuildException("Unable to create bundle: " + bundleDir);
+        mMetrics = new BundleMetrics();
+        mScannedFileSets.clear();
+
+        // Compare the inputs with the stamp before anything expensive is
+        // done, like analyzing jars, encoding icons or linking a runtime
+        BundleStamp stamp = null;
+
+        if (mUpToDateCheck && mArchive == null && !mDryRun) {
+            long t = System.nanoTime();
+            String inputs = inputs();
+
+            if (inputs != null) {
+                File stampFile = new File(new File(new File(bundleDir, "Contents"), "Resources"), BundleStamp.FILE_NAME);
+                stamp = BundleStamp.ofInputs(stampFile, bundleDir, inputs);
+
+                boolean upToDate = stamp.isUpToDate()
+                    && (mManifest == null || mManifest.isFile()) && (mJarIndex == null || mJarIndex.isFile());
+
+                mMetrics.addTime(BundleMetrics.UP_TO_DATE, System.nanoTime() - t);
+
+                if (upToDate) {
+                    log("Application bundle " + bundleDir.getName() + " is up to date");
+                    mScannedFileSets.clear();
+                    mMetrics.setTotalTime(System.nanoTime() - start);
+                    reportMetrics();
+                    return;
+                }
+            }
         }
 
-        // Make the Contents directory
-        mContentsDir = new File(bundleDir, "Contents");
+        // Resolve all filesets and filelists before touching the bundle
+
+        BundlePlan plan = plan();
+
+        if (mManifest != null) {
+            writeManifest(plan);
+        }
 
-        if (!mContentsDir.mkdir()) {
-            throw new BuildException("Unable to create directory "
-                + mContentsDir);
+        if (!mDryRun) {
+            writePlanFiles();
         }
 
-        // Make the "MacOS" directory
-        mMacOsDir = new File(mContentsDir, "MacOS");
+        if (mDryRun) {
+            if (mManifest == null) {
+                logManifest(plan);
+            }
+        } else if (mArchive != null) {
+            long t = System.nanoTime();
+            BundleArchiver archiver = new BundleArchiver(plan, bundleDir);
+
+            if (mReproducible) {
+                archiver.setTime(mReproducibleTime);
+                archiver.setReproducible(true);
+            }
+
+            archiver.write(mArchive, archiveFormat, this);
+            mMetrics.addTime(BundleMetrics.ARCHIVE, System.nanoTime() - t);
+            mMetrics.addFiles(BundleMetrics.ARCHIVE, 1, mArchive.length());
+        } else {
+
+            // Without the configuration of the task only the plan tells
+            // whether the bundle is up to date
+            if (mUpToDateCheck && stamp == null) {
+                stamp = BundleStamp.ofPlan(new File(mResourcesDir, BundleStamp.FILE_NAME), plan, bundleDir, stampOptions());
+
+                if (stamp.isUpToDate()) {
+                    log("Application bundle " + bundleDir.getName() + " is up to date");
+                    mMetrics.setTotalTime(System.nanoTime() - start);
+                    reportMetrics();
+                    return;
+                }
+            }
+
+            if (stamp != null) {
+                stamp.delete();
+            }
+
+            // Delete any existing Application bundle directory structure
+
+            if (bundleDir.exists() && !update) {
+                long t = System.nanoTime();
+                Delete deleteTask = new Delete();
+                deleteTask.setProject(getProject());
+                deleteTask.setDir(bundleDir);
+                deleteTask.execute();
+                mMetrics.addTime(BundleMetrics.DELETE, System.nanoTime() - t);
+            }
 
-        if (!mMacOsDir.mkdir()) {
-            throw new BuildException("Unable to create directory " + mMacOsDir);
+            execute(plan);
+
+            // Before the AppCDS archive records the times of the jars
+            if (mReproducible) {
+                normalize(plan);
+            }
+
+            if (mAppCDS != null) {
+                long t = System.nanoTime();
+                generateAppCDS();
+                lap(BundleMetrics.APPCDS, t);
+            }
+
+            if (stamp != null) {
+                stamp.write(plan);
+            }
+
+            if (mReproducible) {
+                normalizeOutputs(plan);
+            }
         }
 
-        // Make the Resources directory
-        mResourcesDir = new File(mContentsDir, "Resources");
+        mMetrics.setTotalTime(System.nanoTime() - start);
+        reportMetrics();
+
+        // Done!
+    }
+
+    /**
+     * @param session State shared with the other bundles of a batch, or null
+     */
+    void setSession(BundleSession session) {
+        this.mSession = session;
+    }
+
+    /**
+     * @return The bundle directory of the last build, or null
+     */
+    File getBundleDir() {
+        return bundleDir;
+    }
+
+    /**
+     * @param configuration The attributes and nested elements the task was
+     *                      configured from, for the up to date check of a
+     *                      task nested in another one
+     */
+    void setConfiguration(RuntimeConfigurable configuration) {
+        this.mConfiguration = configuration;
+    }
+
+    /**
+     * @return The metrics of the last build, or null
+     */
+    BundleMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return The options which change the bundle without changing its
+     *         plan, for the fingerprint of the up to date check
+     */
+    private String stampOptions() {
+        StringBuffer sb = new StringBuffer();
+        String version = JarBundler.class.getPackage().getImplementationVersion();
 
-        if (!mResourcesDir.mkdir()) {
-            throw new BuildException("Unable to create directory "
-                + mResourcesDir);
+        sb.append("version=").append(version);
+        sb.append(" reproducible=").append(mReproducible ? reproducibleTime() : -1);
+
+        if (mAppCDS != null) {
+            sb.append(" appcds=").append(mAppCDS.getJdk()).append(',').append(mAppCDS.getArguments())
+                .append(',').append(mAppCDS.getTimeout()).append(',').append(mAppCDS.isHeadless());
         }
 
-        // Make the Resources/Java directory
-        mJavaDir = new File(mResourcesDir, "Java");
+        return sb.toString();
+    }
+
+    /**
+     * Describe everything the bundle is built from, without planning it, for
+     * the fingerprint of the up to date check: the attributes and nested
+     * elements of the task with their properties expanded, the path, size
+     * and modification time of every file of the filesets, filelists and
+     * file attributes, of the icons and stub, of the JDKs linked from and
+     * trained with, and the options of {@link #stampOptions()}.
+     *
+     * @return The description, or null if the task was not configured by a
+     *         build file, so its attributes are unknown
+     * @throws BuildException if a fileset cannot be scanned
+     */
+    private String inputs() throws BuildException {
+        RuntimeConfigurable configuration = (mConfiguration != null)
+            ? mConfiguration : getRuntimeConfigurableWrapper();
 
-        if (!mJavaDir.mkdir()) {
-            throw new BuildException("Unable to create directory " + mJavaDir);
+        if (configuration == null || configuration.getAttributeMap().isEmpty()) {
+            return null;
         }
 
-        // Copy icon file to resource dir. If no icon parameter
-        // is supplied, the default icon will be used.
+        StringBuffer sb = new StringBuffer();
+        describeElement(configuration, "", sb);
 
-        if (mAppIcon != null) {
-            try {
-                File dest = new File(mResourcesDir, mAppIcon.getName());
+        // The settings of a jarfileset given by reference are not among
+        // the nested elements
+        for (Iterator itor = mJarFileSets.iterator(); itor.hasNext(); ) {
+            Object fs = itor.next();
 
-                if (mVerbose) {
-                    log("Copying application icon file to \"" + bundlePath(dest) + "\"");
-                }
+            if (fs instanceof JarFileSet) {
+                JarFileSet jfs = (JarFileSet) fs;
+                sb.append("jarfileset merge=").append(jfs.getMerge()).append(" duplicates=")
+                    .append(jfs.getDuplicates()).append(" repack=").append(jfs.getRepack()).append('\n');
+            }
+        }
 
-                mFileUtils.copyFile(mAppIcon, dest);
-            } catch (IOException ex) {
-                throw new BuildException("Cannot copy icon file: " + ex);
+        List fileSets = new ArrayList();
+        fileSets.addAll(mJarFileSets);
+        fileSets.addAll(mExecFileSets);
+        fileSets.addAll(mResourceFileSets);
+        fileSets.addAll(mJavaFileSets);
+        fileSets.addAll(mExtraClassPathFileSets);
+
+        List fileLists = new ArrayList();
+        fileLists.addAll(mJarFileLists);
+        fileLists.addAll(mExecFileLists);
+        fileLists.addAll(mResourceFileLists);
+        fileLists.addAll(mJavaFileLists);
+        fileLists.addAll(mExtraClassPathFileLists);
+
+        for (Iterator itor = mHelpBooks.iterator(); itor.hasNext(); ) {
+            HelpBook helpBook = (HelpBook) itor.next();
+            fileSets.addAll(helpBook.getFileSets());
+            fileLists.addAll(helpBook.getFileLists());
+        }
+
+        for (Iterator itor = fileSets.iterator(); itor.hasNext(); ) {
+            FileSet fs = (FileSet) itor.next();
+            File dir = fs.getDir(fs.getProject());
+            String[] files = scanFileSet(fs);
+
+            sb.append("fileset ").append(dir.getAbsolutePath()).append('\n');
+
+            for (int i = 0; i < files.length; i++) {
+                describeFile(new File(dir, files[i]), sb);
+            }
+        }
+
+        for (Iterator itor = fileLists.iterator(); itor.hasNext(); ) {
+            FileList fl = (FileList) itor.next();
+            File dir = fl.getDir(fl.getProject());
+            String[] files = fl.getFiles(fl.getProject());
+
+            sb.append("filelist ").append(dir.getAbsolutePath()).append('\n');
+
+            for (int i = 0; i < files.length; i++) {
+                describeFile(new File(dir, files[i]), sb);
+            }
+        }
+
+        List files = new ArrayList();
+        files.addAll(mJarAttrs);
+        files.addAll(mExecAttrs);
+        files.addAll(mExtraClassPathAttrs);
+        files.add(mAppIcon);
+        files.add(mStubFile);
+        files.add(mClassLoadOrderFile);
+
+        for (Iterator itor = bundleProperties.getDocumentTypes().iterator(); itor.hasNext(); ) {
+            files.add(((DocumentType) itor.next()).getIconFile());
+        }
+
+        if (mRuntime != null) {
+            files.add(new File(mRuntime.getJdk(), "release"));
+            files.add(mRuntime.getJmods());
+        }
+
+        if (mAppCDS != null) {
+            File jdk = (mAppCDS.getJdk() != null) ? mAppCDS.getJdk() : new File(System.getProperty("java.home"));
+            files.add(new File(jdk, "release"));
+            files.add(new File(jdk, "lib/modules"));
+        }
+
+        for (Iterator itor = files.iterator(); itor.hasNext(); ) {
+            File f = (File) itor.next();
+
+            // Iconsets and jmods are directories
+            if (f != null) {
+                describeFile(f.getAbsoluteFile(), sb);
+            }
+        }
+
+        sb.append("options ").append(stampOptions()).append('\n');
+
+        return sb.toString();
+    }
+
+    /**
+     * Describe an element and its nested elements, leaving out the task
+     * attributes which change neither the bundle nor the files written
+     * next to it
+     */
+    private void describeElement(RuntimeConfigurable element, String indent, StringBuffer sb) {
+        sb.append(indent).append('<').append(element.getElementTag());
+
+        for (Iterator itor = element.getAttributeMap().entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry attribute = (Map.Entry) itor.next();
+            String name = (String) attribute.getKey();
+
+            if (indent.length() == 0 && UNSTAMPED_ATTRIBUTES.contains(name.toLowerCase(Locale.ENGLISH))) {
+                continue;
+            }
+
+            sb.append(' ').append(name).append("=\"")
+                .append(getProject().replaceProperties(String.valueOf(attribute.getValue()))).append('"');
+        }
+
+        sb.append(">\n");
+
+        String text = element.getText().toString().trim();
+
+        if (text.length() > 0) {
+            sb.append(indent).append(getProject().replaceProperties(text)).append('\n');
+        }
+
+        for (Enumeration e = element.getChildren(); e.hasMoreElements(); ) {
+            describeElement((RuntimeConfigurable) e.nextElement(), indent + "  ", sb);
+        }
+    }
+
+    /**
+     * Describe a file by path, size and modification time, or all files
+     * below a directory, sorted by name
+     */
+    private static void describeFile(File f, StringBuffer sb) {
+        if (f.isDirectory()) {
+            String[] names = f.list();
+
+            if (names != null) {
+                Arrays.sort(names);
+
+                for (int i = 0; i < names.length; i++) {
+                    describeFile(new File(f, names[i]), sb);
+                }
             }
+            return;
         }
 
-        // Copy document type icons, if any, to the resource dir
+        sb.append(f.getPath()).append('\t').append(f.length())
+            .append('\t').append(f.lastModified()).append('\n');
+    }
+
+    /**
+     * Resolve everything the bundle consists of, without writing anything.
+     *
+     * @return The plan of the bundle
+     * @throws BuildException if the bundle cannot be planned, e.g. because
+     *                        two files would be placed at the same destination
+     */
+    private BundlePlan plan() throws BuildException {
+
+        mPlanBuilder = new BundlePlan.Builder();
+        mMergedJars.clear();
+        mIndexedJars = null;
+        mEncodedIcons.clear();
+
+        long t = System.nanoTime();
+
+        mClassLoadOrder = (mClassLoadOrderFile != null) ? ClassLoadOrder.load(mClassLoadOrderFile) : null;
+        mReproducibleTime = mReproducible ? reproducibleTime() : -1;
+
         try {
+            mPlanBuilder.addDirectory(bundleDir);
+
+            // The Contents directory
+            mContentsDir = new File(bundleDir, "Contents");
+            mPlanBuilder.addDirectory(mContentsDir);
+
+            // The "MacOS" directory
+            mMacOsDir = new File(mContentsDir, "MacOS");
+            mPlanBuilder.addDirectory(mMacOsDir);
+
+            // The Resources directory
+            mResourcesDir = new File(mContentsDir, "Resources");
+            mPlanBuilder.addDirectory(mResourcesDir);
+
+            // The stamp of the up to date check
+            if (mUpToDateCheck && mArchive == null) {
+                mPlanBuilder.addOutput(new File(mResourcesDir, BundleStamp.FILE_NAME));
+            }
+
+            // The Resources/Java directory
+            mJavaDir = new File(mResourcesDir, "Java");
+            mPlanBuilder.addDirectory(mJavaDir);
+
+            t = lap(BundleMetrics.DIRS, t);
+
+            // Copy icon file to resource dir. If no icon parameter
+            // is supplied, the default icon will be used.
+
+            mPlanBuilder.setPhase(BundleMetrics.ICON);
+
+            // Icons by their destination, PNG images and iconsets are encoded first
+            Map icons = new LinkedHashMap();
+
+            if (mAppIcon != null) {
+                icons.put(new File(mResourcesDir, IcnsIcon.bundleName(mAppIcon)), mAppIcon);
+            }
+
+            // Copy document type icons, if any, to the resource dir
             Iterator itor = bundleProperties.getDocumentTypes().iterator();
 
             while (itor.hasNext()) {
                 DocumentType documentType = (DocumentType) itor.next();
                 File iconFile = documentType.getIconFile();
                 if (iconFile != null) {
-                    File dest = new File(mResourcesDir, iconFile.getName());
-                    if (mVerbose) {
-                        log("Copying document icon file to \"" + bundlePath(dest) + "\"");
+                    icons.put(new File(mResourcesDir, IcnsIcon.bundleName(iconFile)), iconFile);
+                }
+            }
+
+            copyIcons(icons);
+
+            t = lap(BundleMetrics.ICON, t);
+
+            // Copy application jar(s) from the "jars" attribute (if any)
+            mPlanBuilder.setPhase(BundleMetrics.JAR);
+            processJarAttrs();
+
+            // Copy application jar(s) from the nested jarfileset element(s)
+            processJarFileSets();
+
+            // Copy application jar(s) from the nested jarfilelist element(s)
+            processJarFileLists();
+
+            t = lap(BundleMetrics.JAR, t);
+
+            // Copy executable(s) from the "execs" attribute (if any)
+            mPlanBuilder.setPhase(BundleMetrics.EXEC);
+            processExecAttrs();
+
+            // Copy executable(s) from the nested execfileset element(s)
+            processExecFileSets();
+
+            // Copy executable(s) from the nested execfilelist element(s)
+            processExecFileLists();
+
+            t = lap(BundleMetrics.EXEC, t);
+
+            // Copy resource(s) from the nested resourcefileset element(s)
+            mPlanBuilder.setPhase(BundleMetrics.RESOURCE);
+            processResourceFileSets();
+
+            // Copy resource(s) from the nested javafileset element(s)
+            processJavaFileSets();
+
+            // Copy resource(s) from the nested resourcefilelist element(s)
+            processResourceFileLists();
+
+            // Copy resource(s) from the nested javafilelist element(s)
+            processJavaFileLists();
+
+            t = lap(BundleMetrics.RESOURCE, t);
+
+            // Add external classpath references from the extraclasspath attributes
+            processExtraClassPathAttrs();
+
+            // Add external classpath references from the nested
+            // extraclasspathfileset element(s)
+            processExtraClassPathFileSets();
+
+            // Add external classpath references from the nested
+            // extraclasspathfilelist attributes
+            processExtraClassPathFileLists();
+
+            t = lap(BundleMetrics.JAR, t);
+
+            // Analyze the application jars, before the class path is written
+            if (mAnalyzeJars || mJarIndex != null || mReorderClassPath) {
+                analyzeJars();
+                t = lap(BundleMetrics.ANALYZE, t);
+            }
+
+            // Copy HelpBooks into place
+            mPlanBuilder.setPhase(BundleMetrics.HELPBOOKS);
+            copyHelpBooks();
+            t = lap(BundleMetrics.HELPBOOKS, t);
+
+            // Copy the JavaApplicationStub file from the Java system directory to
+            // the MacOS directory
+            mPlanBuilder.setPhase(BundleMetrics.STUB);
+            copyApplicationStub();
+            t = lap(BundleMetrics.STUB, t);
+
+            // Embed the Java runtime
+            if (mRuntime != null) {
+                mPlanBuilder.setPhase(BundleMetrics.RUNTIME);
+                addRuntime();
+                t = lap(BundleMetrics.RUNTIME, t);
+            }
+
+            // Reserve the AppCDS archive and pass it to the VM
+            if (mAppCDS != null) {
+                File archive = new File(mJavaDir, mAppCDS.getArchive());
+                mPlanBuilder.addOutput(archive);
+                mPlanBuilder.addOutput(AppCDSGenerator.fingerprintFile(archive));
+                addVMOption(AppCDSGenerator.ARCHIVE_OPTION + "$JAVAROOT/" + mAppCDS.getArchive());
+            }
+
+            // Create the Info.plist file, once the class path is complete
+            mPlanBuilder.setPhase(BundleMetrics.INFO_PLIST);
+            writeInfoPlist();
+            t = lap(BundleMetrics.INFO_PLIST, t);
+
+            // Create the PkgInfo file
+            mPlanBuilder.setPhase(BundleMetrics.PKG_INFO);
+            writePkgInfo();
+            lap(BundleMetrics.PKG_INFO, t);
+
+            return mPlanBuilder.build();
+        } finally {
+            mPlanBuilder = null;
+            mScannedFileSets.clear();
+            mMergedJars.clear();
+        }
+    }
+
+    /**
+     * Write the files outside the bundle which planning produced in memory
+     * only, so a dry run creates nothing: the jar index and the icons
+     * encoded for the icon cache.
+     *
+     * @throws BuildException if a file cannot be written
+     */
+    private void writePlanFiles() throws BuildException {
+        if (mIndexedJars != null) {
+            mIndexedJars.writeIndex(mJarIndex);
+        }
+
+        for (Iterator itor = mEncodedIcons.iterator(); itor.hasNext(); ) {
+            ((IcnsIcon) itor.next()).write();
+        }
+    }
+
+    /**
+     * Add the time since the start of a phase to the metrics.
+     *
+     * @param phase The phase
+     * @param start The start of the phase, as given by System.nanoTime()
+     * @return The current System.nanoTime(), the start of the next phase
+     */
+    private long lap(String phase, long start) {
+        long now = System.nanoTime();
+        mMetrics.addTime(phase, now - start);
+        return now;
+    }
+
+    /**
+     * Log the metrics of the build and write them to the "metrics" file
+     * and the "metricsproperty" properties
+     *
+     * @throws BuildException if the metrics file cannot be written
+     */
+    private void reportMetrics() throws BuildException {
+        int level = mVerbose ? Project.MSG_INFO : Project.MSG_VERBOSE;
+
+        for (Iterator itor = mMetrics.lines().iterator(); itor.hasNext(); ) {
+            log((String) itor.next(), level);
+        }
+
+        if (mMetricsFile != null) {
+            Writer out = null;
+
+            try {
+                out = new OutputStreamWriter(new FileOutputStream(mMetricsFile), "UTF-8");
+                mMetrics.write(out, bundleDir.getName());
+            } catch (IOException ex) {
+                throw new BuildException("Unable to write metrics \"" + mMetricsFile + "\": " + ex.getMessage());
+            } finally {
+                FileUtils.close(out);
+            }
+        }
+
+        if (mMetricsProperty != null) {
+            mMetrics.setProperties(getProject(), mMetricsProperty);
+        }
+    }
+
+    /**
+     * Write the manifest of a plan to the "manifest" file
+     *
+     * @param plan The plan of the bundle
+     * @throws BuildException if the manifest cannot be written
+     */
+    private void writeManifest(BundlePlan plan) throws BuildException {
+        Writer out = null;
+
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(mManifest), "UTF-8");
+            new BundleManifest(plan, bundleDir).write(out, mManifestFormat);
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write manifest \"" + mManifest + "\": " + ex.getMessage());
+        } finally {
+            FileUtils.close(out);
+        }
+
+        if (mVerbose) {
+            log("Writing manifest to \"" + mManifest + "\"");
+        }
+    }
+
+    /**
+     * Log the manifest of a plan, line by line
+     *
+     * @param plan The plan of the bundle
+     */
+    private void logManifest(BundlePlan plan) {
+        String manifest = new BundleManifest(plan, bundleDir).toString(mManifestFormat);
+        String[] lines = manifest.split("\n");
+
+        for (int i = 0; i < lines.length; i++) {
+            log(lines[i]);
+        }
+    }
+
+    /**
+     * Carry out a plan: create the directories, copy the files, make the
+     * executables executable and write the generated files. The files are
+     * written phase by phase, so the metrics tell the phases apart.
+     *
+     * @param plan The plan of the bundle
+     * @throws BuildException if the bundle cannot be written
+     */
+    private void execute(BundlePlan plan) throws BuildException {
+
+        long t = System.nanoTime();
+        int dirs = 0;
+
+        for (Iterator itor = plan.getDirectories().iterator(); itor.hasNext(); ) {
+            File dir = (File) itor.next();
+
+            if (!dir.isDirectory()) {
+                if (!dir.mkdirs()) {
+                    throw new BuildException("Unable to create directory " + dir);
+                }
+                dirs++;
+            }
+        }
+
+        mMetrics.addFiles(BundleMetrics.DIRS, dirs, 0);
+        lap(BundleMetrics.DIRS, t);
+
+        CopyEngine copyEngine = new CopyEngine(this);
+        copyEngine.setThreads(mThreads);
+        copyEngine.setIncremental(mIncremental);
+        copyEngine.setCompareContents(mCompareContents);
+        copyEngine.setVerbose(mVerbose);
+        copyEngine.setLinkMode(mLinkMode);
+        copyEngine.setReproducible(mReproducible);
+        copyEngine.setBaseDir(bundleDir);
+
+        ContentCache cache = null;
+
+        if (mSession != null) {
+            copyEngine.setExecutor(mSession.getCopyPool());
+
+            // Saved by the session once all bundles are done
+            if (mCacheDir != null) {
+                copyEngine.setCache(mSession.getCache(mCacheDir, mCacheSize * 1024L * 1024L));
+            }
+        } else if (mCacheDir != null) {
+            cache = new ContentCache(mCacheDir, mCacheSize * 1024L * 1024L);
+            cache.load();
+            copyEngine.setCache(cache);
+        }
+
+        for (int i = 0; i < BundleMetrics.FILE_PHASES.length; i++) {
+            String phase = BundleMetrics.FILE_PHASES[i];
+            List entries = new ArrayList();
+            int files = 0;
+            long bytes = 0;
+
+            t = System.nanoTime();
+
+            for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+                BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+                if (!phase.equals(entry.getPhase())) {
+                    continue;
+                }
+
+                entries.add(entry);
+
+                if (entry.getRewrite() != null) {
+                    copyEngine.addRewrite(entry.getRewrite(), entry.getDestination());
+                } else if (entry.getLinkTarget() != null) {
+                    copyEngine.addLink(entry.getSource(), entry.getLinkTarget(), entry.getDestination());
+                } else if (entry.getSource() != null) {
+                    copyEngine.add(entry.getSource(), entry.getDestination(), entry.isExecutable());
+                }
+            }
+
+            if (entries.isEmpty()) {
+                continue;
+            }
+
+            // Copy the planned files and write the rewritten jars
+            copyEngine.execute();
+
+            // Make the executables executable
+            applyPermissions(entries);
+
+            // Write the generated files, Info.plist, PkgInfo and InfoPlist.strings
+            for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+                BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+                if (entry.getContent() != null) {
+                    byte[] content = entry.getContent();
+
+                    try {
+                        if (writeFile(entry.getDestination(), content)) {
+                            files++;
+                            bytes += content.length;
+                        }
+                    } catch (IOException ex) {
+                        throw new BuildException("Unable to write \"" + entry.getDestination()
+                            + "\": " + ex.getMessage());
                     }
-                    mFileUtils.copyFile(iconFile, dest);
                 }
             }
+
+            mMetrics.addFiles(phase, copyEngine.getFiles() + files, copyEngine.getBytes() + bytes);
+            lap(phase, t);
+        }
+
+        if (cache != null) {
+            int evicted = cache.save();
+
+            if (mVerbose) {
+                log("Cache \"" + cache.getDir() + "\": " + cache.getHits() + " files reused, "
+                    + cache.getStored() + " files stored, " + evicted + " files evicted");
+            }
+        }
+
+        // Remove anything left over from a previous build
+        if (mIncremental) {
+            t = System.nanoTime();
+            mMetrics.addFiles(BundleMetrics.DELETE, removeOrphans(bundleDir, plan), 0);
+            lap(BundleMetrics.DELETE, t);
+        }
+    }
+
+    /**
+     * Generate the AppCDS archive from the bundle on disk, unless it was
+     * generated from the same class path, JDK and options
+     *
+     * @throws BuildException if the archive cannot be generated
+     */
+    private void generateAppCDS() throws BuildException {
+        File archive = new File(mJavaDir, mAppCDS.getArchive());
+        List classPath = new ArrayList();
+
+        for (Iterator itor = bundleProperties.getClassPath().iterator(); itor.hasNext(); ) {
+            classPath.add(new File(expandVariables((String) itor.next())));
+        }
+
+        for (Iterator itor = bundleProperties.getExtraClassPath().iterator(); itor.hasNext(); ) {
+            classPath.add(new File(expandVariables((String) itor.next())));
+        }
+
+        AppCDSGenerator generator = new AppCDSGenerator(this, mAppCDS);
+
+        // The archive is only accepted by the runtime which dumped it
+        if (mAppCDS.getJdk() == null && mRuntimeHome != null) {
+            generator.setJdk(mRuntimeHome);
+        }
+
+        generator.setClassPath(classPath);
+        generator.setMainClass(bundleProperties.getMainClass());
+        generator.setJavaProperties(bundleProperties.getJavaProperties());
+        generator.setWorkingDir(mJavaDir);
+
+        if (bundleProperties.getVMOptions() != null) {
+            generator.setVMOptions(expandVariables(bundleProperties.getVMOptions()));
+        }
+
+        // In reproducible mode the times of the jars tell nothing
+        if (mIncremental && !mReproducible && generator.isUpToDate(archive)) {
+            if (mVerbose) {
+                log("\"" + bundlePath(archive) + "\" is up to date");
+            }
+            return;
+        }
+
+        log("Generating AppCDS archive \"" + bundlePath(archive) + "\"");
+        generator.generate(archive);
+
+        log("The AppCDS archive only matches the class path at \"" + bundleDir.getAbsolutePath()
+            + "\", the VM does not use it once the bundle is moved", Project.MSG_WARN);
+        mMetrics.addFiles(BundleMetrics.APPCDS, 1, archive.length());
+    }
+
+    /***************************************************************************
+     * Private utility methods.
+     **************************************************************************/
+
+    /**
+     * Append an option to the VMOptions, unless it is already there
+     *
+     * @param option The VM option
+     */
+    private void addVMOption(String option) {
+        String options = bundleProperties.getVMOptions();
+
+        if (options == null || options.trim().length() == 0) {
+            bundleProperties.setVMOptions(option);
+        } else if (!Arrays.asList(options.trim().split("\\s+")).contains(option)) {
+            bundleProperties.setVMOptions(options.trim() + " " + option);
+        }
+    }
+
+    /**
+     * Replace the variables the application stub expands in class path
+     * entries and VM options: $APP_PACKAGE, $JAVAROOT and $USER_HOME
+     *
+     * @param s A class path entry or VM options
+     * @return The string as the application stub launches it from this bundle
+     */
+    private String expandVariables(String s) {
+        return s.replace("$APP_PACKAGE", bundleDir.getAbsolutePath())
+            .replace("$JAVAROOT", mJavaDir.getAbsolutePath())
+            .replace("$USER_HOME", System.getProperty("user.home"));
+    }
+
+    /**
+     * Plan a file to be copied into the bundle. The copy itself happens
+     * when the plan is executed.
+     *
+     * @param src        The source file
+     * @param dest       The destination inside the bundle
+     * @param executable If true, make the file executable
+     */
+    private void copyFile(File src, File dest, boolean executable) {
+        mPlanBuilder.addFile(src, dest, executable);
+    }
+
+    /**
+     * The files included by a fileset. Every fileset is scanned only once,
+     * even if it is referenced more than once.
+     *
+     * @param fs The fileset
+     * @return The included files, relative to the fileset's directory
+     */
+    private String[] scanFileSet(FileSet fs) {
+        return (mSession != null) ? mSession.scan(fs) : mScannedFileSets.scan(fs);
+    }
+
+    /**
+     * Write generated content into the bundle. In incremental mode an
+     * existing file with identical content is left untouched.
+     *
+     * @param dest    The destination inside the bundle
+     * @param content The file content
+     * @return false if the file was up to date and not written
+     * @throws IOException if the file cannot be written
+     */
+    private boolean writeFile(File dest, byte[] content) throws IOException {
+        if (mIncremental && dest.isFile() && dest.length() == content.length) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(dest));
+                int i = 0;
+                while (i < content.length && in.read() == (content[i] & 0xff)) {
+                    i++;
+                }
+                if (i == content.length) {
+                    return false;
+                }
+            } finally {
+                FileUtils.close(in);
+            }
+        }
+
+        // Never write through an existing file, it may be a hard link to a
+        // source file or a cached object from a previous build
+        Files.deleteIfExists(dest.toPath());
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(dest);
+            out.write(content);
+        } finally {
+            FileUtils.close(out);
+        }
+
+        return true;
+    }
+
+    /**
+     * Delete all files and directories below the given directory which were
+     * not part of the plan.
+     *
+     * @param dir  A directory of the bundle
+     * @param plan The plan of the bundle
+     * @return The number of files and directories deleted
+     */
+    private int removeOrphans(File dir, BundlePlan plan) {
+        String[] names = dir.list();
+        int removed = 0;
+
+        if (names == null) {
+            return removed;
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            File f = new File(dir, names[i]);
+            boolean known = plan.contains(f);
+            boolean link = Files.isSymbolicLink(f.toPath());
+
+            if (f.isDirectory() && !link) {
+                removed += removeOrphans(f, plan);
+                if (known) {
+                    continue;
+                }
+                String[] left = f.list();
+                if (left != null && left.length > 0) {
+                    continue;
+                }
+            } else if (known) {
+                continue;
+            }
+
+            if (mVerbose) {
+                log("Removing \"" + bundlePath(f) + "\"");
+            }
+
+            if (!f.delete()) {
+                throw new BuildException("Unable to delete " + f);
+            }
+
+            removed++;
+        }
+
+        return removed;
+    }
+
+    /**
+     * Make the planned executables among some entries readable and
+     * executable for everyone. Permissions are set in-process through POSIX
+     * file attributes; only files on file systems without POSIX support are
+     * handed to a single Ant Chmod task.
+     *
+     * @param entries Entries of the plan of the bundle
+     */
+    private void applyPermissions(List entries) {
+
+        List fallback = new ArrayList();
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+
+            if (!entry.isExecutable()) {
+                continue;
+            }
+
+            File f = entry.getDestination();
+
+            if (mVerbose) {
+                log("Setting \"" + bundlePath(f) + "\" to executable");
+            }
+
+            if (!setPosixExecutable(f)) {
+                fallback.add(bundlePath(f).substring(1));
+            }
+        }
+
+        if (fallback.isEmpty()) {
+            return;
+        }
+
+        FileList files = new FileList();
+        files.setProject(getProject());
+        files.setDir(bundleDir);
+
+        for (Iterator itor = fallback.iterator(); itor.hasNext(); ) {
+            FileList.FileName name = new FileList.FileName();
+            name.setName((String) itor.next());
+            files.addConfiguredFile(name);
+        }
+
+        Chmod chmodTask = new Chmod();
+        chmodTask.setProject(getProject());
+        chmodTask.setTaskName(getTaskName());
+        chmodTask.addFilelist(files);
+        chmodTask.setPerm("ugo+rx");
+        chmodTask.setParallel(true);
+        chmodTask.setMaxParallel(CHMOD_MAX_PARALLEL);
+        chmodTask.execute();
+    }
+
+    private boolean setPosixExecutable(File f) {
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(
+                f.toPath(), PosixFileAttributeView.class);
+
+            if (view == null) {
+                return false;
+            }
+
+            Set permissions = view.readAttributes().permissions();
+            permissions.addAll(EXECUTABLE_PERMISSIONS);
+            view.setPermissions(permissions);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } catch (UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The modification time of all files in reproducible mode, from
+     *         "sourcedateepoch", SOURCE_DATE_EPOCH or 1980-01-01T00:00:00Z
+     * @throws BuildException if SOURCE_DATE_EPOCH is not a number of seconds
+     */
+    private long reproducibleTime() throws BuildException {
+        if (mSourceDateEpoch >= 0) {
+            return mSourceDateEpoch * 1000L;
+        }
+
+        String epoch = System.getenv("SOURCE_DATE_EPOCH");
+
+        if (epoch == null || epoch.trim().length() == 0) {
+            return DEFAULT_SOURCE_DATE_EPOCH * 1000L;
+        }
+
+        try {
+            long seconds = Long.parseLong(epoch.trim());
+
+            if (seconds >= 0) {
+                return seconds * 1000L;
+            }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+
+        throw new BuildException("SOURCE_DATE_EPOCH \"" + epoch + "\" is not a number of seconds");
+    }
+
+    /**
+     * Give every directory and file of the bundle the same modification
+     * time and fixed permissions: 0755 for directories and executables,
+     * 0644 for all other files. Directories are handled last, since
+     * writing the files changes their times. Files generated once the plan
+     * is carried out are left to {@link #normalizeOutputs(BundlePlan)}.
+     *
+     * @param plan The plan the bundle was built from
+     * @throws BuildException if a time cannot be set
+     */
+    private void normalize(BundlePlan plan) throws BuildException {
+        List files = new ArrayList();
+        Set dirs = new HashSet(plan.getDirectories());
+
+        for (Iterator itor = plan.getEntries().iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+            files.add(entry.getDestination());
+            addAncestors(entry.getDestination(), dirs);
+            setPosixPermissions(entry.getDestination(), entry.isExecutable() ? EXECUTABLE_MODE : FILE_MODE);
+        }
+
+        normalizeTimes(files, dirs);
+    }
+
+    /**
+     * Normalize the files generated after the plan was carried out, like the
+     * AppCDS archive and the stamp, and the directories they were written to.
+     *
+     * @param plan The plan the bundle was built from
+     * @throws BuildException if a time cannot be set
+     */
+    private void normalizeOutputs(BundlePlan plan) throws BuildException {
+        List files = new ArrayList();
+        Set dirs = new HashSet();
+
+        for (Iterator itor = plan.getOutputs().iterator(); itor.hasNext(); ) {
+            File f = (File) itor.next();
+
+            if (f.isFile()) {
+                files.add(f);
+                addAncestors(f, dirs);
+                setPosixPermissions(f, FILE_MODE);
+            }
+        }
+
+        normalizeTimes(files, dirs);
+    }
+
+    /**
+     * Add the directories between a file of the bundle and the bundle
+     * directory, including it, such as those created for the subdirectories
+     * of a fileset
+     */
+    private void addAncestors(File f, Set dirs) {
+        List ancestors = new ArrayList();
+
+        for (File dir = f.getParentFile(); dir != null; dir = dir.getParentFile()) {
+            ancestors.add(dir);
+
+            if (dir.equals(bundleDir)) {
+                dirs.addAll(ancestors);
+                return;
+            }
+        }
+    }
+
+    private void normalizeTimes(List files, Set dirSet) throws BuildException {
+        List dirs = new ArrayList(dirSet);
+
+        // Deepest first, a parent's time must not be changed by its children
+        Collections.sort(dirs, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((File) o2).getPath().length() - ((File) o1).getPath().length();
+            }
+        });
+
+        for (Iterator itor = dirs.iterator(); itor.hasNext(); ) {
+            setPosixPermissions((File) itor.next(), EXECUTABLE_MODE);
+        }
+
+        files.addAll(dirs);
+
+        for (Iterator itor = files.iterator(); itor.hasNext(); ) {
+            File f = (File) itor.next();
+
+            if (!f.setLastModified(mReproducibleTime)) {
+                throw new BuildException("Unable to set the modification time of \"" + bundlePath(f) + "\"");
+            }
+        }
+    }
+
+    private void setPosixPermissions(File f, Set permissions) {
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(
+                f.toPath(), PosixFileAttributeView.class);
+
+            if (view != null) {
+                view.setPermissions(permissions);
+            }
         } catch (IOException ex) {
-            throw new BuildException("Cannot copy document icon file: " + ex);
+            log("Unable to set the permissions of \"" + bundlePath(f) + "\": " + ex.getMessage(),
+                Project.MSG_WARN);
         }
+    }
+
+    private void processJarAttrs() throws BuildException {
 
-        // Copy application jar(s) from the "jars" attribute (if any)
-        processJarAttrs();
+        for (Iterator jarIter = mJarAttrs.iterator(); jarIter.hasNext(); ) {
+            File src = (File) jarIter.next();
+            File dest = new File(mJavaDir, src.getName());
 
-        // Copy application jar(s) from the nested jarfileset element(s)
-        processJarFileSets();
+            addJar(src, dest, false);
+            bundleProperties.addToClassPath(dest.getName());
+        }
+    }
 
-        // Copy application jar(s) from the nested jarfilelist element(s)
-        processJarFileLists();
+    private void processJarFileSets() throws BuildException {
 
-        // Copy executable(s) from the "execs" attribute (if any)
-        processExecAttrs();
+        for (Iterator jarIter = mJarFileSets.iterator(); jarIter.hasNext(); ) {
 
-        // Copy executable(s) from the nested execfileset element(s)
-        processExecFileSets();
+            JarFileSet fs = (JarFileSet) jarIter.next();
 
-        // Copy executable(s) from the nested execfilelist element(s)
-        processExecFileLists();
+            File srcDir = fs.getDir(fs.getProject());
+            String[] files = scanFileSet(fs);
 
-        // Copy resource(s) from the nested resourcefileset element(s)
-        processResourceFileSets();
+            boolean stored = JarRewrite.REPACK_STORED.equals(fs.getRepack());
 
-        // Copy resource(s) from the nested javafileset element(s)
-        processJavaFileSets();
+            if (fs.getMerge() != null) {
+                JarRewrite merged = mergedJar(fs.getMerge(), fs.getDuplicates(), stored);
 
-        // Copy resource(s) from the nested resourcefilelist element(s)
-        processResourceFileLists();
+                for (int i = 0; i < files.length; i++) {
+                    merged.addSource(new File(srcDir, files[i]));
+                }
+                continue;
+            }
 
-        // Copy resource(s) from the nested javafilelist element(s)
-        processJavaFileLists();
+            for (int i = 0; i < files.length; i++) {
+                String fileName = files[i];
+                File src = new File(srcDir, fileName);
+                File dest = new File(mJavaDir, fileName);
 
-        // Add external classpath references from the extraclasspath attributes
-        processExtraClassPathAttrs();
+                addJar(src, dest, stored);
+                bundleProperties.addToClassPath(fileName);
+            }
+        }
+    }
 
-        // Add external classpath references from the nested
-        // extraclasspathfileset element(s)
-        processExtraClassPathFileSets();
+    /**
+     * Plan an application jar. It is copied, unless it has to be repacked
+     * with stored entries or in class load order.
+     *
+     * @param src    The jar
+     * @param dest   The destination inside the bundle
+     * @param stored If true, the entries are stored uncompressed
+     * @throws BuildException if another file has the same destination
+     */
+    private void addJar(File src, File dest, boolean stored) throws BuildException {
+        if (!stored && mClassLoadOrder == null) {
+            if (mVerbose) {
+                log("Copying JAR file to \"" + bundlePath(dest) + "\"");
+            }
 
-        // Add external classpath references from the nested
-        // extraclasspathfilelist attributes
-        processExtraClassPathFileLists();
+            copyFile(src, dest, false);
+            return;
+        }
 
-        // Copy HelpBooks into place
-        copyHelpBooks();
+        if (mVerbose) {
+            log("Repacking JAR file to \"" + bundlePath(dest) + "\"");
+        }
 
-        // Copy the JavaApplicationStub file from the Java system directory to
-        // the MacOS directory
-        copyApplicationStub();
+        JarRewrite repacked = JarRewrite.repack(src);
+        repacked.setStored(stored);
+        repacked.setClassLoadOrder(mClassLoadOrder);
+        repacked.setTime(mReproducibleTime);
+        mPlanBuilder.addRewrite(repacked, dest);
+    }
 
-        // Create the Info.plist file
-        writeInfoPlist();
+    /**
+     * The jars on the class path and the files they are made of. A jar
+     * which is copied is made of its source, a rewritten jar of the jars it
+     * is rewritten from.
+     *
+     * @return Class path entry -> the source Files, in class path order
+     */
+    private Map classPathJars() {
+        Map jars = new LinkedHashMap();
+
+        for (Iterator itor = bundleProperties.getClassPath().iterator(); itor.hasNext(); ) {
+            String name = ((String) itor.next()).substring("$JAVAROOT/".length());
+            BundlePlan.Entry entry = mPlanBuilder.getEntry(new File(mJavaDir, name));
+            List sources = Collections.EMPTY_LIST;
+
+            if (entry != null && entry.getRewrite() != null) {
+                sources = entry.getRewrite().getSources();
+            } else if (entry != null && entry.getSource() != null) {
+                sources = Collections.singletonList(entry.getSource());
+            }
 
-        // Create the PkgInfo file
-        writePkgInfo();
+            jars.put(name, sources);
+        }
 
-        // Done!
+        return jars;
     }
 
-    /***************************************************************************
-     * Private utility methods.
-     **************************************************************************/
+    /**
+     * Plan the files of the embedded Java runtime, linking it first unless
+     * it is cached or this is a dry run, and name it in the Info.plist.
+     *
+     * @throws BuildException if the runtime cannot be linked
+     */
+    private void addRuntime() throws BuildException {
+        List jars = new ArrayList();
 
-    private void setExecutable(File f) {
+        for (Iterator itor = classPathJars().values().iterator(); itor.hasNext(); ) {
+            jars.addAll((List) itor.next());
+        }
 
-        Chmod chmodTask = new Chmod();
-        chmodTask.setProject(getProject());
-        chmodTask.setFile(f);
-        chmodTask.setPerm("ugo+rx");
+        File cacheDir = mRuntime.getCacheDir();
 
-        if (mVerbose) {
-            log("Setting \"" + bundlePath(f) + "\" to executable");
+        if (cacheDir == null) {
+            cacheDir = (mCacheDir != null) ? new File(mCacheDir, "runtimes")
+                : new File(System.getProperty("java.io.tmpdir"), "jarbundler-runtimes");
         }
 
-        chmodTask.execute();
+        RuntimeImage image = new RuntimeImage(this, mRuntime);
+        image.setCacheDir(cacheDir);
+        image.setJars(jars);
+        image.setDryRun(mDryRun);
+
+        File home = image.getImage();
+        File plugInsDir = new File(mContentsDir, "PlugIns");
+        File runtimeDir = new File(plugInsDir, mRuntime.getName());
+        File contentsDir = new File(runtimeDir, "Contents");
+        mRuntimeHome = new File(contentsDir, "Home");
+
+        mPlanBuilder.addDirectory(plugInsDir);
+        mPlanBuilder.addDirectory(runtimeDir);
+        mPlanBuilder.addDirectory(contentsDir);
+
+        if (home == null) {
+            log("The runtime image is not linked in a dry run, its files are missing from the plan");
+            mPlanBuilder.addDirectory(mRuntimeHome);
+        } else {
+            if (mVerbose) {
+                log("Copying Java runtime to \"" + bundlePath(mRuntimeHome) + "\"");
+            }
 
+            addRuntimeFiles(home, mRuntimeHome);
+        }
+
+        bundleProperties.setJVMRuntime(mRuntime.getName());
     }
 
-    private void processJarAttrs() throws BuildException {
+    private void addRuntimeFiles(File src, File dest) throws BuildException {
+        mPlanBuilder.addDirectory(dest);
 
-        try {
+        File[] files = src.listFiles();
 
-            for (Iterator jarIter = mJarAttrs.iterator(); jarIter.hasNext(); ) {
-                File src = (File) jarIter.next();
-                File dest = new File(mJavaDir, src.getName());
+        if (files == null) {
+            throw new BuildException("Unable to list \"" + src + "\"");
+        }
 
-                if (mVerbose) {
-                    log("Copying JAR file to \"" + bundlePath(dest) + "\"");
-                }
+        Arrays.sort(files);
 
+        for (int i = 0; i < files.length; i++) {
+            File target = new File(dest, files[i].getName());
 
-                mFileUtils.copyFile(src, dest);
-                bundleProperties.addToClassPath(dest.getName());
+            if (files[i].isDirectory()) {
+                addRuntimeFiles(files[i], target);
+            } else {
+                copyFile(files[i], target, files[i].canExecute());
             }
-        } catch (IOException ex) {
-            throw new BuildException("Cannot copy jar file: " + ex);
         }
     }
 
-    private void processJarFileSets() throws BuildException {
+    /**
+     * Analyze the jars on the class path, prepare the jar index and reorder
+     * the class path, as requested. The jars are read from their sources,
+     * so nothing has to be written yet.
+     *
+     * @throws BuildException if a jar cannot be read
+     */
+    private void analyzeJars() throws BuildException {
+        JarAnalyzer analyzer = new JarAnalyzer(this);
+        analyzer.setThreads(mThreads);
+        analyzer.setMainClass(bundleProperties.getMainClass());
+        analyzer.setClassLoadOrder(mClassLoadOrder);
 
-        for (Iterator jarIter = mJarFileSets.iterator(); jarIter.hasNext(); ) {
+        List classPath = bundleProperties.getClassPath();
 
-            FileSet fs = (FileSet) jarIter.next();
+        for (Iterator itor = classPathJars().entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            analyzer.addJar((String) e.getKey(), (List) e.getValue());
+        }
 
-            Project p = fs.getProject();
-            File srcDir = fs.getDir(p);
-            FileScanner ds = fs.getDirectoryScanner(p);
-            fs.setupDirectoryScanner(ds, p);
-            ds.scan();
+        analyzer.execute();
+        analyzer.report();
 
-            String[] files = ds.getIncludedFiles();
+        // Written with the bundle, see writePlanFiles()
+        if (mJarIndex != null) {
+            mIndexedJars = analyzer;
+        }
 
-            try {
+        if (mReorderClassPath) {
+            List order = analyzer.getClassPathOrder();
+            classPath.clear();
 
-                for (int i = 0; i < files.length; i++) {
-                    String fileName = files[i];
-                    File src = new File(srcDir, fileName);
-                    File dest = new File(mJavaDir, fileName);
+            for (Iterator itor = order.iterator(); itor.hasNext(); ) {
+                classPath.add("$JAVAROOT/" + itor.next());
+            }
 
-                    if (mVerbose) {
-                        log("Copying JAR file to \"" + bundlePath(dest) + "\"");
-                    }
+            if (mVerbose) {
+                log("Class path: " + order);
+            }
+        }
+    }
 
-                    mFileUtils.copyFile(src, dest);
+    /**
+     * The merged jar of the given name. A merged jar is planned, and added
+     * to the class path, when its name is first used.
+     *
+     * @param name       The name of the merged jar
+     * @param duplicates The duplicate class policy
+     * @param stored     If true, the entries are stored uncompressed
+     * @return The merged jar
+     * @throws BuildException if the jar has been given another policy
+     */
+    private JarRewrite mergedJar(String name, String duplicates, boolean stored) throws BuildException {
+        JarRewrite merged = (JarRewrite) mMergedJars.get(name);
 
-                    bundleProperties.addToClassPath(fileName);
-                }
+        if (merged == null) {
+            merged = JarRewrite.merge(duplicates);
+            merged.setStored(stored);
+            merged.setClassLoadOrder(mClassLoadOrder);
+            merged.setTime(mReproducibleTime);
+            mMergedJars.put(name, merged);
 
-            } catch (IOException ex) {
-                throw new BuildException("Cannot copy jar file: " + ex);
+            File dest = new File(mJavaDir, name);
+
+            if (mVerbose) {
+                log("Merging JAR files into \"" + bundlePath(dest) + "\"");
             }
+
+            mPlanBuilder.addRewrite(merged, dest);
+            bundleProperties.addToClassPath(name);
+        } else if (!merged.getDuplicates().equals(duplicates)) {
+            throw new BuildException("Conflicting duplicates policies for merged jar \"" + name + "\"");
+        } else if (merged.isStored() != stored) {
+            throw new BuildException("Conflicting repack modes for merged jar \"" + name + "\"");
         }
+
+        return merged;
     }
 
     private void processJarFileLists() throws BuildException {
@@ -1324,24 +3233,13 @@ public class JarBundler extends MatchingTask {
             File srcDir = fl.getDir(p);
             String[] files = fl.getFiles(p);
 
-            try {
-
-                for (int i = 0; i < files.length; i++) {
-                    String fileName = files[i];
-                    File src = new File(srcDir, fileName);
-                    File dest = new File(mJavaDir, fileName);
-
-                    if (mVerbose) {
-                        log("Copying JAR file to \"" + bundlePath(dest) + "\"");
-                    }
-
-
-                    mFileUtils.copyFile(src, dest);
+            for (int i = 0; i < files.length; i++) {
+                String fileName = files[i];
+                File src = new File(srcDir, fileName);
+                File dest = new File(mJavaDir, fileName);
 
-                    bundleProperties.addToClassPath(fileName);
-                }
-            } catch (IOException ex) {
-                throw new BuildException("Cannot copy jar file: " + ex);
+                addJar(src, dest, false);
+                bundleProperties.addToClassPath(fileName);
             }
         }
     }
@@ -1359,13 +3257,8 @@ public class JarBundler extends MatchingTask {
 
         for (Iterator jarIter = mExtraClassPathFileSets.iterator(); jarIter.hasNext(); ) {
             FileSet fs = (FileSet) jarIter.next();
-            Project p = fs.getProject();
-            File srcDir = fs.getDir(p);
-            FileScanner ds = fs.getDirectoryScanner(p);
-            fs.setupDirectoryScanner(ds, p);
-            ds.scan();
-
-            String[] files = ds.getIncludedFiles();
+            File srcDir = fs.getDir(fs.getProject());
+            String[] files = scanFileSet(fs);
 
             for (int i = 0; i < files.length; i++) {
                 File f = new File(srcDir, files[i]);
@@ -1391,21 +3284,15 @@ public class JarBundler extends MatchingTask {
     }
 
     private void processExecAttrs() throws BuildException {
-        try {
-            for (Iterator execIter = mExecAttrs.iterator(); execIter.hasNext(); ) {
-                File src = (File) execIter.next();
-                File dest = new File(mMacOsDir, src.getName());
-
-                if (mVerbose) {
-                    log("Copying exec file to \"" + bundlePath(dest) + "\"");
-                }
-
+        for (Iterator execIter = mExecAttrs.iterator(); execIter.hasNext(); ) {
+            File src = (File) execIter.next();
+            File dest = new File(mMacOsDir, src.getName());
 
-                mFileUtils.copyFile(src, dest);
-                setExecutable(dest);
+            if (mVerbose) {
+                log("Copying exec file to \"" + bundlePath(dest) + "\"");
             }
-        } catch (IOException ex) {
-            throw new BuildException("Cannot copy exec file: " + ex);
+
+            copyFile(src, dest, true);
         }
     }
 
@@ -1429,13 +3316,8 @@ public class JarBundler extends MatchingTask {
     private void processCopyingFileSets(List fileSets, File targetdir, boolean setExec) {
         for (Iterator execIter = fileSets.iterator(); execIter.hasNext(); ) {
             FileSet fs = (FileSet) execIter.next();
-            Project p = fs.getProject();
-            File srcDir = fs.getDir(p);
-            FileScanner ds = fs.getDirectoryScanner(p);
-            fs.setupDirectoryScanner(ds, p);
-            ds.scan();
-
-            String[] files = ds.getIncludedFiles();
+            File srcDir = fs.getDir(fs.getProject());
+            String[] files = scanFileSet(fs);
 
             if (files.length == 0) {
                 // this is probably an error -- warn about it
@@ -1443,25 +3325,18 @@ public class JarBundler extends MatchingTask {
                     .println("WARNING: fileset for copying from directory "
                         + srcDir + ": no files found");
             } else {
-                try {
-                    for (int i = 0; i < files.length; i++) {
-                        String fileName = files[i];
-                        File src = new File(srcDir, fileName);
-                        File dest = new File(targetdir, fileName);
-
-                        if (mVerbose) {
-                            log("Copying "
-                                + (setExec ? "exec" : "resource")
-                                + " file to \"" + bundlePath(dest) + "\"");
-                        }
+                for (int i = 0; i < files.length; i++) {
+                    String fileName = files[i];
+                    File src = new File(srcDir, fileName);
+                    File dest = new File(targetdir, fileName);
 
-                        mFileUtils.copyFile(src, dest);
-                        if (setExec) {
-                            setExecutable(dest);
-                        }
+                    if (mVerbose) {
+                        log("Copying "
+                            + (setExec ? "exec" : "resource")
+                            + " file to \"" + bundlePath(dest) + "\"");
                     }
-                } catch (IOException ex) {
-                    throw new BuildException("Cannot copy file: " + ex);
+
+                    copyFile(src, dest, setExec);
                 }
             }
         }
@@ -1497,25 +3372,18 @@ public class JarBundler extends MatchingTask {
                 System.err.println("WARNING: filelist for copying from directory "
                     + srcDir + ": no files found");
             } else {
-                try {
-                    for (int i = 0; i < files.length; i++) {
-                        String fileName = files[i];
-                        File src = new File(srcDir, fileName);
-                        File dest = new File(targetDir, fileName);
-
-                        if (mVerbose) {
-                            log("Copying "
-                                + (setExec ? "exec" : "resource")
-                                + " file to \"" + bundlePath(dest) + "\"");
-                        }
+                for (int i = 0; i < files.length; i++) {
+                    String fileName = files[i];
+                    File src = new File(srcDir, fileName);
+                    File dest = new File(targetDir, fileName);
 
-                        mFileUtils.copyFile(src, dest);
-                        if (setExec) {
-                            setExecutable(dest);
-                        }
+                    if (mVerbose) {
+                        log("Copying "
+                            + (setExec ? "exec" : "resource")
+                            + " file to \"" + bundlePath(dest) + "\"");
                     }
-                } catch (IOException ex) {
-                    throw new BuildException("Cannot copy jar file: " + ex);
+
+                    copyFile(src, dest, setExec);
                 }
             }
         }
@@ -1523,6 +3391,27 @@ public class JarBundler extends MatchingTask {
 
 
     private void copyHelpBooks() {
+
+        // Scan every fileset of the help books as its own task
+        List scans = new ArrayList();
+
+        for (Iterator itor = mHelpBooks.iterator(); itor.hasNext(); ) {
+            for (Iterator fsIter = ((HelpBook) itor.next()).getFileSets().iterator(); fsIter.hasNext(); ) {
+                final FileSet fs = (FileSet) fsIter.next();
+
+                scans.add(new Callable() {
+                    public Object call() {
+                        return scanFileSet(fs);
+                    }
+                });
+            }
+        }
+
+        invokeAll(scans);
+
+        // Search indexes by their file, built once all books are planned
+        Map indexes = new LinkedHashMap();
+
         for (Iterator itor = mHelpBooks.iterator(); itor.hasNext(); ) {
 
             HelpBook helpBook = (HelpBook) itor.next();
@@ -1550,7 +3439,7 @@ public class JarBundler extends MatchingTask {
 
                 // The non-localized Help Book is top level "/Resources"
                 helpBookDir = new File(mResourcesDir, folderName);
-                helpBookDir.mkdir();
+                mPlanBuilder.addDirectory(helpBookDir);
 
                 if (mVerbose) {
                     log("Creating Help Book at \"" +
@@ -1563,9 +3452,9 @@ public class JarBundler extends MatchingTask {
                 // The localized Help Book is "/Resources/locale.lproj"
 
                 File lproj = new File(mResourcesDir, locale + ".lproj");
-                lproj.mkdir();
+                mPlanBuilder.addDirectory(lproj);
                 helpBookDir = new File(lproj, folderName);
-                helpBookDir.mkdir();
+                mPlanBuilder.addDirectory(helpBookDir);
 
                 if (mVerbose) {
                     log("Creating Help Book for \"" + locale +
@@ -1574,17 +3463,13 @@ public class JarBundler extends MatchingTask {
 
                 // Create a local file to override the Bundle settings
                 File infoPList = new File(lproj, "InfoPlist.strings");
-                PrintWriter writer = null;
-                try {
-                    writer = new PrintWriter(new FileWriter(infoPList));
-                    writer.println("CFBundleHelpBookFolder = \"" + folderName + "\";");
-                    writer.println("CFBundleHelpBookName = \"" + name + "\";");
-                    writer.println("CFBundleName = \"" + bundleProperties.getCFBundleName() + "\";");
-                } catch (IOException ioe) {
-                    throw new BuildException("IOException in writing Help Book locale: " + locale);
-                } finally {
-                    FileUtils.close(writer);
-                }
+                StringWriter strings = new StringWriter();
+                PrintWriter writer = new PrintWriter(strings);
+                writer.println("CFBundleHelpBookFolder = \"" + folderName + "\";");
+                writer.println("CFBundleHelpBookName = \"" + name + "\";");
+                writer.println("CFBundleName = \"" + bundleProperties.getCFBundleName() + "\";");
+                writer.flush();
+                mPlanBuilder.addContent(strings.toString().getBytes(), infoPList);
             }
 
             // Write the Help Book source files into the bundle
@@ -1592,9 +3477,291 @@ public class JarBundler extends MatchingTask {
             processCopyingFileSets(fileSets, helpBookDir, false);
             processCopyingFileLists(fileLists, helpBookDir, false);
 
+            if (helpBook.isSearchIndex()) {
+                indexes.put(new File(helpBookDir.getParentFile(), folderName + HelpIndex.EXTENSION),
+                    helpIndex(helpBookDir));
+            }
+        }
+
+        // Read the pages of all indexes concurrently
+        List tasks = new ArrayList();
+
+        for (Iterator itor = indexes.values().iterator(); itor.hasNext(); ) {
+            tasks.addAll(((HelpIndex) itor.next()).tasks());
+        }
+
+        invokeAll(tasks);
+
+        for (Iterator itor = indexes.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            File indexFile = (File) e.getKey();
+
+            if (mVerbose) {
+                log("Creating Help Book search index \"" + bundlePath(indexFile) + "\"");
+            }
+
+            mPlanBuilder.addContent(((HelpIndex) e.getValue()).toByteArray(), indexFile);
+        }
+
+        // A reproducible bundle never holds hard links, like its other files
+        if (mShareHelpBookFiles && !mReproducible) {
+            shareHelpBookFiles(mPlanBuilder.getEntries(BundleMetrics.HELPBOOKS));
+        }
+    }
+
+    /**
+     * Copy the application and document icons into the bundle. PNG images
+     * and iconsets are encoded to icons first, all sizes of all icons
+     * concurrently, unless they are in the icon cache. Encoded icons are
+     * planned as generated files and only stored in the cache once the
+     * plan is carried out.
+     *
+     * @param icons Icon files by their destination in the bundle
+     * @throws BuildException if an icon cannot be encoded
+     */
+    private void copyIcons(Map icons) throws BuildException {
+        File cacheDir = (mCacheDir != null) ? new File(mCacheDir, "icons")
+            : new File(System.getProperty("java.io.tmpdir"), "jarbundler-icons");
+
+        Map encoded = new HashMap();
+        List tasks = new ArrayList();
+
+        for (Iterator itor = icons.values().iterator(); itor.hasNext(); ) {
+            File src = (File) itor.next();
+
+            if (IcnsIcon.isEncoded(src) && !encoded.containsKey(src)) {
+                IcnsIcon icon = new IcnsIcon(src, cacheDir);
+
+                if (icon.isCached()) {
+                    log("Using cached icon \"" + icon.getCachedFile() + "\" for \"" + src + "\"",
+                        Project.MSG_VERBOSE);
+                } else if (mVerbose) {
+                    log("Encoding icon \"" + src + "\"");
+                }
+
+                encoded.put(src, icon);
+                tasks.addAll(icon.tasks());
+            }
+        }
+
+        invokeAll(tasks);
+
+        for (Iterator itor = icons.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            File dest = (File) e.getKey();
+            File src = (File) e.getValue();
+            IcnsIcon icon = (IcnsIcon) encoded.get(src);
+
+            if (mVerbose) {
+                log("Copying " + (src == mAppIcon ? "application" : "document") + " icon file to \""
+                    + bundlePath(dest) + "\"");
+            }
+
+            if (icon == null) {
+                copyFile(src, dest, false);
+            } else if (icon.isCached()) {
+                copyFile(icon.getCachedFile(), dest, false);
+            } else {
+                try {
+                    mPlanBuilder.addContent(icon.toByteArray(), dest);
+                } catch (IOException ex) {
+                    throw new BuildException("Unable to encode icon \"" + src + "\": " + ex.getMessage(), ex);
+                }
+
+                if (!mEncodedIcons.contains(icon)) {
+                    mEncodedIcons.add(icon);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param helpBookDir The folder of a help book
+     * @return An index of the HTML pages planned into the folder so far
+     */
+    private HelpIndex helpIndex(File helpBookDir) {
+        HelpIndex index = new HelpIndex();
+        String root = mFileUtils.normalize(helpBookDir.getAbsolutePath()).getPath() + File.separator;
+
+        for (Iterator itor = mPlanBuilder.getEntries(BundleMetrics.HELPBOOKS).iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+            String path = entry.getDestination().getPath();
+            String name = path.toLowerCase(Locale.ENGLISH);
+
+            if (entry.getSource() != null && path.startsWith(root)
+                && (name.endsWith(".html") || name.endsWith(".htm") || name.endsWith(".xhtml"))) {
+                index.add(path.substring(root.length()).replace(File.separatorChar, '/'), entry.getSource());
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Link every file of a localized help book to the file at the same path
+     * in the help book of an earlier locale, if their contents are the
+     * same. Only files of equal size are compared, by the SHA-256 of their
+     * content, which is computed concurrently. Identical files at different
+     * paths, e.g. within one locale, are never linked, they are no copies
+     * of each other and may well change independently.
+     *
+     * @param entries The help book files
+     * @throws BuildException if a file cannot be read
+     */
+    private void shareHelpBookFiles(List entries) throws BuildException {
+
+        // Copied files of the .lproj folders by their path inside the folder
+        Map byPath = new LinkedHashMap();
+        String resources = mResourcesDir.getPath() + File.separator;
+
+        for (Iterator itor = entries.iterator(); itor.hasNext(); ) {
+            BundlePlan.Entry entry = (BundlePlan.Entry) itor.next();
+            String path = entry.getDestination().getPath();
+
+            if (entry.getSource() == null || entry.isExecutable() || !path.startsWith(resources)) {
+                continue;
+            }
+
+            String relative = path.substring(resources.length());
+            int slash = relative.indexOf(File.separatorChar);
+
+            if (slash < 0 || !relative.substring(0, slash).endsWith(".lproj")) {
+                continue;
+            }
+
+            String key = relative.substring(slash + 1);
+            List group = (List) byPath.get(key);
+
+            if (group == null) {
+                group = new ArrayList();
+                byPath.put(key, group);
+            }
+
+            group.add(entry);
+        }
+
+        // Digest the sources of every path shared by files of the same size
+        final Map digests = Collections.synchronizedMap(new HashMap());
+        Set sources = new LinkedHashSet();
+
+        for (Iterator itor = byPath.values().iterator(); itor.hasNext(); ) {
+            List group = (List) itor.next();
+            Set sizes = new HashSet();
+            Set shared = new HashSet();
+
+            for (Iterator entryIter = group.iterator(); entryIter.hasNext(); ) {
+                Long size = Long.valueOf(((BundlePlan.Entry) entryIter.next()).getSource().length());
+
+                if (!sizes.add(size)) {
+                    shared.add(size);
+                }
+            }
+
+            for (Iterator entryIter = group.iterator(); entryIter.hasNext(); ) {
+                File src = ((BundlePlan.Entry) entryIter.next()).getSource();
+
+                if (shared.contains(Long.valueOf(src.length()))) {
+                    sources.add(src);
+                }
+            }
+        }
+
+        List tasks = new ArrayList();
+
+        for (Iterator itor = sources.iterator(); itor.hasNext(); ) {
+            final File src = (File) itor.next();
+
+            tasks.add(new Callable() {
+                public Object call() throws IOException {
+                    digests.put(src, ContentCache.digest(src));
+                    return null;
+                }
+            });
+        }
+
+        invokeAll(tasks);
+
+        // Link to the first file at the same path with the same size and digest
+        int linked = 0;
+
+        for (Iterator itor = byPath.values().iterator(); itor.hasNext(); ) {
+            Map targets = new HashMap();
+
+            for (Iterator entryIter = ((List) itor.next()).iterator(); entryIter.hasNext(); ) {
+                BundlePlan.Entry entry = (BundlePlan.Entry) entryIter.next();
+                String digest = (String) digests.get(entry.getSource());
+
+                if (digest == null) {
+                    continue;
+                }
+
+                String key = entry.getSource().length() + ":" + digest;
+                File target = (File) targets.get(key);
+
+                if (target == null) {
+                    targets.put(key, entry.getDestination());
+                    continue;
+                }
+
+                mPlanBuilder.link(entry.getDestination(), target);
+                linked++;
+
+                if (mVerbose) {
+                    log("Linking \"" + bundlePath(entry.getDestination()) + "\" to \""
+                        + bundlePath(target) + "\"");
+                }
+            }
         }
+
+        log(linked + " help book files are identical to those of another locale and linked", Project.MSG_VERBOSE);
     }
 
+    /**
+     * Run tasks on up to "threads" threads and wait for all of them.
+     *
+     * @param tasks Callables
+     * @throws BuildException the first failure of a task
+     */
+    private void invokeAll(List tasks) throws BuildException {
+        if (mThreads <= 1 || tasks.size() <= 1) {
+            for (Iterator itor = tasks.iterator(); itor.hasNext(); ) {
+                try {
+                    ((Callable) itor.next()).call();
+                } catch (BuildException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new BuildException(ex.getMessage(), ex);
+                }
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(mThreads, tasks.size()));
+
+        try {
+            List futures = new ArrayList();
+
+            for (Iterator itor = tasks.iterator(); itor.hasNext(); ) {
+                futures.add(pool.submit((Callable) itor.next()));
+            }
+
+            for (Iterator itor = futures.iterator(); itor.hasNext(); ) {
+                try {
+                    ((Future) itor.next()).get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof BuildException) {
+                        throw (BuildException) ex.getCause();
+                    }
+                    throw new BuildException(ex.getCause().getMessage(), ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while planning the bundle");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
     /**
      * Copy the application stub into the bundle
@@ -1608,22 +3775,22 @@ public class JarBundler extends MatchingTask {
             log("Copying Java application stub to \"" + bundlePath(newStubFile) + "\"");
         }
 
-        try {
-            mFileUtils.copyFile(mStubFile, newStubFile);
-        } catch (IOException ex) {
-            throw new BuildException("Cannot copy Java Application Stub: " + ex);
-        }
-
-        // Set the permissions on the stub file to executable
+        // Copy the stub file and set its permissions to executable
 
-        setExecutable(newStubFile);
+        copyFile(mStubFile, newStubFile, true);
     }
 
     private void writeInfoPlist() throws BuildException {
         PropertyListWriter listWriter = new PropertyListWriter(bundleProperties);
+        listWriter.setUseDOM(mDOMPlistWriter);
+        listWriter.setBinary(mBinaryPlist);
+        listWriter.setSortKeys(mReproducible);
         File infoPlist = new File(mContentsDir, "Info.plist");
 
-        listWriter.writeFile(infoPlist);
+        ByteArrayOutputStream plist = new ByteArrayOutputStream();
+        listWriter.writeStream(plist);
+
+        mPlanBuilder.addContent(plist.toByteArray(), infoPlist);
 
         if (mVerbose) {
             log("Creating \"" + bundlePath(infoPlist) + "\" file");
@@ -1631,8 +3798,18 @@ public class JarBundler extends MatchingTask {
 
 
         if (mShowPlist) {
+
+            // A binary property list is shown in its XML form
+
+            if (mBinaryPlist) {
+                plist.reset();
+                listWriter.setBinary(false);
+                listWriter.writeStream(plist);
+            }
+
             try {
-                BufferedReader in = new BufferedReader(new FileReader(infoPlist));
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(plist.toByteArray()), "UTF-8"));
                 String str;
                 while ((str = in.readLine()) != null) {
                     log(str);
@@ -1651,18 +3828,14 @@ public class JarBundler extends MatchingTask {
      */
     private void writePkgInfo() throws BuildException {
         File pkgInfo = new File(mContentsDir, "PkgInfo");
-        PrintWriter writer = null;
+        StringWriter content = new StringWriter();
+        PrintWriter writer = new PrintWriter(content);
 
-        try {
-            writer = new PrintWriter(new BufferedWriter(new FileWriter(pkgInfo)));
-            writer.print(bundleProperties.getCFBundlePackageType());
-            writer.println(bundleProperties.getCFBundleSignature());
-            writer.flush();
-        } catch (IOException ex) {
-            throw new BuildException("Cannot create PkgInfo file: " + ex);
-        } finally {
-            FileUtils.close(writer);
-        }
+        writer.print(bundleProperties.getCFBundlePackageType());
+        writer.println(bundleProperties.getCFBundleSignature());
+        writer.flush();
+
+        mPlanBuilder.addContent(content.toString().getBytes(), pkgInfo);
     }
 
     private String bundlePath(File bundleFile) {
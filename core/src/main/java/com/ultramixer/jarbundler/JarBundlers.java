@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.Task;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * <p>Builds several application bundles at once. Every nested
+ * <code>&lt;jarbundler&gt;</code> element takes the attributes and nested
+ * elements of the <code>&lt;jarbundler&gt;</code> task.</p>
+ *
+ * <p>The bundles share a {@link BundleSession}: filesets referred to by
+ * more than one bundle are scanned once, all files are copied by one pool
+ * of workers and bundles using the same "cachedir" share one loaded
+ * cache.</p>
+ *
+ * <pre>
+ * &lt;taskdef name="jarbundlers"
+ *          classname="com.ultramixer.jarbundler.JarBundlers"/&gt;
+ *
+ * &lt;jarbundlers threads="4"&gt;
+ *   &lt;jarbundler dir="build/en" name="MyApp" mainclass="org.foo.Main" ...&gt;
+ *     &lt;jarfileset refid="app.jars"/&gt;
+ *   &lt;/jarbundler&gt;
+ *   &lt;jarbundler dir="build/de" name="MyApp" mainclass="org.foo.Main" ...&gt;
+ *     &lt;jarfileset refid="app.jars"/&gt;
+ *   &lt;/jarbundler&gt;
+ * &lt;/jarbundlers&gt;
+ * </pre>
+ *
+ * <p>The result of every bundle is logged once all bundles are done. A
+ * failed bundle does not stop the others; the task fails afterwards,
+ * naming every failed bundle, unless "failonerror" is false.</p>
+ *
+ * @since 3.4.0
+ */
+public class JarBundlers extends Task {
+
+    private final List bundlers = new ArrayList();
+
+    // Number of bundles built concurrently
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // Number of files copied concurrently, over all bundles
+    private int copyThreads = Runtime.getRuntime().availableProcessors();
+
+    private boolean failOnError = true;
+
+
+    /**
+     * Add a bundle to the batch.
+     *
+     * @param bundler A configured &lt;jarbundler&gt; element
+     */
+    public void addConfiguredJarBundler(JarBundler bundler) {
+        bundlers.add(bundler);
+    }
+
+    /**
+     * Setter for the "threads" attribute (optional)
+     *
+     * @param threads Number of bundles built concurrently, defaults to the
+     *                number of available processors
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("\"threads\" must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Setter for the "copythreads" attribute (optional)
+     *
+     * <p>The files of all bundles are copied by one pool of workers; the
+     * "threads" attribute of the nested bundles only matters if it is 1,
+     * which copies the bundle's files on its own thread.</p>
+     *
+     * @param threads Number of files copied concurrently, defaults to the
+     *                number of available processors
+     */
+    public void setCopyThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("\"copythreads\" must be at least 1");
+        }
+        this.copyThreads = threads;
+    }
+
+    /**
+     * Setter for the "failonerror" attribute (optional)
+     *
+     * @param b If false, failed bundles are only logged (default "true")
+     */
+    public void setFailOnError(boolean b) {
+        this.failOnError = b;
+    }
+
+    /**
+     * Build all bundles
+     *
+     * @throws BuildException naming the failed bundles
+     */
+    public void execute() throws BuildException {
+
+        if (bundlers.isEmpty()) {
+            throw new BuildException("At least one nested '<jarbundler>' element is required");
+        }
+
+        BundleSession session = new BundleSession(copyThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.min(threads, bundlers.size()), new BundlerThreadFactory());
+
+        List futures = new ArrayList();
+        List failures = new ArrayList();
+
+        // The nested bundles know their attributes and nested elements only
+        // through the wrappers of this task, which the up to date check needs
+        for (Enumeration e = getRuntimeConfigurableWrapper().getChildren(); e.hasMoreElements(); ) {
+            RuntimeConfigurable child = (RuntimeConfigurable) e.nextElement();
+
+            if (child.getProxy() instanceof JarBundler) {
+                ((JarBundler) child.getProxy()).setConfiguration(child);
+            }
+        }
+
+        try {
+            for (Iterator itor = bundlers.iterator(); itor.hasNext(); ) {
+                final JarBundler bundler = (JarBundler) itor.next();
+
+                bundler.setTaskName(getTaskName() + ":jarbundler");
+                bundler.setOwningTarget(getOwningTarget());
+                bundler.setLocation(getLocation());
+                bundler.setSession(session);
+
+                futures.add(pool.submit(new Callable() {
+                    public Object call() {
+                        bundler.perform();
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                JarBundler bundler = (JarBundler) bundlers.get(i);
+
+                try {
+                    ((Future) futures.get(i)).get();
+                    log(name(bundler, i) + ": " + bundler.getMetrics().totalLine());
+                } catch (ExecutionException ex) {
+                    String message = name(bundler, i) + ": " + ex.getCause().getMessage();
+
+                    log(message, Project.MSG_ERR);
+                    failures.add(message);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while building bundles");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+
+            for (Iterator itor = session.close().iterator(); itor.hasNext(); ) {
+                log((String) itor.next(), Project.MSG_VERBOSE);
+            }
+        }
+
+        log(bundlers.size() - failures.size() + " of " + bundlers.size() + " bundles built");
+
+        if (!failures.isEmpty() && failOnError) {
+            StringBuffer sb = new StringBuffer(failures.size() + " bundles failed:");
+
+            for (Iterator itor = failures.iterator(); itor.hasNext(); ) {
+                sb.append("\n  ").append(itor.next());
+            }
+
+            throw new BuildException(sb.toString(), getLocation());
+        }
+    }
+
+    /**
+     * @return The name of a bundle's directory, or its position if it
+     *         failed before the name was known
+     */
+    private static String name(JarBundler bundler, int i) {
+        return (bundler.getBundleDir() != null) ? bundler.getBundleDir().getName() : "#" + (i + 1);
+    }
+
+
+    /**
+     * Creates named daemon threads for the bundles
+     */
+    private static class BundlerThreadFactory implements ThreadFactory {
+
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jarbundler-bundle-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.FileSet;
+
+import java.util.Locale;
+
+
+/**
+ * <p>The nested &lt;jarfileset&gt; element: a FileSet of application jars,
+ * which are either copied into <code>Contents/Resources/Java</code>,
+ * repacked or merged into a single jar.</p>
+ *
+ * <dl>
+ * <dt>merge</dt>
+ * <dd>Merge the jars into a jar of this name instead of copying them. All
+ * jarfilesets with the same name are merged into the same jar, which takes
+ * the place of their jars on the class path.</dd>
+ *
+ * <dt>duplicates</dt>
+ * <dd>Which of several different classes of the same name is merged:
+ * "first" (default), the one found first on the class path, as the VM
+ * would load it; "last"; or "fail" to stop the build. Other files of the
+ * same name with different content are taken from the first jar with a
+ * warning, or stop the build with "fail".</dd>
+ *
+ * <dt>repack</dt>
+ * <dd>"stored" to store the entries of the jars uncompressed, sorted by
+ * name with the manifest first, so classes load without being inflated.
+ * Applies to the jars of the fileset, or to the merged jar.</dd>
+ * </dl>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * &lt;jarfileset dir="lib" includes="*.jar" merge="libraries.jar" duplicates="fail"/&gt;
+ * </pre>
+ */
+public class JarFileSet extends FileSet {
+
+    private String merge = null;
+    private String duplicates = JarRewrite.DUPLICATES_FIRST;
+    private String repack = null;
+
+
+    // Name of the merged jar
+    public void setMerge(String merge) {
+        if (merge.length() == 0 || merge.indexOf('/') >= 0 || merge.indexOf('\\') >= 0) {
+            throw new BuildException("The '<jarfileset>' attribute 'merge' must be a file name");
+        }
+
+        this.merge = merge;
+    }
+
+    public String getMerge() {
+        return merge;
+    }
+
+
+    // Duplicate class policy of merged jars
+    public void setDuplicates(String duplicates) {
+        String policy = duplicates.toLowerCase(Locale.ENGLISH);
+
+        if (!JarRewrite.DUPLICATES_FIRST.equals(policy) && !JarRewrite.DUPLICATES_LAST.equals(policy)
+            && !JarRewrite.DUPLICATES_FAIL.equals(policy)) {
+            throw new BuildException("Invalid duplicates policy \"" + duplicates
+                + "\" (expected 'first', 'last' or 'fail')");
+        }
+
+        this.duplicates = policy;
+    }
+
+    public String getDuplicates() {
+        return duplicates;
+    }
+
+
+    // How the jars are repacked, only "stored"
+    public void setRepack(String repack) {
+        String mode = repack.toLowerCase(Locale.ENGLISH);
+
+        if (!JarRewrite.REPACK_STORED.equals(mode)) {
+            throw new BuildException("Invalid repack mode \"" + repack + "\" (expected 'stored')");
+        }
+
+        this.repack = mode;
+    }
+
+    public String getRepack() {
+        return repack;
+    }
+}
@@ -0,0 +1,678 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * <p>A jar of the bundle which is written by JarBundler instead of being
+ * copied: either the jars of one or more jarfilesets merged into a single
+ * jar, which takes the place of all of them on the class path, or a single
+ * jar repacked.</p>
+ *
+ * <p>Jars are merged in class path order. A file found in more than one
+ * jar with different content is a duplicate; the duplicates policy picks
+ * the class that is kept, other files are taken from the first jar with a
+ * warning, unless the policy is "fail", which fails on them too. The
+ * provider lists in <code>META-INF/services</code> are concatenated.
+ * Manifests, signatures, <code>INDEX.LIST</code> and
+ * <code>module-info.class</code> files are dropped, since they describe
+ * the original jars; the merged jar gets a manifest of its own. A repacked
+ * jar keeps all of its files, including its manifest and signatures.</p>
+ *
+ * <p>The manifest is written first, followed by the other files sorted by
+ * name. Given a {@link ClassLoadOrder}, the classes loaded during startup
+ * come right after the manifest, in the order they are loaded, so a cold
+ * start reads them from a contiguous part of the jar. Entries are compressed, or stored uncompressed if "stored" is set;
+ * the size and CRC of a stored entry are taken from the source jar's
+ * directory, so no entry is ever held in memory. Every source is read
+ * twice, once to choose the files and once to copy them. The written jar
+ * carries a fingerprint of its sources in its zip comment, which tells
+ * whether it is up to date.</p>
+ */
+class JarRewrite {
+
+    // Duplicate class policies
+    static final String DUPLICATES_FIRST = "first";
+    static final String DUPLICATES_LAST = "last";
+    static final String DUPLICATES_FAIL = "fail";
+
+    // Repack modes
+    static final String REPACK_STORED = "stored";
+
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String SERVICES = "META-INF/services/";
+    private static final String FINGERPRINT_PREFIX = "jarbundler:";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean merge;
+    private final String duplicates;
+    private final List sources = new ArrayList();
+    private boolean stored = false;
+    private ClassLoadOrder order = null;
+    private long time = -1;
+
+
+    private JarRewrite(boolean merge, String duplicates) {
+        this.merge = merge;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * @param duplicates The duplicate class policy: "first", "last" or "fail"
+     * @return A merge of the jars added by {@link #addSource(File)}
+     */
+    static JarRewrite merge(String duplicates) {
+        return new JarRewrite(true, duplicates);
+    }
+
+    /**
+     * @param jar The jar
+     * @return A rewrite of a single jar, keeping all of its files
+     */
+    static JarRewrite repack(File jar) {
+        JarRewrite rewrite = new JarRewrite(false, DUPLICATES_FIRST);
+        rewrite.addSource(jar);
+        return rewrite;
+    }
+
+    /**
+     * @param jar A jar to merge, after all jars added before
+     */
+    void addSource(File jar) {
+        sources.add(jar);
+    }
+
+    /**
+     * @return The merged jars as Files, in class path order
+     */
+    List getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    String getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @param stored If true, store the entries uncompressed, so classes
+     *               can be loaded without inflating them
+     */
+    void setStored(boolean stored) {
+        this.stored = stored;
+    }
+
+    boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * @param order The classes loaded during startup, which are placed
+     *              first, or null to sort all files by name
+     */
+    void setClassLoadOrder(ClassLoadOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * @param time The modification time of every entry, or -1 to keep the
+     *             times of the sources. Fixing the time also bases the
+     *             fingerprint on the contents of the sources instead of
+     *             their paths and times, so the jar is reproducible.
+     */
+    void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * @return A short description of the rewrite, for logs and manifests
+     */
+    String describe() {
+        String description = merge ? "merge duplicates=" + duplicates : "repack";
+
+        if (stored) {
+            description += " stored";
+        }
+
+        return (order != null) ? description + " order" : description;
+    }
+
+    /**
+     * @return A SHA-256 of the options, the paths, sizes and modification
+     *         times of the sources, which changes whenever the result would.
+     *         With a fixed time the contents of the sources are hashed
+     *         instead of their paths and times.
+     */
+    String getFingerprint() {
+        StringBuffer sb = new StringBuffer(describe()).append('\n');
+
+        if (order != null) {
+            sb.append(order.getFingerprint()).append('\n');
+        }
+
+        try {
+            if (time >= 0) {
+                sb.append(time).append('\n');
+            }
+
+            for (Iterator itor = sources.iterator(); itor.hasNext(); ) {
+                File f = (File) itor.next();
+
+                if (time >= 0) {
+                    sb.append(ContentCache.digest(f)).append('\n');
+                } else {
+                    sb.append(f.getAbsolutePath()).append('\t').append(f.length())
+                        .append('\t').append(f.lastModified()).append('\n');
+                }
+            }
+
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return ContentCache.toHex(md.digest(sb.toString().getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new BuildException(ex);
+        } catch (IOException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+    /**
+     * @param dest A jar written by {@link #write(File, Task)}
+     * @return true if the jar was written from the current sources
+     */
+    boolean isUpToDate(File dest) {
+        if (!dest.isFile()) {
+            return false;
+        }
+
+        ZipFile zip = null;
+
+        try {
+            zip = new ZipFile(dest);
+            return (FINGERPRINT_PREFIX + getFingerprint()).equals(zip.getComment());
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            close(zip);
+        }
+    }
+
+    /**
+     * Write the jar. It is written to a temporary file next to the
+     * destination, which replaces the destination once complete.
+     *
+     * @param dest The jar to write
+     * @param task The task logging conflicts
+     * @throws IOException    if a source cannot be read or the jar cannot be written
+     * @throws BuildException if duplicate classes are not allowed
+     */
+    void write(File dest, Task task) throws IOException, BuildException {
+        File tmp = new File(dest.getParentFile(), dest.getName() + ".tmp");
+        OutputStream out = null;
+
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+            write(out, task, dest.getName());
+            out.close();
+            out = null;
+
+            Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            FileUtils.close(out);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Write the jar to a stream.
+     *
+     * @param out  Receives the jar, is not closed
+     * @param task The task logging conflicts
+     * @param name The name of the jar in messages
+     * @throws IOException    if a source cannot be read or the jar cannot be written
+     * @throws BuildException if duplicate classes are not allowed
+     */
+    void write(OutputStream out, Task task, String name) throws IOException, BuildException {
+        Map services = new LinkedHashMap();
+        List files = select(services, task, name);
+        long time = (this.time >= 0) ? BundleArchiver.zipTime(this.time) : lastModified();
+
+        Collections.sort(files, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Selected s1 = (Selected) o1;
+                Selected s2 = (Selected) o2;
+                int rank1 = rank(s1);
+                int rank2 = rank(s2);
+
+                if (rank1 != rank2) {
+                    return rank1 - rank2;
+                } else if (s1.position != s2.position) {
+                    return (s1.position < s2.position) ? -1 : 1;
+                }
+
+                return s1.name.compareTo(s2.name);
+            }
+        });
+
+        if (order != null) {
+            reportStartupClasses(files, task, name);
+        }
+
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.setComment(FINGERPRINT_PREFIX + getFingerprint());
+
+        // Merged jars get a new manifest, which comes first as in every jar
+        if (merge) {
+            putEntry(zip, META_INF, new byte[0], time);
+            putEntry(zip, MANIFEST, manifest(), time);
+        }
+
+        ZipFile[] zipFiles = new ZipFile[sources.size()];
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            for (Iterator itor = files.iterator(); itor.hasNext(); ) {
+                Selected selected = (Selected) itor.next();
+
+                if (zipFiles[selected.jar] == null) {
+                    zipFiles[selected.jar] = new ZipFile((File) sources.get(selected.jar));
+                }
+
+                copyEntry(zipFiles[selected.jar], selected.name, zip, buffer);
+            }
+        } finally {
+            for (int i = 0; i < zipFiles.length; i++) {
+                close(zipFiles[i]);
+            }
+        }
+
+        // The concatenated service provider lists
+        for (Iterator itor = services.entrySet().iterator(); itor.hasNext(); ) {
+            Map.Entry e = (Map.Entry) itor.next();
+            StringBuffer sb = new StringBuffer();
+
+            for (Iterator lines = ((Set) e.getValue()).iterator(); lines.hasNext(); ) {
+                sb.append(lines.next()).append('\n');
+            }
+
+            putEntry(zip, (String) e.getKey(), sb.toString().getBytes("UTF-8"), time);
+        }
+
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * Choose the jar every file is taken from and collect the service
+     * provider lists of merged jars.
+     *
+     * @return The chosen files as Selected
+     */
+    private List select(Map services, Task task, String name) throws IOException, BuildException {
+        Map chosen = new HashMap();
+        List files = new ArrayList();
+        int conflicts = 0;
+
+        for (int i = 0; i < sources.size(); i++) {
+            File jar = (File) sources.get(i);
+            ZipFile zipFile = null;
+
+            try {
+                zipFile = new ZipFile(jar);
+
+                for (Enumeration e = zipFile.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = (ZipEntry) e.nextElement();
+                    String entryName = entry.getName();
+
+                    if (merge && isDropped(entryName)) {
+                        continue;
+                    }
+
+                    if (merge && entryName.startsWith(SERVICES) && !entry.isDirectory()) {
+                        readServices(zipFile, entry, services);
+                        continue;
+                    }
+
+                    Selected previous = (Selected) chosen.get(entryName);
+
+                    if (previous == null) {
+                        Selected selected = new Selected(entryName, i, entry,
+                            (order != null) ? order.indexOf(entryName) : -1);
+                        chosen.put(entryName, selected);
+                        files.add(selected);
+                        continue;
+                    }
+
+                    if (entry.isDirectory() || sameContent(previous.entry, entry)) {
+                        continue;
+                    }
+
+                    // Resources such as reference.conf or META-INF/spring.handlers
+                    // usually need merging by hand, dropping one breaks the application
+                    if (!entryName.endsWith(".class")) {
+                        if (DUPLICATES_FAIL.equals(duplicates)) {
+                            throw new BuildException("Conflicting file \"" + entryName + "\" in \""
+                                + sources.get(previous.jar) + "\" and \"" + jar + "\"");
+                        }
+
+                        task.log("\"" + entryName + "\" of \"" + jar + "\" differs from the one in \""
+                            + sources.get(previous.jar) + "\", skipped", Project.MSG_WARN);
+                        continue;
+                    }
+
+                    conflicts++;
+
+                    if (DUPLICATES_FAIL.equals(duplicates)) {
+                        throw new BuildException("Duplicate class \"" + entryName + "\" in \""
+                            + sources.get(previous.jar) + "\" and \"" + jar + "\"");
+                    }
+
+                    task.log("Duplicate class \"" + entryName + "\" in \"" + sources.get(previous.jar)
+                        + "\" and \"" + jar + "\"", Project.MSG_VERBOSE);
+
+                    if (DUPLICATES_LAST.equals(duplicates)) {
+                        previous.jar = i;
+                        previous.entry = entry;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new IOException("Unable to read \"" + jar + "\": " + ex.getMessage(), ex);
+            } finally {
+                close(zipFile);
+            }
+        }
+
+        if (conflicts > 0) {
+            task.log(name + ": " + conflicts + " duplicate classes, kept the "
+                + duplicates + " of each");
+        }
+
+        return files;
+    }
+
+    /**
+     * Copy an entry of a source jar, compressed or stored.
+     */
+    private void copyEntry(ZipFile zipFile, String name, ZipOutputStream zip, byte[] buffer) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+
+        if (entry == null) {
+            throw new IOException("\"" + name + "\" has disappeared from \"" + zipFile.getName() + "\"");
+        }
+
+        ZipEntry copy = new ZipEntry(name);
+        copy.setTime((this.time >= 0) ? BundleArchiver.zipTime(this.time) : entry.getTime());
+
+        if (stored) {
+            copy.setMethod(ZipEntry.STORED);
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+        }
+
+        zip.putNextEntry(copy);
+
+        if (!entry.isDirectory()) {
+            InputStream in = zipFile.getInputStream(entry);
+
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    zip.write(buffer, 0, n);
+                }
+            } finally {
+                FileUtils.close(in);
+            }
+        }
+
+        zip.closeEntry();
+    }
+
+    private void putEntry(ZipOutputStream zip, String name, byte[] content, long time) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(time);
+
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    /**
+     * The order of the entries: META-INF/ and the manifest first, then the
+     * signature files, so the jar can be verified while it is read, then
+     * the startup classes, then everything else by name.
+     */
+    private static int rank(Selected selected) {
+        String upper = selected.name.toUpperCase(Locale.ENGLISH);
+
+        if (upper.equals(META_INF)) {
+            return 0;
+        } else if (upper.equals(MANIFEST)) {
+            return 1;
+        } else if (isSignature(upper)) {
+            return 2;
+        } else if (selected.position >= 0) {
+            return 3;
+        }
+
+        return 4;
+    }
+
+    /**
+     * Log how many of the startup classes the jar, and each of the jars
+     * merged into it, contributes.
+     */
+    private void reportStartupClasses(List files, Task task, String name) {
+        int[] counts = new int[sources.size()];
+        int total = 0;
+
+        for (Iterator itor = files.iterator(); itor.hasNext(); ) {
+            Selected selected = (Selected) itor.next();
+
+            if (selected.position >= 0) {
+                counts[selected.jar]++;
+                total++;
+            }
+        }
+
+        task.log(name + ": " + total + " of " + order.size() + " startup classes");
+
+        if (merge) {
+            for (int i = 0; i < counts.length; i++) {
+                task.log("  " + ((File) sources.get(i)).getName() + ": " + counts[i], Project.MSG_VERBOSE);
+            }
+        }
+    }
+
+    /**
+     * @return true for files which only describe the original jars
+     */
+    private static boolean isDropped(String name) {
+        String upper = name.toUpperCase(Locale.ENGLISH);
+
+        if (name.equals("module-info.class") || name.endsWith("/module-info.class")) {
+            return true;
+        }
+
+        return upper.equals(META_INF) || upper.equals(MANIFEST) || upper.equals("META-INF/INDEX.LIST")
+            || isSignature(upper);
+    }
+
+    private static boolean isSignature(String upper) {
+        if (!upper.startsWith(META_INF) || upper.indexOf('/', META_INF.length()) >= 0) {
+            return false;
+        }
+
+        return upper.endsWith(".SF") || upper.endsWith(".DSA") || upper.endsWith(".RSA")
+            || upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
+    }
+
+    private static boolean sameContent(ZipEntry a, ZipEntry b) {
+        return a.getSize() == b.getSize() && a.getCrc() == b.getCrc() && a.getSize() != -1;
+    }
+
+    private static void readServices(ZipFile zipFile, ZipEntry entry, Map services) throws IOException {
+        Set providers = (Set) services.get(entry.getName());
+
+        if (providers == null) {
+            providers = new LinkedHashSet();
+            services.put(entry.getName(), providers);
+        }
+
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(zipFile.getInputStream(entry), "UTF-8"));
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String provider = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+
+                if (provider.length() > 0) {
+                    providers.add(provider);
+                }
+            }
+        } finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * @return The manifest of a merged jar; it is multi-release if any of
+     *         the sources is
+     */
+    private byte[] manifest() throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Created-By", "JarBundler");
+
+        for (Iterator itor = sources.iterator(); itor.hasNext(); ) {
+            File jar = (File) itor.next();
+            JarFile jarFile = null;
+
+            try {
+                jarFile = new JarFile(jar, false);
+                Manifest m = jarFile.getManifest();
+
+                if (m != null && "true".equalsIgnoreCase(m.getMainAttributes().getValue("Multi-Release"))) {
+                    attributes.putValue("Multi-Release", "true");
+                    break;
+                }
+            } finally {
+                close(jarFile);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The time of the newest source, used for the generated entries
+     */
+    private long lastModified() {
+        long time = 0;
+
+        for (Iterator itor = sources.iterator(); itor.hasNext(); ) {
+            time = Math.max(time, ((File) itor.next()).lastModified());
+        }
+
+        return time;
+    }
+
+    private static void close(ZipFile zip) {
+        if (zip != null) {
+            try {
+                zip.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+
+    /**
+     * A file of the rewritten jar and the jar it is taken from
+     */
+    private static class Selected {
+
+        private final String name;
+        private int jar;
+        private ZipEntry entry;
+
+        // Position in the class load order, -1 if not loaded at startup
+        private final int position;
+
+        Selected(String name, int jar, ZipEntry entry, int position) {
+            this.name = name;
+            this.jar = jar;
+            this.entry = entry;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import java.io.File;
+
+
+/**
+ * <p>Represents a Java runtime embedded into the bundle: a minimal runtime
+ * image linked by jlink, placed in
+ * <code>Contents/PlugIns/<i>name</i>/Contents/Home</code> and named by the
+ * <code>JVMRuntime</code> key of the Info.plist, which stubs such as
+ * universalJavaApplicationStub launch the application with.</p>
+ *
+ * <p>The modules of the image are those the bundled jars need, as found by
+ * jdeps, plus any listed in "modules". Images are cached by the JDK
+ * version, the jmods, modules and jlink options, so jlink only runs when
+ * one of them changes. The cache is never pruned.</p>
+ *
+ * <dl>
+ * <dt>JDK</dt>
+ * <dd>The home directory of the JDK whose jlink and jdeps are run (default:
+ * the JDK running Ant). JDK 11 or later is required.</dd>
+ *
+ * <dt>JMods</dt>
+ * <dd>The <code>jmods</code> directory of the JDK the image is linked from,
+ * e.g. a macOS JDK when building on another platform (default: the
+ * modules of "jdk" itself).</dd>
+ *
+ * <dt>Name</dt>
+ * <dd>The name of the runtime's directory in Contents/PlugIns (default
+ * "jre").</dd>
+ *
+ * <dt>Modules</dt>
+ * <dd>Comma separated modules added to the image, e.g. modules only loaded
+ * by reflection such as "jdk.localedata".</dd>
+ *
+ * <dt>JDeps</dt>
+ * <dd>If true, add the modules jdeps finds the jars depend on (default
+ * true). Without jdeps, "modules" has to list them all.</dd>
+ *
+ * <dt>Options</dt>
+ * <dd>Options passed to jlink (default "--strip-debug --no-header-files
+ * --no-man-pages").</dd>
+ *
+ * <dt>CacheDir</dt>
+ * <dd>Directory of the cached images (default: "runtimes" in the
+ * jarbundler "cachedir", or "jarbundler-runtimes" in the temporary
+ * directory).</dd>
+ * </dl>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * &lt;runtime jdk="${jdk.home}" modules="jdk.localedata" options="--strip-debug --no-man-pages"/&gt;
+ * </pre>
+ */
+public class JavaRuntime {
+
+    private File jdk = new File(System.getProperty("java.home"));
+    private File jmods = null;
+    private String name = "jre";
+    private String modules = null;
+    private boolean jdeps = true;
+    private String options = "--strip-debug --no-header-files --no-man-pages";
+    private File cacheDir = null;
+
+
+    // JDK home directory
+    public void setJdk(File jdk) {
+        this.jdk = jdk;
+    }
+
+    public File getJdk() {
+        return jdk;
+    }
+
+
+    // Module path jlink links from
+    public void setJmods(File jmods) {
+        this.jmods = jmods;
+    }
+
+    public File getJmods() {
+        return jmods;
+    }
+
+
+    // Name of the runtime in Contents/PlugIns
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+
+    // Additional modules
+    public void setModules(String modules) {
+        this.modules = modules;
+    }
+
+    public String getModules() {
+        return modules;
+    }
+
+
+    // Find the modules with jdeps
+    public void setJdeps(boolean jdeps) {
+        this.jdeps = jdeps;
+    }
+
+    public boolean isJdeps() {
+        return jdeps;
+    }
+
+
+    // jlink options
+    public void setOptions(String options) {
+        this.options = options;
+    }
+
+    public String getOptions() {
+        return options;
+    }
+
+
+    // Directory of the cached images
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+}
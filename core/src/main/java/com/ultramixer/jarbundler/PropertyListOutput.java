@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import java.io.IOException;
+
+
+/**
+ * <p>Receives the content of a property list from the {@link PropertyListWriter}
+ * in document order and encodes it.</p>
+ *
+ * <p>Every <code>startDict()</code> and <code>startArray()</code> is matched by
+ * an <code>endDict()</code> or <code>endArray()</code>, and <code>finish()</code>
+ * is called once the top level dictionary is complete.</p>
+ */
+interface PropertyListOutput {
+
+    void startDict() throws IOException;
+
+    void endDict() throws IOException;
+
+    void startArray() throws IOException;
+
+    void endArray() throws IOException;
+
+    void key(String key) throws IOException;
+
+    void string(String string) throws IOException;
+
+    void bool(boolean b) throws IOException;
+
+    void finish() throws IOException;
+}
@@ -19,22 +19,14 @@ package com.ultramixer.jarbundler;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.util.FileUtils;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+
 import java.io.*;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
 
 
 /**
@@ -42,6 +34,15 @@ import java.util.List;
  * the property list keys, see <a
  * href="https://developer.apple.com/library/ios/documentation/General/Reference/InfoPlistKeyReference/Introduction/Introduction.html"
  * >Apple docs</a>.</p>
+ *
+ * <p>By default the property list is streamed in a single pass. The original
+ * DOM based writer can be selected with {@link #setUseDOM(boolean)}; both
+ * produce the same bytes. The binary "bplist00" format can be selected with
+ * {@link #setBinary(boolean)}.</p>
+ *
+ * <p>The Java properties and the LSEnvironment dictionary are kept in hash
+ * tables, so their keys are written in hash order unless
+ * {@link #setSortKeys(boolean)} is set.</p>
  */
 public class PropertyListWriter {
 
@@ -49,8 +50,17 @@ public class PropertyListWriter {
     // Our application bundle properties
     private AppBundleProperties bundleProperties;
 
-    // DOM version of Info.plist file
-    private Document document = null;
+    // Receives the property list while it is written
+    private PropertyListOutput output = null;
+
+    // Build a DOM instead of streaming the property list
+    private boolean useDOM = false;
+
+    // Write a binary property list instead of XML
+    private boolean binary = false;
+
+    // Write the keys of the hash table backed dictionaries in sorted order
+    private boolean sortKeys = false;
 
 
     private FileUtils fileUtils = FileUtils.getFileUtils();
@@ -64,176 +74,205 @@ public class PropertyListWriter {
         this.bundleProperties = bundleProperties;
     }
 
+    /**
+     * Select the DOM based writer instead of the streaming one.
+     *
+     * @param useDOM If true, build a DOM and serialize it through the JAXP
+     *               identity transformer
+     * @since 3.4.0
+     */
+    public void setUseDOM(boolean useDOM) {
+        this.useDOM = useDOM;
+    }
+
+    /**
+     * Write the property list in the binary "bplist00" format instead of XML.
+     *
+     * @param binary If true, write a binary property list
+     * @since 3.4.0
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Write the keys of the Java properties and LSEnvironment dictionaries in
+     * sorted order, so the same properties always give the same bytes.
+     *
+     * @param sortKeys If true, sort the dictionary keys
+     * @since 3.4.0
+     */
+    public void setSortKeys(boolean sortKeys) {
+        this.sortKeys = sortKeys;
+    }
+
 
     public void writeFile(File fileName) throws BuildException {
 
-        Writer writer = null;
+        OutputStream out = null;
 
         try {
-
-            this.document = createDOM();
-            buildDOM();
-
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer trans = transFactory.newTransformer();
-            trans.setOutputProperty(OutputKeys.INDENT, "yes");
-            trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8"));
-            trans.transform(new DOMSource(document), new StreamResult(writer));
-        } catch (TransformerConfigurationException tce) {
-            throw new BuildException(tce);
-        } catch (TransformerException te) {
-            throw new BuildException(te);
-        } catch (ParserConfigurationException pce) {
-            throw new BuildException(pce);
+            out = new FileOutputStream(fileName);
+            writeStream(out);
         } catch (IOException ex) {
             throw new BuildException("Unable to write  \"" + fileName + "\"");
         } finally {
-            FileUtils.close(writer);
+            FileUtils.close(out);
         }
     }
 
-    private Document createDOM() throws ParserConfigurationException {
-
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder documentBuilder = factory.newDocumentBuilder();
-        DOMImplementation domImpl = documentBuilder.getDOMImplementation();
-
-        // We needed to reference using the full class name here because we already have
-        //  a class named "DocumentType"
+    /**
+     * Write the property list to a stream. The stream is flushed but not closed.
+     *
+     * @param out The stream receiving the UTF-8 encoded or binary property list
+     * @throws BuildException if the property list cannot be written
+     */
+    public void writeStream(OutputStream out) throws BuildException {
 
-        org.w3c.dom.DocumentType doctype = domImpl.createDocumentType(
-            "plist",
-            "-//Apple Computer//DTD PLIST 1.0//EN",
-            "http://www.apple.com/DTDs/PropertyList-1.0.dtd");
+        try {
+            if (binary) {
+                this.output = new BinaryPropertyListOutput(out);
+            } else if (useDOM) {
+                this.output = new DOMPropertyListOutput(out);
+            } else {
+                this.output = new XMLPropertyListOutput(out);
+            }
 
-        return domImpl.createDocument(null, "plist", doctype);
+            writeProperties();
+            this.output.finish();
+        } catch (IOException ex) {
+            throw new BuildException("Unable to write property list: " + ex);
+        } finally {
+            this.output = null;
+        }
     }
 
 
-    private void buildDOM() {
-
-        Element plist = this.document.getDocumentElement();
-        plist.setAttribute("version", "1.0");
+    private void writeProperties() throws IOException {
 
         // Open the top level dictionary, <dict>
 
-        Node dict = createNode("dict", plist);
+        output.startDict();
 
         // Application short name i.e. About menu name
-        writeKeyStringPair("CFBundleName", bundleProperties.getCFBundleName(), dict);
+        writeKeyStringPair("CFBundleName", bundleProperties.getCFBundleName());
 
         // Finder 'Version' label, defaults to "1.0"
-        writeKeyStringPair("CFBundleShortVersionString", bundleProperties.getCFBundleShortVersionString(), dict);
+        writeKeyStringPair("CFBundleShortVersionString", bundleProperties.getCFBundleShortVersionString());
 
         // macOS required key, defaults to "false"
         writeKeyStringPair("CFBundleAllowMixedLocalizations",
-            (bundleProperties.getCFBundleAllowMixedLocalizations() ? "true" : "false"), dict);
+            (bundleProperties.getCFBundleAllowMixedLocalizations() ? "true" : "false"));
 
         // macOS required, defaults to "6.0"
         writeKeyStringPair("CFBundleInfoDictionaryVersion",
-            bundleProperties.getCFBundleInfoDictionaryVersion(), dict);
+            bundleProperties.getCFBundleInfoDictionaryVersion());
 
         // Bundle Executable name, required, defaults to "JavaApplicationStub"
-        writeKeyStringPair("CFBundleExecutable", bundleProperties.getCFBundleExecutable(), dict);
+        writeKeyStringPair("CFBundleExecutable", bundleProperties.getCFBundleExecutable());
 
         // Bundle Development Region, required, defaults to "English"
-        writeKeyStringPair("CFBundleDevelopmentRegion", bundleProperties.getCFBundleDevelopmentRegion(), dict);
+        writeKeyStringPair("CFBundleDevelopmentRegion", bundleProperties.getCFBundleDevelopmentRegion());
 
         // Bundle Package Type, required, defaults tp "APPL"
-        writeKeyStringPair("CFBundlePackageType", bundleProperties.getCFBundlePackageType(), dict);
+        writeKeyStringPair("CFBundlePackageType", bundleProperties.getCFBundlePackageType());
 
         // Bundle Signature, required, defaults tp "????"
-        writeKeyStringPair("CFBundleSignature", bundleProperties.getCFBundleSignature(), dict);
+        writeKeyStringPair("CFBundleSignature", bundleProperties.getCFBundleSignature());
 
         // Application build number, optional
         if (bundleProperties.getCFBundleVersion() != null) {
-            writeKeyStringPair("CFBundleVersion", bundleProperties.getCFBundleVersion(), dict);
+            writeKeyStringPair("CFBundleVersion", bundleProperties.getCFBundleVersion());
         }
 
         // Application Icon file, optional
         if (bundleProperties.getCFBundleIconFile() != null) {
-            writeKeyStringPair("CFBundleIconFile", bundleProperties.getCFBundleIconFile(), dict);
+            writeKeyStringPair("CFBundleIconFile", bundleProperties.getCFBundleIconFile());
         }
 
         // Bundle Identifier, optional
         if (bundleProperties.getCFBundleIdentifier() != null) {
-            writeKeyStringPair("CFBundleIdentifier", bundleProperties.getCFBundleIdentifier(), dict);
+            writeKeyStringPair("CFBundleIdentifier", bundleProperties.getCFBundleIdentifier());
         }
 
         // Help Book Folder, optional
         if (bundleProperties.getCFBundleHelpBookFolder() != null) {
-            writeKeyStringPair("CFBundleHelpBookFolder", bundleProperties.getCFBundleHelpBookFolder(), dict);
+            writeKeyStringPair("CFBundleHelpBookFolder", bundleProperties.getCFBundleHelpBookFolder());
         }
 
         // Help Book Name, optional
         if (bundleProperties.getCFBundleHelpBookName() != null) {
-            writeKeyStringPair("CFBundleHelpBookName", bundleProperties.getCFBundleHelpBookName(), dict);
+            writeKeyStringPair("CFBundleHelpBookName", bundleProperties.getCFBundleHelpBookName());
         }
 
         // Copyright, optional
         if (bundleProperties.getNSHumanReadableCopyright() != null) {
-            writeKeyStringPair("NSHumanReadableCopyright", bundleProperties.getNSHumanReadableCopyright(), dict);
+            writeKeyStringPair("NSHumanReadableCopyright", bundleProperties.getNSHumanReadableCopyright());
         }
 
         // HiRes capability, optional
         if (bundleProperties.getNSHighResolutionCapable() != false) {
-            writeKeyBooleanPair("NSHighResolutionCapable", bundleProperties.getNSHighResolutionCapable(), dict);
+            writeKeyBooleanPair("NSHighResolutionCapable", bundleProperties.getNSHighResolutionCapable());
         }
 
         // automatic graphics switching capability, optional
         if (bundleProperties.getNSSupportsAutomaticGraphicsSwitching()) {
-            writeKeyBooleanPair("NSSupportsAutomaticGraphicsSwitching", bundleProperties.getNSSupportsAutomaticGraphicsSwitching(), dict);
+            writeKeyBooleanPair("NSSupportsAutomaticGraphicsSwitching", bundleProperties.getNSSupportsAutomaticGraphicsSwitching());
         }
 
         // Content size, optional
         if (bundleProperties.getNSPreferencesContentSize() != null) {
-            writeKeyStringPair("NSPreferencesContentSize", "{" + bundleProperties.getNSPreferencesContentSize() + "}", dict);
+            writeKeyStringPair("NSPreferencesContentSize", "{" + bundleProperties.getNSPreferencesContentSize() + "}");
         }
 
         // IsAgent, optional
         if (bundleProperties.getLSUIElement() != null) {
-            writeKeyBooleanPair("LSUIElement", bundleProperties.getLSUIElement(), dict);
+            writeKeyBooleanPair("LSUIElement", bundleProperties.getLSUIElement());
         }
 
         // LSApplicationCategoryType, optional
         // new since 2015-08-05 by Tobias Bley / UltraMixer
         if (bundleProperties.getLSApplicationCategoryType() != null) {
-            writeKeyStringPair("LSApplicationCategoryType", bundleProperties.getLSApplicationCategoryType(), dict);
+            writeKeyStringPair("LSApplicationCategoryType", bundleProperties.getLSApplicationCategoryType());
+        }
+
+        // JVMRuntime, the runtime embedded in Contents/PlugIns, optional
+        if (bundleProperties.getJVMRuntime() != null) {
+            writeKeyStringPair("JVMRuntime", bundleProperties.getJVMRuntime());
         }
 
 
         // New since 2015-08-05 Tobias Bley / UltraMixer
         // LSEnvironemnt dict node
         if (bundleProperties.getLSEnvironment() != null && bundleProperties.getLSEnvironment().keySet().size() > 0) {
-            writeKey("LSEnvironment", dict);
-            Node lsEnvironmentDict = createNode("dict", dict);
-
-            // Main class, required
-            Enumeration keys = bundleProperties.getLSEnvironment().keys();
-            while (keys.hasMoreElements()) {
-                String key = (String) keys.nextElement();
-                writeKeyStringPair(key, (String) bundleProperties.getLSEnvironment().get(key), lsEnvironmentDict);
+            writeKey("LSEnvironment");
+            output.startDict();
+
+            for (Iterator i = keys(bundleProperties.getLSEnvironment()).iterator(); i.hasNext(); ) {
+                String key = (String) i.next();
+                writeKeyStringPair(key, (String) bundleProperties.getLSEnvironment().get(key));
             }
+
+            output.endDict();
         }
 
         // Document Types, optional
         List documentTypes = bundleProperties.getDocumentTypes();
 
         if (documentTypes.size() > 0) {
-            writeDocumentTypes(documentTypes, dict);
+            writeDocumentTypes(documentTypes);
         }
 
         // Java / JavaX entry in the plist dictionary
-        writeKey(bundleProperties.getJavaXKey() ? "JavaX" : "Java", dict);
-        Node javaDict = createNode("dict", dict);
+        writeKey(bundleProperties.getJavaXKey() ? "JavaX" : "Java");
+        output.startDict();
 
         // Main class, required
-        writeKeyStringPair("MainClass", bundleProperties.getMainClass(), javaDict);
+        writeKeyStringPair("MainClass", bundleProperties.getMainClass());
 
         // Target JVM version, optional but recommended
         if (bundleProperties.getJVMVersion() != null) {
-            writeKeyStringPair("JVMVersion", bundleProperties.getJVMVersion(), javaDict);
+            writeKeyStringPair("JVMVersion", bundleProperties.getJVMVersion());
         }
 
         // New in JarBundler 2.2.0; Tobias Bley ---------------------------------
@@ -242,14 +281,14 @@ public class PropertyListWriter {
         List jvmArchs = bundleProperties.getJVMArchs();
 
         if (jvmArchs != null && !jvmArchs.isEmpty()) {
-            writeJVMArchs(jvmArchs, javaDict);
+            writeJVMArchs(jvmArchs);
         }
 
         // lsArchitecturePriority, optional
         List lsArchitecturePriority = bundleProperties.getLSArchitecturePriority();
 
         if (lsArchitecturePriority != null && !lsArchitecturePriority.isEmpty()) {
-            writeLSArchitecturePriority(lsArchitecturePriority, javaDict);
+            writeLSArchitecturePriority(lsArchitecturePriority);
         }
 
         //-----------------------------------------------------------------------
@@ -263,65 +302,67 @@ public class PropertyListWriter {
         List extraClassPath = bundleProperties.getExtraClassPath();
 
         if ((classPath.size() > 0) || (extraClassPath.size() > 0)) {
-            writeClasspath(classPath, extraClassPath, javaDict);
+            writeClasspath(classPath, extraClassPath);
         }
 
 
         // JVM options, optional
         if (bundleProperties.getVMOptions() != null) {
-            writeKeyStringPair("VMOptions", bundleProperties.getVMOptions(), javaDict);
+            writeKeyStringPair("VMOptions", bundleProperties.getVMOptions());
         }
 
         // Working directory, optional
         if (bundleProperties.getWorkingDirectory() != null) {
-            writeKeyStringPair("WorkingDirectory", bundleProperties.getWorkingDirectory(), javaDict);
+            writeKeyStringPair("WorkingDirectory", bundleProperties.getWorkingDirectory());
         }
 
         // StartOnMainThread, optional
         if (bundleProperties.getStartOnMainThread() != null) {
-            writeKey("StartOnMainThread", javaDict);
-            createNode(bundleProperties.getStartOnMainThread().toString(), javaDict);
+            writeKeyBooleanPair("StartOnMainThread", bundleProperties.getStartOnMainThread());
         }
 
         // SplashFile, optional
         if (bundleProperties.getSplashFile() != null) {
-            writeKeyStringPair("SplashFile", bundleProperties.getSplashFile(), javaDict);
+            writeKeyStringPair("SplashFile", bundleProperties.getSplashFile());
         }
 
         // Main class arguments, optional
         if (bundleProperties.getArguments() != null) {
-            writeKeyStringPair("Arguments", bundleProperties.getArguments(), javaDict);
+            writeKeyStringPair("Arguments", bundleProperties.getArguments());
         }
 
         // Java properties, optional
         Hashtable javaProperties = bundleProperties.getJavaProperties();
 
         if (javaProperties.isEmpty() == false) {
-            writeJavaProperties(javaProperties, javaDict);
+            writeJavaProperties(javaProperties);
         }
 
+        output.endDict();
+
         //by Tobias Bley / UltraMixer
-        writeKeyStringPair("SUFeedURL", bundleProperties.getSUFeedURL(), dict);
+        writeKeyStringPair("SUFeedURL", bundleProperties.getSUFeedURL());
 
         // Sparkle Properties
         // new since 2015-08-05 by Tobias Bley / UltraMixer
-        writeKeyStringPair("SUPublicDSAKeyFile", bundleProperties.getSUPublicDSAKeyFile(), dict);
+        writeKeyStringPair("SUPublicDSAKeyFile", bundleProperties.getSUPublicDSAKeyFile());
 
 
         // Services, optional
         List services = bundleProperties.getServices();
         if (services.size() > 0) {
-            writeServices(services, dict);
+            writeServices(services);
         }
 
+        output.endDict();
     }
 
 
-    private void writeDocumentTypes(List documentTypes, Node appendTo) {
+    private void writeDocumentTypes(List documentTypes) throws IOException {
 
-        writeKey("CFBundleDocumentTypes", appendTo);
+        writeKey("CFBundleDocumentTypes");
 
-        Node array = createNode("array", appendTo);
+        output.startArray();
 
         Iterator itor = documentTypes.iterator();
 
@@ -329,121 +370,132 @@ public class PropertyListWriter {
 
             DocumentType documentType = (DocumentType) itor.next();
 
-            Node documentDict = createNode("dict", array);
+            output.startDict();
 
-            writeKeyStringPair("CFBundleTypeName", documentType.getName(), documentDict);
-            writeKeyStringPair("CFBundleTypeRole", documentType.getRole(), documentDict);
+            writeKeyStringPair("CFBundleTypeName", documentType.getName());
+            writeKeyStringPair("CFBundleTypeRole", documentType.getRole());
 
             File iconFile = documentType.getIconFile();
 
             if (iconFile != null) {
-                writeKeyStringPair("CFBundleTypeIconFile", iconFile.getName(), documentDict);
+                writeKeyStringPair("CFBundleTypeIconFile", IcnsIcon.bundleName(iconFile));
             }
 
 
             List extensions = documentType.getExtensions();
 
             if (extensions.isEmpty() == false) {
-                writeKey("CFBundleTypeExtensions", documentDict);
-                writeArray(extensions, documentDict);
+                writeKey("CFBundleTypeExtensions");
+                writeArray(extensions);
             }
 
             List osTypes = documentType.getOSTypes();
 
             if (osTypes.isEmpty() == false) {
-                writeKey("CFBundleTypeOSTypes", documentDict);
-                writeArray(osTypes, documentDict);
+                writeKey("CFBundleTypeOSTypes");
+                writeArray(osTypes);
             }
 
 
             List mimeTypes = documentType.getMimeTypes();
 
             if (mimeTypes.isEmpty() == false) {
-                writeKey("CFBundleTypeMIMETypes", documentDict);
-                writeArray(mimeTypes, documentDict);
+                writeKey("CFBundleTypeMIMETypes");
+                writeArray(mimeTypes);
             }
 
             List UTIs = documentType.getUTIs();
 
             if (UTIs.isEmpty() == false) {
-                writeKey("LSItemContentTypes", documentDict);
-                writeArray(UTIs, documentDict);
+                writeKey("LSItemContentTypes");
+                writeArray(UTIs);
             }
 
             // Only write this key if true
             if (documentType.isBundle()) {
-                writeKeyStringPair("LSTypeIsPackage", "true", documentDict);
+                writeKeyStringPair("LSTypeIsPackage", "true");
             }
+
+            output.endDict();
         }
+
+        output.endArray();
     }
 
-    private void writeServices(List services, Node appendTo) {
+    private void writeServices(List services) throws IOException {
 
-        writeKey("NSServices", appendTo);
-        Node array = createNode("array", appendTo);
+        writeKey("NSServices");
+        output.startArray();
         Iterator itor = services.iterator();
 
         while (itor.hasNext()) {
             Service service = (Service) itor.next();
-            Node serviceDict = createNode("dict", array);
+            output.startDict();
 
             String portName = service.getPortName();
             if (portName == null) {
                 portName = bundleProperties.getCFBundleName();
             }
 
-            writeKeyStringPair("NSPortName", portName, serviceDict);
-            writeKeyStringPair("NSMessage", service.getMessage(), serviceDict);
+            writeKeyStringPair("NSPortName", portName);
+            writeKeyStringPair("NSMessage", service.getMessage());
 
             List sendTypes = service.getSendTypes();
             if (!sendTypes.isEmpty()) {
-                writeKey("NSSendTypes", serviceDict);
-                writeArray(sendTypes, serviceDict);
+                writeKey("NSSendTypes");
+                writeArray(sendTypes);
             }
 
             List returnTypes = service.getReturnTypes();
             if (!returnTypes.isEmpty()) {
-                writeKey("NSReturnTypes", serviceDict);
-                writeArray(returnTypes, serviceDict);
+                writeKey("NSReturnTypes");
+                writeArray(returnTypes);
             }
 
-            writeKey("NSMenuItem", serviceDict);
-            Node menuItemDict = createNode("dict", serviceDict);
-            writeKeyStringPair("default", service.getMenuItem(), menuItemDict);
+            writeKey("NSMenuItem");
+            output.startDict();
+            writeKeyStringPair("default", service.getMenuItem());
+            output.endDict();
 
             String keyEquivalent = service.getKeyEquivalent();
             if (null != keyEquivalent) {
-                writeKey("NSKeyEquivalent", serviceDict);
-                Node keyEquivalentDict = createNode("dict", serviceDict);
-                writeKeyStringPair("default", keyEquivalent, keyEquivalentDict);
+                writeKey("NSKeyEquivalent");
+                output.startDict();
+                writeKeyStringPair("default", keyEquivalent);
+                output.endDict();
             }
 
             String userData = service.getUserData();
             if (null != userData) {
-                writeKeyStringPair("NSUserData", userData, serviceDict);
+                writeKeyStringPair("NSUserData", userData);
             }
 
             String timeout = service.getTimeout();
             if (null != timeout) {
-                writeKeyStringPair("NSTimeout", timeout, serviceDict);
+                writeKeyStringPair("NSTimeout", timeout);
             }
+
+            output.endDict();
         }
+
+        output.endArray();
     }
 
-    private void writeClasspath(List classpath, List extraClasspath, Node appendTo) {
-        writeKey("ClassPath", appendTo);
-        classpath.addAll(extraClasspath);
-        writeArray(classpath, appendTo);
+    private void writeClasspath(List classpath, List extraClasspath) throws IOException {
+        writeKey("ClassPath");
+        List entries = new ArrayList(classpath);
+        entries.addAll(extraClasspath);
+        writeArray(entries);
     }
 
 
-    private void writeJavaProperties(Hashtable javaProperties, Node appendTo) {
+    private void writeJavaProperties(Hashtable javaProperties) throws IOException {
 
-        writeKey("Properties", appendTo);
+        writeKey("Properties");
 
-        Node propertiesDict = createNode("dict", appendTo);
+        output.startDict();
 
-        for (Iterator i = javaProperties.keySet().iterator(); i.hasNext(); ) {
+        for (Iterator i = keys(javaProperties).iterator(); i.hasNext(); ) {
             String key = (String) i.next();
 
             if (key.startsWith("com.apple.")) {
@@ -451,85 +503,73 @@ public class PropertyListWriter {
                 continue;
             }
 
-            writeKeyStringPair(key, (String) javaProperties.get(key), propertiesDict);
+            writeKeyStringPair(key, (String) javaProperties.get(key));
         }
+
+        output.endDict();
+    }
+
+    private Collection keys(Hashtable table) {
+        return sortKeys ? new TreeSet(table.keySet()) : table.keySet();
     }
 
     // New in JarBundler 2.2.0; Tobias Bley ---------------------------------
 
-    private void writeJVMArchs(List jvmArchs, Node appendTo) {
-        writeKey("JVMArchs", appendTo);
-        writeArray(jvmArchs, appendTo);
+    private void writeJVMArchs(List jvmArchs) throws IOException {
+        writeKey("JVMArchs");
+        writeArray(jvmArchs);
     }
 
-    private void writeLSArchitecturePriority(List lsArchitecturePriority, Node appendTo) {
-        writeKey("LSArchitecturePriority", appendTo);
-        writeArray(lsArchitecturePriority, appendTo);
+    private void writeLSArchitecturePriority(List lsArchitecturePriority) throws IOException {
+        writeKey("LSArchitecturePriority");
+        writeArray(lsArchitecturePriority);
     }
 
     //----------------------------------------------------------------------
 
-    private Node createNode(String tag, Node appendTo) {
-        Node node = this.document.createElement(tag);
-        appendTo.appendChild(node);
-        return node;
-    }
-
-
-    private void writeKeyStringPair(String key, String string, Node appendTo) {
+    private void writeKeyStringPair(String key, String string) throws IOException {
 
         if (string == null) {
             return;
         }
 
-        writeKey(key, appendTo);
-        writeString(string, appendTo);
+        writeKey(key);
+        writeString(string);
     }
 
 
-    private void writeKeyBooleanPair(String key, Boolean b, Node appendTo) {
+    private void writeKeyBooleanPair(String key, Boolean b) throws IOException {
 
         if (b == null) {
             return;
         }
 
-        writeKey(key, appendTo);
-        writeBoolean(b, appendTo);
+        writeKey(key);
+        writeBoolean(b);
     }
 
 
-    private void writeKey(String key, Node appendTo) {
-        Element keyNode = this.document.createElement("key");
-        appendTo.appendChild(keyNode);
-        keyNode.appendChild(this.document.createTextNode(key));
+    private void writeKey(String key) throws IOException {
+        output.key(key);
     }
 
 
-    private void writeString(String string, Node appendTo) {
-        Element stringNode = this.document.createElement("string");
-        stringNode.appendChild(this.document.createTextNode(string));
-        appendTo.appendChild(stringNode);
+    private void writeString(String string) throws IOException {
+        output.string(string);
     }
 
-    private void writeArray(List stringList, Node appendTo) {
+    private void writeArray(List stringList) throws IOException {
 
-        Node arrayNode = createNode("array", appendTo);
+        output.startArray();
 
         for (Iterator it = stringList.iterator(); it.hasNext(); ) {
-            writeString((String) it.next(), arrayNode);
+            writeString((String) it.next());
         }
 
+        output.endArray();
     }
 
-    private void writeBoolean(Boolean b, Node appendTo) {
-        Element booleanNode = null;
-
-        if (b.booleanValue()) {
-            booleanNode = this.document.createElement("true");
-        } else {
-            booleanNode = this.document.createElement("false");
-
-        }
-        appendTo.appendChild(booleanNode);
+    private void writeBoolean(Boolean b) throws IOException {
+        output.bool(b.booleanValue());
     }
 }
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.apache.tools.ant.types.Commandline;
+import org.apache.tools.ant.util.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+
+/**
+ * <p>Links the {@link JavaRuntime} of a bundle with jlink, or finds it in
+ * the cache of images linked before.</p>
+ *
+ * <p>An image is cached under the SHA-256 of the JDK's <code>release</code>
+ * file, which names its version, vendor and platform, of the modules, of
+ * the jlink options and of the name, size and modification time of every
+ * file of the jmods directory, if one is set. jlink writes into a temporary directory which is
+ * renamed into place once complete, so a cached image is always whole and
+ * concurrent builds sharing the cache never see a partial image.</p>
+ *
+ * <p>The modules jdeps finds are cached as well, under the paths, sizes
+ * and modification times of the jars, since running jdeps takes longer
+ * than copying a cached image.</p>
+ *
+ * <p>Nothing is ever removed from the cache: every new JDK, set of modules
+ * or set of jars adds an image or a modules file, so the cache directory
+ * has to be cleaned up by hand now and then.</p>
+ */
+class RuntimeImage {
+
+    // Maximum number of jars analyzed by a single jdeps invocation
+    private static final int JDEPS_BATCH_SIZE = 200;
+
+    // The task we are linking for, used for logging
+    private final Task task;
+
+    private final JavaRuntime runtime;
+
+    private File cacheDir = null;
+    private List jars = new ArrayList();
+    private boolean dryRun = false;
+
+
+    RuntimeImage(Task task, JavaRuntime runtime) {
+        this.task = task;
+        this.runtime = runtime;
+    }
+
+    /**
+     * @param cacheDir The directory of the cached images
+     */
+    void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @param jars The application jars as Files, which jdeps analyzes
+     */
+    void setJars(List jars) {
+        this.jars = jars;
+    }
+
+    /**
+     * @param dryRun If true, only look up the image in the cache, neither
+     *               link it nor write anything to the cache
+     */
+    void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Link the image, unless it is cached.
+     *
+     * @return The home directory of the image, or null in a dry run if the
+     *         image is not cached
+     * @throws BuildException if the JDK has no jlink or jdeps or linking fails
+     */
+    File getImage() throws BuildException {
+        File jlink = tool("jlink");
+
+        if (!jlink.isFile()) {
+            throw new BuildException("Unable to find \"" + jlink
+                + "\", \"jdk\" of '<runtime>' must be a JDK 11 or later");
+        }
+
+        if (!dryRun && !cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new BuildException("Unable to create directory " + cacheDir);
+        }
+
+        Properties release = release();
+        Set modules = modules(release);
+
+        if (modules.isEmpty()) {
+            throw new BuildException("No modules for '<runtime>', set \"modules\" or \"jdeps\"");
+        }
+
+        List options = new ArrayList();
+
+        if (runtime.getOptions() != null) {
+            addAll(options, Commandline.translateCommandline(runtime.getOptions()));
+        }
+
+        File image = new File(cacheDir, key(release, modules, options));
+
+        if (image.isDirectory()) {
+            task.log("Using cached runtime image \"" + image + "\"", Project.MSG_VERBOSE);
+            return image;
+        }
+
+        if (dryRun) {
+            return null;
+        }
+
+        if (runtime.getJmods() == null && !Os.isFamily(Os.FAMILY_MAC)) {
+            task.log("Linking a runtime for " + System.getProperty("os.name")
+                + ", set \"jmods\" of '<runtime>' to the jmods of a macOS JDK", Project.MSG_WARN);
+        }
+
+        task.log("Linking runtime image with " + join(modules));
+
+        File tmp = null;
+
+        try {
+            tmp = File.createTempFile(image.getName(), ".tmp", cacheDir);
+
+            // jlink insists on creating the output directory itself
+            tmp.delete();
+
+            List command = new ArrayList();
+            command.add(jlink.getAbsolutePath());
+
+            if (runtime.getJmods() != null) {
+                command.add("--module-path");
+                command.add(runtime.getJmods().getAbsolutePath());
+            }
+
+            command.add("--add-modules");
+            command.add(join(modules));
+            command.addAll(options);
+            command.add("--output");
+            command.add(tmp.getAbsolutePath());
+
+            Execute exe = new Execute(new LogStreamHandler(task, Project.MSG_INFO, Project.MSG_WARN));
+            exe.setAntRun(task.getProject());
+            exe.setCommandline((String[]) command.toArray(new String[command.size()]));
+            task.log(Commandline.toString(exe.getCommandline()), Project.MSG_VERBOSE);
+
+            if (exe.execute() != 0 || !tmp.isDirectory()) {
+                throw new BuildException("jlink failed to link the runtime image");
+            }
+
+            try {
+                Files.move(tmp.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                // Linked by a concurrent build in the meantime
+                if (!image.isDirectory()) {
+                    throw ex;
+                }
+            }
+        } catch (IOException ex) {
+            throw new BuildException("Unable to link the runtime image: " + ex.getMessage(), ex);
+        } finally {
+            if (tmp != null && tmp.exists()) {
+                Delete delete = new Delete();
+                delete.setProject(task.getProject());
+                delete.setDir(tmp);
+                delete.setQuiet(true);
+                delete.execute();
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * @return The modules of the image: those jdeps finds, plus the listed ones
+     */
+    private Set modules(Properties release) throws BuildException {
+        Set modules = new TreeSet();
+
+        if (runtime.getModules() != null) {
+            StringTokenizer tokens = new StringTokenizer(runtime.getModules(), ", ");
+
+            while (tokens.hasMoreTokens()) {
+                modules.add(tokens.nextToken());
+            }
+        }
+
+        if (runtime.isJdeps() && !jars.isEmpty()) {
+            modules.addAll(cachedJdeps(release));
+        }
+
+        return modules;
+    }
+
+    /**
+     * @return The modules the jars depend on, as found by jdeps before or now
+     */
+    private Set cachedJdeps(Properties release) throws BuildException {
+        StringBuffer sb = new StringBuffer(featureVersion(release)).append('\n');
+
+        for (Iterator itor = jars.iterator(); itor.hasNext(); ) {
+            File jar = (File) itor.next();
+            sb.append(jar.getAbsolutePath()).append('\t').append(jar.length())
+                .append('\t').append(jar.lastModified()).append('\n');
+        }
+
+        File file = new File(cacheDir, sha256(sb.toString()) + ".modules");
+
+        try {
+            if (file.isFile()) {
+                Set modules = new TreeSet();
+                StringTokenizer tokens = new StringTokenizer(
+                    new String(Files.readAllBytes(file.toPath()), "UTF-8"), ",\n");
+
+                while (tokens.hasMoreTokens()) {
+                    modules.add(tokens.nextToken());
+                }
+
+                task.log("jdeps (cached): " + join(modules), Project.MSG_VERBOSE);
+                return modules;
+            }
+
+            Set modules = jdeps(release);
+
+            if (dryRun) {
+                return modules;
+            }
+
+            File tmp = File.createTempFile(file.getName(), ".tmp", cacheDir);
+
+            try {
+                Files.write(tmp.toPath(), join(modules).getBytes("UTF-8"));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+
+            return modules;
+        } catch (IOException ex) {
+            throw new BuildException("Unable to cache the modules of the jars in \"" + file
+                + "\": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return The modules the jars depend on, as found by jdeps
+     */
+    private Set jdeps(Properties release) throws BuildException {
+        File jdeps = tool("jdeps");
+
+        if (!jdeps.isFile()) {
+            throw new BuildException("Unable to find \"" + jdeps + "\", \"jdk\" of '<runtime>' must be a JDK");
+        }
+
+        Set modules = new TreeSet();
+
+        // Missing classes are ignored anyway, so the jars can be analyzed
+        // in batches which keep the command lines short
+        for (int i = 0; i < jars.size(); i += JDEPS_BATCH_SIZE) {
+            List command = new ArrayList();
+            command.add(jdeps.getAbsolutePath());
+            command.add("--ignore-missing-deps");
+            command.add("--print-module-deps");
+            command.add("--multi-release");
+            command.add(featureVersion(release));
+
+            for (Iterator itor = jars.subList(i, Math.min(jars.size(), i + JDEPS_BATCH_SIZE)).iterator();
+                 itor.hasNext(); ) {
+                command.add(((File) itor.next()).getAbsolutePath());
+            }
+
+            modules.addAll(jdeps(command));
+        }
+
+        task.log("jdeps: " + join(modules), Project.MSG_VERBOSE);
+        return modules;
+    }
+
+    private Set jdeps(List command) throws BuildException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Execute exe = new Execute(new PumpStreamHandler(out, new LogOutputStream(task, Project.MSG_VERBOSE)));
+        exe.setAntRun(task.getProject());
+        exe.setCommandline((String[]) command.toArray(new String[command.size()]));
+
+        try {
+            if (exe.execute() != 0) {
+                throw new BuildException("jdeps failed to find the modules of the jars: " + out.toString().trim());
+            }
+        } catch (IOException ex) {
+            throw new BuildException("Unable to run jdeps: " + ex.getMessage(), ex);
+        }
+
+        // The last line lists the modules, separated by commas
+        String[] lines = out.toString().trim().split("\\s*\n");
+        String last = lines[lines.length - 1].trim();
+
+        if (!last.matches("[\\w.,]*")) {
+            throw new BuildException("jdeps failed to find the modules of the jars: " + out.toString().trim());
+        }
+
+        Set modules = new TreeSet();
+        StringTokenizer tokens = new StringTokenizer(last, ",");
+
+        while (tokens.hasMoreTokens()) {
+            modules.add(tokens.nextToken());
+        }
+
+        return modules;
+    }
+
+    /**
+     * @return The JDK's <code>release</code> file, naming its version
+     */
+    private Properties release() throws BuildException {
+        File file = new File(runtime.getJdk(), "release");
+        Properties release = new Properties();
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            release.load(in);
+        } catch (IOException ex) {
+            throw new BuildException("Unable to read \"" + file + "\", \"jdk\" of '<runtime>' must be a JDK", ex);
+        } finally {
+            FileUtils.close(in);
+        }
+
+        return release;
+    }
+
+    /**
+     * @return The feature release of the JDK, e.g. "17"
+     */
+    private static String featureVersion(Properties release) {
+        String version = unquote(release.getProperty("JAVA_VERSION", ""));
+        int end = 0;
+
+        while (end < version.length() && Character.isDigit(version.charAt(end))) {
+            end++;
+        }
+
+        return (end > 0) ? version.substring(0, end) : "base";
+    }
+
+    /**
+     * @return The cache key of the image
+     */
+    private String key(Properties release, Set modules, List options) {
+        StringBuffer sb = new StringBuffer();
+
+        for (Iterator itor = new TreeSet(release.keySet()).iterator(); itor.hasNext(); ) {
+            String name = (String) itor.next();
+            sb.append(name).append('=').append(release.getProperty(name)).append('\n');
+        }
+
+        sb.append(join(modules)).append('\n');
+
+        for (Iterator itor = options.iterator(); itor.hasNext(); ) {
+            sb.append(itor.next()).append('\n');
+        }
+
+        // The jmods may come from another JDK than the release file, and be
+        // replaced by another version in place
+        if (runtime.getJmods() != null) {
+            sb.append(runtime.getJmods().getAbsolutePath()).append('\n');
+
+            String[] names = runtime.getJmods().list();
+
+            if (names != null) {
+                for (Iterator itor = new TreeSet(Arrays.asList(names)).iterator(); itor.hasNext(); ) {
+                    File jmod = new File(runtime.getJmods(), (String) itor.next());
+
+                    if (jmod.getName().endsWith(".jmod")) {
+                        sb.append(jmod.getName()).append('\t').append(jmod.length())
+                            .append('\t').append(jmod.lastModified()).append('\n');
+                    }
+                }
+            }
+        }
+
+        return sha256(sb.toString());
+    }
+
+    private static String sha256(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return ContentCache.toHex(md.digest(s.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new BuildException(ex);
+        } catch (IOException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+    private File tool(String name) {
+        return new File(runtime.getJdk(), "bin/" + (Os.isFamily(Os.FAMILY_WINDOWS) ? name + ".exe" : name));
+    }
+
+    private static String unquote(String s) {
+        return (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")) ? s.substring(1, s.length() - 1) : s;
+    }
+
+    private static String join(Set items) {
+        StringBuffer sb = new StringBuffer();
+
+        for (Iterator itor = items.iterator(); itor.hasNext(); ) {
+            sb.append(itor.next());
+
+            if (itor.hasNext()) {
+                sb.append(',');
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static void addAll(List list, String[] items) {
+        for (int i = 0; i < items.length; i++) {
+            list.add(items[i]);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+
+/**
+ * <p>Streams an XML property list in a single pass.</p>
+ *
+ * <p>The output is byte-identical to serializing the equivalent DOM with the
+ * JAXP identity transformer and an indentation of two spaces, which is what
+ * {@link DOMPropertyListOutput} does: the same XML declaration, the same
+ * indentation and line separators, empty elements collapsed to
+ * <code>&lt;string/&gt;</code>, and the same set of characters written as
+ * character references.</p>
+ */
+class XMLPropertyListOutput implements PropertyListOutput {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static final int INDENT = 2;
+
+    private final Writer writer;
+
+    // Nesting depth of the next element
+    private int depth = 1;
+
+    // Name of an element whose start tag hasn't been written yet, as it
+    // is written as an empty element if no content follows
+    private String pending = null;
+
+
+    XMLPropertyListOutput(OutputStream out) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+        writer.write(LINE_SEPARATOR);
+        writer.write("<plist version=\"1.0\">");
+        writer.write(LINE_SEPARATOR);
+    }
+
+    public void startDict() throws IOException {
+        start("dict");
+    }
+
+    public void endDict() throws IOException {
+        end("dict");
+    }
+
+    public void startArray() throws IOException {
+        start("array");
+    }
+
+    public void endArray() throws IOException {
+        end("array");
+    }
+
+    public void key(String key) throws IOException {
+        text("key", key);
+    }
+
+    public void string(String string) throws IOException {
+        text("string", string);
+    }
+
+    public void bool(boolean b) throws IOException {
+        flushPending();
+        indent();
+        writer.write(b ? "<true/>" : "<false/>");
+        writer.write(LINE_SEPARATOR);
+    }
+
+    public void finish() throws IOException {
+        flushPending();
+        writer.write("</plist>");
+        writer.write(LINE_SEPARATOR);
+        writer.flush();
+    }
+
+    private void start(String tag) throws IOException {
+        flushPending();
+        pending = tag;
+    }
+
+    private void end(String tag) throws IOException {
+        if (pending != null) {
+            indent();
+            writer.write("<" + tag + "/>");
+            pending = null;
+        } else {
+            depth--;
+            indent();
+            writer.write("</" + tag + ">");
+        }
+        writer.write(LINE_SEPARATOR);
+    }
+
+    private void text(String tag, String text) throws IOException {
+        flushPending();
+        indent();
+
+        if (text.length() == 0) {
+            writer.write("<" + tag + "/>");
+        } else {
+            writer.write("<" + tag + ">");
+            escape(text);
+            writer.write("</" + tag + ">");
+        }
+
+        writer.write(LINE_SEPARATOR);
+    }
+
+    private void flushPending() throws IOException {
+        if (pending != null) {
+            indent();
+            writer.write("<" + pending + ">");
+            writer.write(LINE_SEPARATOR);
+            pending = null;
+            depth++;
+        }
+    }
+
+    private void indent() throws IOException {
+        for (int i = depth * INDENT; i > 0; i--) {
+            writer.write(' ');
+        }
+    }
+
+    private void escape(String text) throws IOException {
+        int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c == '&') {
+                writer.write("&amp;");
+            } else if (c == '<') {
+                writer.write("&lt;");
+            } else if (c == '>') {
+                writer.write("&gt;");
+            } else if (c == '\n') {
+                writer.write(LINE_SEPARATOR);
+            } else if (c == '\t') {
+                writer.write(c);
+            } else if (c < 0x20 || (c >= 0x7f && c <= 0x9f)) {
+                writer.write("&#" + (int) c + ";");
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+                writer.write("&#" + Character.toCodePoint(c, text.charAt(++i)) + ";");
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * <p>Decodes a binary "bplist00" property list, independently of
+ * {@link BinaryPropertyListOutput}, so tests can read back what it wrote.</p>
+ *
+ * <p>Dictionaries are decoded to LinkedHashMaps in the order of their keys,
+ * arrays to Lists, strings to Strings, booleans to Booleans and integers to
+ * Longs. Other object types are rejected. Every reference, offset and
+ * length is checked against the bounds of the data.</p>
+ */
+class BinaryPropertyListDecoder {
+
+    private static final byte[] MAGIC = {'b', 'p', 'l', 'i', 's', 't', '0', '0'};
+
+    // Size of the trailer at the end of the data
+    private static final int TRAILER_SIZE = 32;
+
+    private final byte[] data;
+
+    private int offsetSize;
+    private int refSize;
+    private int objectCount;
+    private long offsetTableOffset;
+
+    // Objects being decoded, to detect references back to a container
+    private boolean[] decoding;
+
+
+    private BinaryPropertyListDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @param data A binary property list
+     * @return The top level object
+     * @throws IOException if the data is no valid binary property list
+     */
+    static Object decode(byte[] data) throws IOException {
+        return new BinaryPropertyListDecoder(data).decode();
+    }
+
+    private Object decode() throws IOException {
+        if (data.length < MAGIC.length + TRAILER_SIZE
+            || !Arrays.equals(MAGIC, Arrays.copyOf(data, MAGIC.length))) {
+            throw new IOException("Not a bplist00 property list");
+        }
+
+        int trailer = data.length - TRAILER_SIZE;
+
+        offsetSize = data[trailer + 6] & 0xFF;
+        refSize = data[trailer + 7] & 0xFF;
+        long count = read(trailer + 8, 8);
+        long top = read(trailer + 16, 8);
+        offsetTableOffset = read(trailer + 24, 8);
+
+        if (offsetSize < 1 || offsetSize > 8 || refSize < 1 || refSize > 8) {
+            throw new IOException("Invalid offset size " + offsetSize + " or reference size " + refSize);
+        }
+
+        if (count < 1 || count > Integer.MAX_VALUE || top >= count
+            || offsetTableOffset < MAGIC.length || offsetTableOffset + count * offsetSize > trailer) {
+            throw new IOException("Invalid trailer");
+        }
+
+        objectCount = (int) count;
+        decoding = new boolean[objectCount];
+
+        return object((int) top);
+    }
+
+    private Object object(int ref) throws IOException {
+        if (ref < 0 || ref >= objectCount) {
+            throw new IOException("Reference " + ref + " out of range");
+        }
+
+        if (decoding[ref]) {
+            throw new IOException("Object " + ref + " contains itself");
+        }
+
+        long offset = read(offsetTableOffset + (long) ref * offsetSize, offsetSize);
+
+        if (offset < MAGIC.length || offset >= offsetTableOffset) {
+            throw new IOException("Offset " + offset + " of object " + ref + " out of range");
+        }
+
+        int pos = (int) offset;
+        int marker = data[pos] & 0xFF;
+        int type = marker & 0xF0;
+        int info = marker & 0x0F;
+
+        switch (type) {
+            case 0x00:
+                if (info == 0x08) {
+                    return Boolean.FALSE;
+                } else if (info == 0x09) {
+                    return Boolean.TRUE;
+                }
+                break;
+
+            case 0x10:
+                return Long.valueOf(integer(pos));
+
+            case 0x50: {
+                int[] length = length(pos, info);
+                return new String(bytes(length[1], length[0]), "US-ASCII");
+            }
+
+            case 0x60: {
+                int[] length = length(pos, info);
+                return new String(bytes(length[1], 2L * length[0]), "UTF-16BE");
+            }
+
+            case 0xA0: {
+                int[] length = length(pos, info);
+                List array = new ArrayList();
+
+                decoding[ref] = true;
+                for (int i = 0; i < length[0]; i++) {
+                    array.add(object(ref(length[1], i)));
+                }
+                decoding[ref] = false;
+
+                return array;
+            }
+
+            case 0xD0: {
+                int[] length = length(pos, info);
+                Map dict = new LinkedHashMap();
+
+                decoding[ref] = true;
+                for (int i = 0; i < length[0]; i++) {
+                    Object key = object(ref(length[1], i));
+
+                    if (!(key instanceof String)) {
+                        throw new IOException("Dictionary key " + key + " is not a string");
+                    }
+
+                    if (dict.put(key, object(ref(length[1], length[0] + i))) != null) {
+                        throw new IOException("Duplicate dictionary key " + key);
+                    }
+                }
+                decoding[ref] = false;
+
+                return dict;
+            }
+        }
+
+        throw new IOException("Unsupported object marker 0x" + Integer.toHexString(marker));
+    }
+
+    /**
+     * @return The i-th reference following an array or dictionary marker
+     */
+    private int ref(int start, int i) throws IOException {
+        return (int) read(start + (long) i * refSize, refSize);
+    }
+
+    /**
+     * @return The count of a string, array or dictionary, from the marker
+     *         or from the integer object following it, and the position of
+     *         the content
+     */
+    private int[] length(int pos, int info) throws IOException {
+        if (info != 0x0F) {
+            return new int[]{info, pos + 1};
+        }
+
+        int intMarker = data[pos + 1] & 0xFF;
+
+        if ((intMarker & 0xF0) != 0x10) {
+            throw new IOException("Invalid length marker 0x" + Integer.toHexString(intMarker));
+        }
+
+        long length = integer(pos + 1);
+
+        if (length < 15 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length " + length);
+        }
+
+        return new int[]{(int) length, pos + 2 + (1 << (intMarker & 0x0F))};
+    }
+
+    /**
+     * @return The value of the integer object at a position, 1, 2 and 4 byte
+     *         integers are unsigned, 8 byte integers signed
+     */
+    private long integer(int pos) throws IOException {
+        int size = 1 << (data[pos] & 0x0F);
+
+        if (size > 8) {
+            throw new IOException("Unsupported integer size " + size);
+        }
+
+        return read(pos + 1, size);
+    }
+
+    private byte[] bytes(int pos, long length) throws IOException {
+        if (pos + length > offsetTableOffset) {
+            throw new IOException("Object at " + pos + " exceeds the object table");
+        }
+
+        return Arrays.copyOfRange(data, pos, (int) (pos + length));
+    }
+
+    private long read(long pos, int size) throws IOException {
+        if (pos < 0 || pos + size > data.length) {
+            throw new IOException("Read past the end of the data at " + pos);
+        }
+
+        long value = 0;
+
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (data[(int) pos + i] & 0xFF);
+        }
+
+        return value;
+    }
+}
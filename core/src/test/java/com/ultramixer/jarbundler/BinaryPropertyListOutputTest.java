@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Round trips property lists written by {@link BinaryPropertyListOutput}
+ * through {@link BinaryPropertyListDecoder}. Property lists written by
+ * {@link PropertyListWriter} must decode to the same objects as its XML
+ * output.
+ */
+public class BinaryPropertyListOutputTest {
+
+    // Non-ASCII text, including a character outside the basic plane
+    private static final String UNICODE = "Grüße 日本 ☃ 😀";
+
+    @Test
+    public void nestedDictionariesAndArrays() throws Exception {
+        AppBundleProperties properties = properties();
+
+        for (int i = 0; i < 3; i++) {
+            DocumentType documentType = new DocumentType();
+            documentType.setName("Document " + i);
+            documentType.setRole("Editor");
+            documentType.setExtensions("doc" + i + ",txt");
+            documentType.setMimeTypes("text/plain");
+            documentType.setUTIs("public.plain-text");
+            documentType.setIconFile(new File("doc" + i + ".icns"));
+            documentType.setBundle(i == 1);
+            properties.addDocumentType(documentType);
+        }
+
+        Map plist = assertRoundTrip(properties);
+
+        List documentTypes = (List) plist.get("CFBundleDocumentTypes");
+        assertEquals(3, documentTypes.size());
+        assertEquals(Arrays.asList("doc1", "txt"),
+            ((Map) documentTypes.get(1)).get("CFBundleTypeExtensions"));
+        assertEquals("true", ((Map) documentTypes.get(1)).get("LSTypeIsPackage"));
+    }
+
+    @Test
+    public void nonAsciiStrings() throws Exception {
+        AppBundleProperties properties = properties();
+        properties.setCFBundleName(UNICODE);
+        properties.setNSHumanReadableCopyright("© " + UNICODE + " " + repeat("é", 300));
+        properties.addJavaProperty(UNICODE, UNICODE);
+
+        Map plist = assertRoundTrip(properties);
+
+        assertEquals(UNICODE, plist.get("CFBundleName"));
+        assertEquals(UNICODE, ((Map) ((Map) plist.get("Java")).get("Properties")).get(UNICODE));
+    }
+
+    @Test
+    public void moreThan255Objects() throws Exception {
+        AppBundleProperties properties = properties();
+
+        for (int i = 0; i < 400; i++) {
+            properties.addJavaProperty("property." + i, "value " + i);
+        }
+
+        Map plist = assertRoundTrip(properties);
+        Map javaProperties = (Map) ((Map) plist.get("Java")).get("Properties");
+
+        assertEquals(400, javaProperties.size());
+        assertEquals("value 399", javaProperties.get("property.399"));
+    }
+
+    /**
+     * Counts of 256 and more and of 65536 and more are written as 2 and 4
+     * byte integers, and so are references once there are that many
+     * objects.
+     */
+    @Test
+    public void largeIntegers() throws Exception {
+        AppBundleProperties properties = properties();
+
+        for (int i = 0; i < 70000; i++) {
+            properties.addJavaProperty("p" + i, Integer.toString(i));
+        }
+
+        properties.setNSHumanReadableCopyright(repeat("a", 300));
+        properties.addLSEnvironment("ASCII", repeat("b", 70000));
+        properties.addLSEnvironment("UTF16", repeat("ü", 70000));
+
+        Map plist = assertRoundTrip(properties);
+
+        assertEquals(70000, ((Map) ((Map) plist.get("Java")).get("Properties")).size());
+        assertEquals(70000, ((String) ((Map) plist.get("LSEnvironment")).get("UTF16")).length());
+    }
+
+    /**
+     * Counts of 14 and less are part of the marker, 15 and more follow it.
+     */
+    @Test
+    public void markerCountBoundaries() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryPropertyListOutput output = new BinaryPropertyListOutput(bytes);
+
+        Map expected = new LinkedHashMap();
+
+        output.startDict();
+
+        for (int n = 13; n <= 16; n++) {
+            List array = new ArrayList();
+
+            output.key(repeat("k", n));
+            output.startArray();
+            for (int i = 0; i < n; i++) {
+                output.string(repeat("s", i));
+                array.add(repeat("s", i));
+            }
+            output.endArray();
+
+            expected.put(repeat("k", n), array);
+        }
+
+        output.key("empty");
+        output.startDict();
+        output.key("array");
+        output.startArray();
+        output.endArray();
+        output.key("nested");
+        output.startArray();
+        output.startArray();
+        output.bool(true);
+        output.bool(false);
+        output.endArray();
+        output.endArray();
+        output.endDict();
+
+        Map empty = new LinkedHashMap();
+        empty.put("array", Collections.EMPTY_LIST);
+        empty.put("nested", Collections.singletonList(Arrays.asList(Boolean.TRUE, Boolean.FALSE)));
+        expected.put("empty", empty);
+
+        output.endDict();
+        output.finish();
+
+        assertEquals(expected, BinaryPropertyListDecoder.decode(bytes.toByteArray()));
+    }
+
+    private static AppBundleProperties properties() {
+        AppBundleProperties properties = new AppBundleProperties();
+        properties.setApplicationName("Test");
+        properties.setCFBundleName("Test");
+        properties.setCFBundleIdentifier("com.ultramixer.jarbundler.test");
+        properties.setCFBundleVersion("1.0");
+        properties.setMainClass("com.ultramixer.jarbundler.test.Main");
+        properties.setJVMVersion("1.8+");
+        properties.addToClassPath("test.jar");
+        properties.addToClassPath("lib.jar");
+        return properties;
+    }
+
+    /**
+     * Write the properties as binary and as XML property lists and compare
+     * what the binary one decodes to with the XML one.
+     *
+     * @return The decoded binary property list
+     */
+    private static Map assertRoundTrip(AppBundleProperties properties) throws Exception {
+        PropertyListWriter writer = new PropertyListWriter(properties);
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        writer.writeStream(xml);
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        writer.setBinary(true);
+        writer.writeStream(binary);
+
+        Object decoded = BinaryPropertyListDecoder.decode(binary.toByteArray());
+
+        assertTrue(decoded instanceof Map);
+        assertEquals(parseXML(xml.toByteArray()), decoded);
+
+        return (Map) decoded;
+    }
+
+    private static Object parseXML(byte[] xml) throws Exception {
+        Element plist = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(xml)).getDocumentElement();
+
+        return value((Element) children(plist).get(0));
+    }
+
+    private static Object value(Element e) {
+        String name = e.getTagName();
+
+        if ("dict".equals(name)) {
+            Map dict = new LinkedHashMap();
+            List children = children(e);
+
+            for (int i = 0; i < children.size(); i += 2) {
+                dict.put(((Element) children.get(i)).getTextContent(), value((Element) children.get(i + 1)));
+            }
+
+            return dict;
+        } else if ("array".equals(name)) {
+            List array = new ArrayList();
+            List children = children(e);
+
+            for (int i = 0; i < children.size(); i++) {
+                array.add(value((Element) children.get(i)));
+            }
+
+            return array;
+        } else if ("true".equals(name)) {
+            return Boolean.TRUE;
+        } else if ("false".equals(name)) {
+            return Boolean.FALSE;
+        } else if ("integer".equals(name)) {
+            return Long.valueOf(e.getTextContent());
+        }
+
+        return e.getTextContent();
+    }
+
+    private static List children(Element e) {
+        List children = new ArrayList();
+
+        for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                children.add(n);
+            }
+        }
+
+        return children;
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuffer sb = new StringBuffer();
+
+        for (int i = 0; i < n; i++) {
+            sb.append(s);
+        }
+
+        return sb.toString();
+    }
+}
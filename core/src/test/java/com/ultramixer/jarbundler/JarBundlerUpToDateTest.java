@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015, UltraMixer Digital Audio Solutions <info@ultramixer.com>, Seth J. Morabito <sethm@loomcom.com>
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ultramixer.jarbundler;
+
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Builds a bundle twice with uptodatecheck="true" and checks which changes
+ * to the task make the second build skip the bundle.
+ */
+public class JarBundlerUpToDateTest {
+
+    private static final String BUILD_FILE =
+        "<project default=\"bundle\">\n"
+            + "  <taskdef name=\"jarbundler\" classname=\"com.ultramixer.jarbundler.JarBundler\"/>\n"
+            + "  <target name=\"bundle\">\n"
+            + "    <jarbundler dir=\"out\" name=\"Test\" mainclass=\"com.ultramixer.jarbundler.test.Main\"\n"
+            + "                stubfile=\"stub\" uptodatecheck=\"true\" verbose=\"${verbose}\"\n"
+            + "                metrics=\"${metrics}\" version=\"${version}\">\n"
+            + "      <jarfileset dir=\".\" includes=\"test.jar\"/>\n"
+            + "    </jarbundler>\n"
+            + "  </target>\n"
+            + "</project>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changedMetricsKeepsBundleUpToDate() throws Exception {
+        File dir = project();
+
+        assertFalse(isUpToDate(build(dir, "metrics-1.json", "false", "1.0")));
+        assertTrue(isUpToDate(build(dir, "metrics-2.json", "false", "1.0")));
+        assertTrue(new File(dir, "metrics-2.json").isFile());
+    }
+
+    @Test
+    public void changedVerboseKeepsBundleUpToDate() throws Exception {
+        File dir = project();
+
+        assertFalse(isUpToDate(build(dir, "metrics.json", "false", "1.0")));
+        assertTrue(isUpToDate(build(dir, "metrics.json", "true", "1.0")));
+    }
+
+    @Test
+    public void changedVersionRebuildsBundle() throws Exception {
+        File dir = project();
+
+        assertFalse(isUpToDate(build(dir, "metrics.json", "false", "1.0")));
+        assertFalse(isUpToDate(build(dir, "metrics.json", "false", "2.0")));
+        assertTrue(isUpToDate(build(dir, "metrics.json", "false", "2.0")));
+    }
+
+    /**
+     * @return A directory holding the build file, a stub and a jar
+     */
+    private File project() throws Exception {
+        File dir = folder.newFolder();
+        new File(dir, "out").mkdir();
+
+        Files.write(new File(dir, "build.xml").toPath(), BUILD_FILE.getBytes("UTF-8"));
+        Files.write(new File(dir, "stub").toPath(), new byte[]{'#', '!', '/', 'b', 'i', 'n', '/', 's', 'h', '\n'});
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        new JarOutputStream(new FileOutputStream(new File(dir, "test.jar")), manifest).close();
+
+        return dir;
+    }
+
+    /**
+     * Run the build file of the directory in a new project
+     *
+     * @return The messages logged by the build
+     */
+    private static List build(File dir, String metrics, String verbose, String version) {
+        final List messages = new ArrayList();
+
+        Project project = new Project();
+
+        // Surefire sets the system property "basedir" to the module
+        project.setUserProperty("basedir", dir.getAbsolutePath());
+        project.setUserProperty("metrics", metrics);
+        project.setUserProperty("verbose", verbose);
+        project.setUserProperty("version", version);
+        project.addBuildListener(new BuildListener() {
+            public void messageLogged(BuildEvent event) {
+                messages.add(event.getMessage());
+            }
+
+            public void buildStarted(BuildEvent event) {
+            }
+
+            public void buildFinished(BuildEvent event) {
+            }
+
+            public void targetStarted(BuildEvent event) {
+            }
+
+            public void targetFinished(BuildEvent event) {
+            }
+
+            public void taskStarted(BuildEvent event) {
+            }
+
+            public void taskFinished(BuildEvent event) {
+            }
+        });
+
+        project.init();
+        ProjectHelper.configureProject(project, new File(dir, "build.xml"));
+        project.executeTarget(project.getDefaultTarget());
+
+        return messages;
+    }
+
+    private static boolean isUpToDate(List messages) {
+        return messages.contains("Application bundle Test.app is up to date");
+    }
+}